@@ -1,11 +1,15 @@
 package org.freeeed.html;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.charset.Charset;
 
+import org.freeeed.mail.EmailDataProvider;
 import org.freeeed.mail.EmailUtil;
 import org.freeeed.mail.EmlParser;
+import org.freeeed.print.ConversionSupervisor;
 import org.freeeed.print.OfficePrint;
 import org.freeeed.services.Util;
 
@@ -24,6 +28,8 @@ public class DocumentToHtml {
 
     private static DocumentToHtml __instance;
     private static final String DEFAULT_HTML_CONTENT = "<div>No HTML available</div>";
+    private static final String IMAGE_INFIX = "_html_";
+    private static final String IMAGE_DOWNLOAD = "filedownload.html?action=exportHtmlImage&docPath=";
 
     //singleton
     private DocumentToHtml() {
@@ -38,33 +44,107 @@ public class DocumentToHtml {
         return __instance;
     }
 
-    public void createHtml(String officeDocFile, String outputHtml, String originalFileName) throws IOException {
+    /**
+     * Create the HTML preview of a document, in memory. The office conversion writes the HTML and its images to the
+     * work directory, from where they are read and deleted right away, so that the directory is reused for every
+     * document. The image references are rewritten for the UI download controller while the HTML is read.
+     *
+     * @param officeDocFile document to convert.
+     * @param originalFileName original name of the document, used when the file itself has no extension.
+     * @param emailData the already parsed email, if the document is an email, otherwise null.
+     * @param workDir directory for the office conversion.
+     * @param pdfOutput if not null, and the document goes through the office, its PDF image is exported to this
+     * file from the same conversion, so that the document is loaded once for both.
+     * @return the HTML and its images.
+     * @throws IOException on any problem reading the conversion output.
+     */
+    public HtmlBundle createHtmlBundle(String officeDocFile, String originalFileName,
+            EmailDataProvider emailData, File workDir, File pdfOutput) throws IOException {
         String extension = Util.getExtension(officeDocFile);
         if (extension == null || extension.isEmpty()) {
             extension = Util.getExtension(originalFileName);
         }
 
+        HtmlBundle bundle = new HtmlBundle();
         if ("txt".equalsIgnoreCase(extension)) {
-            OfficePrint.getInstance().ooConvert(officeDocFile, outputHtml);
+            convert(officeDocFile, workDir, bundle, pdfOutput);
         } else if ("eml".equalsIgnoreCase(extension)) {
-            EmlParser emlParser = new EmlParser(new File(officeDocFile));
+            EmailDataProvider emlParser = emailData != null ? emailData : new EmlParser(new File(officeDocFile));
             String emlHtmlContent = EmailUtil.createHtmlFromEmlFileNoCData(officeDocFile, emlParser);
-            Files.append(emlHtmlContent, new File(outputHtml), Charset.defaultCharset());
+            bundle.setHtml(emlHtmlContent.getBytes(Charset.defaultCharset()));
 
         } else if ("doc".equalsIgnoreCase(extension) || "docx".equalsIgnoreCase(extension)) {
             try {
-                OfficePrint.getInstance().ooConvert(officeDocFile, outputHtml);
+                convert(officeDocFile, workDir, bundle, pdfOutput);
             } catch (Exception e) {
-                printDefaultHtml(outputHtml);
+                if (ConversionSupervisor.isTimeout(e)) {
+                    ConversionSupervisor.getInstance().addRetry(originalFileName, e);
+                    ConversionSupervisor.getInstance().setTimedOut(officeDocFile);
+                }
+                bundle = createDefaultHtml();
             }
 
         } else {
-            printDefaultHtml(outputHtml);
+            bundle = createDefaultHtml();
         }
+        return bundle;
     }
 
-    private void printDefaultHtml(String outputHtml) throws IOException {
-        File html = new File(outputHtml);
-        Files.write(DEFAULT_HTML_CONTENT, html, Charset.defaultCharset());
+    /**
+     * Convert with OpenOffice, which names the images of the document after the HTML file.
+     */
+    private void convert(String officeDocFile, File workDir, HtmlBundle bundle, File pdfOutput) throws IOException {
+        String docName = new File(officeDocFile).getName();
+        workDir.mkdirs();
+        File htmlFile = new File(workDir, docName + ".html");
+        try {
+            if (pdfOutput != null) {
+                OfficePrint.getInstance().ooConvert(officeDocFile, htmlFile.getPath(), pdfOutput.getPath());
+            } else {
+                OfficePrint.getInstance().ooConvert(officeDocFile, htmlFile.getPath());
+            }
+            bundle.setHtml(readHtml(htmlFile, docName));
+            for (File file : listOutput(workDir, docName)) {
+                if (!file.equals(htmlFile)) {
+                    bundle.addAsset(file.getName(), Files.toByteArray(file));
+                }
+            }
+        } finally {
+            for (File file : listOutput(workDir, docName)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Read the HTML, line by line, pointing the image references to the UI file download controller.
+     */
+    private byte[] readHtml(File htmlFile, String docName) throws IOException {
+        String imageSrc = "SRC=\"" + docName + IMAGE_INFIX;
+        String downloadSrc = "SRC=\"" + IMAGE_DOWNLOAD + docName + IMAGE_INFIX;
+        StringBuilder html = new StringBuilder((int) htmlFile.length());
+        try (BufferedReader reader = Files.newReader(htmlFile, Charset.defaultCharset())) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                html.append(line.replace(imageSrc, downloadSrc)).append('\n');
+            }
+        }
+        return html.toString().getBytes(Charset.defaultCharset());
+    }
+
+    private static File[] listOutput(File workDir, final String docName) {
+        File[] files = workDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(docName);
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    private HtmlBundle createDefaultHtml() {
+        HtmlBundle bundle = new HtmlBundle();
+        bundle.setHtml(DEFAULT_HTML_CONTENT.getBytes(Charset.defaultCharset()));
+        return bundle;
     }
 }
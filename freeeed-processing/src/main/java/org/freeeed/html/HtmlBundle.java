@@ -0,0 +1,39 @@
+package org.freeeed.html;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * Class HtmlBundle.
+ *
+ * The HTML preview of a document, held in memory: the HTML itself and the files it refers to, such as images,
+ * by name.
+ *
+ * @author mark
+ *
+ */
+public class HtmlBundle {
+
+    private byte[] html;
+    private Map<String, byte[]> assets = new LinkedHashMap<>();
+
+    public byte[] getHtml() {
+        return html;
+    }
+
+    public void setHtml(byte[] html) {
+        this.html = html;
+    }
+
+    /**
+     * @return the files the HTML refers to, by name, in the order they were added
+     */
+    public Map<String, byte[]> getAssets() {
+        return assets;
+    }
+
+    public void addAsset(String name, byte[] content) {
+        assets.put(name, content);
+    }
+}
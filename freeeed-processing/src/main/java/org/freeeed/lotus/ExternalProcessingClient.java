@@ -0,0 +1,335 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.lotus;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.entity.mime.content.StringBody;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+import org.freeeed.services.Settings;
+import org.freeeed.services.Stats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Sends NSF files to the external processing machine, several at a time, over one pool of connections.
+ *
+ * A file is uploaded in chunks, "submit-chunk.html?taskId=&offset=&last=", each answered with the number of bytes
+ * the machine has so far. A chunk which fails is sent again from where "upload-status.html?taskId=" says the
+ * upload stands, so a broken connection costs one chunk, not the file. A machine which does not know the chunks
+ * gets the whole file in one request, as before. The result is asked for with "check-processing.html?taskId=&wait=",
+ * which a machine may hold until the processing is done or the wait is over; when it answers at once, it is asked
+ * again after a delay which grows from one second up to half a minute.
+ *
+ * @author mark
+ */
+public class ExternalProcessingClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExternalProcessingClient.class);
+    private static final ExternalProcessingClient instance = new ExternalProcessingClient();
+    /**
+     * How long the machine may hold a request for the result
+     */
+    static final int LONG_POLL_SECONDS = 30;
+    private static final long MIN_DELAY = 1000;
+    private static final long MAX_DELAY = 30000;
+    private static final int MAX_RETRIES = 5;
+    private static final int BUFFER = 64 * 1024;
+    private static final String ENCODING = "UTF-8";
+    private final Gson gson = new Gson();
+    private HttpClient httpClient;
+    private ExecutorService submissions;
+
+    public static ExternalProcessingClient getInstance() {
+        return instance;
+    }
+
+    private ExternalProcessingClient() {
+        // singleton
+    }
+
+    /**
+     * The pool is sized from the settings, which are loaded after the class. The connection manager of httpclient
+     * 4.2 replaces the deprecated one, but jets3t brings httpclient 4.1 to the build, which does not have it.
+     */
+    @SuppressWarnings("deprecation")
+    private synchronized void init() {
+        if (httpClient != null) {
+            return;
+        }
+        int concurrency = Settings.getSettings().getNsfConcurrency();
+        ThreadSafeClientConnManager connectionManager = new ThreadSafeClientConnManager();
+        connectionManager.setMaxTotal(2 * concurrency);
+        connectionManager.setDefaultMaxPerRoute(2 * concurrency);
+        httpClient = new DefaultHttpClient(connectionManager);
+        HttpConnectionParams.setConnectionTimeout(httpClient.getParams(), 30 * 1000);
+        HttpConnectionParams.setSoTimeout(httpClient.getParams(), (LONG_POLL_SECONDS + 60) * 1000);
+        submissions = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "nsf-submission");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Have an NSF file processed, along with the others submitted.
+     *
+     * @param url the external processing machine.
+     * @param nsfFile the NSF file.
+     * @param outputDir where the result goes.
+     * @return the processing, true when the result is in the output directory.
+     */
+    public Future<Boolean> submit(final String url, final File nsfFile, final File outputDir) {
+        init();
+        return submissions.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return process(url, nsfFile, outputDir);
+            }
+        });
+    }
+
+    private boolean process(String url, File nsfFile, File outputDir) throws IOException, InterruptedException {
+        long timeout = Settings.getSettings().getNsfTimeout();
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        ProcessingResult task = execute(new HttpPost(url + "/request-processing.html"));
+        if (task.getStatus() != ProcessingStatus.OK) {
+            logger.warn("Unable to request processing of {}, status: {} message: {}", nsfFile,
+                    task.getStatus(), task.getMessage());
+            return false;
+        }
+        String taskId = task.getMessage();
+        logger.info("Processing {} as task {}", nsfFile, taskId);
+        upload(url, taskId, nsfFile);
+        ProcessingResult result = waitForResult(url, taskId, deadline);
+        if (result == null) {
+            logger.warn("Gave up on {}, task {} is not done after {} minutes", nsfFile, taskId, timeout / 60000);
+            Stats.getInstance().addRetry(nsfFile.getPath(), "timed out");
+            return false;
+        }
+        if (result.getStatus() != ProcessingStatus.OK) {
+            logger.warn("Problem processing {}: {}", nsfFile, result.getMessage());
+            return false;
+        }
+        download(url, result.getMessage(), outputDir);
+        logger.info("Task {} is done", taskId);
+        return true;
+    }
+
+    private void upload(String url, String taskId, File nsfFile) throws IOException, InterruptedException {
+        long length = nsfFile.length();
+        int chunkSize = Settings.getSettings().getNsfChunkSize();
+        long offset = 0;
+        int failures = 0;
+        long delay = MIN_DELAY;
+        // at least one chunk, which is also the last one of an empty file
+        do {
+            int size = (int) Math.min(chunkSize, length - offset);
+            try {
+                Long received = uploadChunk(url, taskId, nsfFile, offset, size, offset + size >= length);
+                if (received == null) {
+                    logger.info("The processing machine does not take chunks, sending {} whole", nsfFile);
+                    uploadWhole(url, taskId, nsfFile);
+                    return;
+                }
+                if (received <= offset && size > 0) {
+                    throw new IOException("No progress uploading at " + offset);
+                }
+                offset = received;
+                failures = 0;
+                delay = MIN_DELAY;
+            } catch (IOException e) {
+                if (++failures > MAX_RETRIES) {
+                    throw e;
+                }
+                logger.warn("Upload of {} failed at {}, resuming: {}", nsfFile, offset, e.getMessage());
+                Thread.sleep(delay);
+                delay = Math.min(2 * delay, MAX_DELAY);
+                offset = getReceived(url, taskId, offset);
+            }
+        } while (offset < length);
+    }
+
+    /**
+     * @return the number of bytes the machine has, or null if it does not take chunks.
+     */
+    private Long uploadChunk(String url, String taskId, File nsfFile, long offset, int size, boolean last)
+            throws IOException {
+        HttpPost post = new HttpPost(url + "/submit-chunk.html?taskId=" + URLEncoder.encode(taskId, ENCODING)
+                + "&offset=" + offset + "&last=" + last);
+        try (FileInputStream fis = new FileInputStream(nsfFile)) {
+            fis.getChannel().position(offset);
+            InputStreamEntity entity = new InputStreamEntity(new BoundedInputStream(fis, size), size);
+            entity.setContentType("application/octet-stream");
+            post.setEntity(entity);
+            HttpResponse response = httpClient.execute(post);
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+                EntityUtils.consume(response.getEntity());
+                return null;
+            }
+            return toOffset(readResult(response));
+        }
+    }
+
+    // httpmime 4.2 has no entity builder, and the entity is not deprecated with the httpclient 4.1 of the build
+    @SuppressWarnings("deprecation")
+    private void uploadWhole(String url, String taskId, File nsfFile) throws IOException {
+        HttpPost post = new HttpPost(url + "/submit-processing.html");
+        MultipartEntity entity = new MultipartEntity();
+        entity.addPart("file", new FileBody(nsfFile));
+        entity.addPart("taskId", new StringBody(taskId));
+        post.setEntity(entity);
+        readResult(httpClient.execute(post));
+    }
+
+    /**
+     * @return where the upload stands, or where it was thought to be if the machine cannot tell.
+     */
+    private long getReceived(String url, String taskId, long offset) {
+        try {
+            return toOffset(execute(new HttpGet(url + "/upload-status.html?taskId="
+                    + URLEncoder.encode(taskId, ENCODING))));
+        } catch (IOException e) {
+            logger.warn("Could not get the upload status of task {}: {}", taskId, e.getMessage());
+            return offset;
+        }
+    }
+
+    private static long toOffset(ProcessingResult result) throws IOException {
+        if (result.getStatus() != ProcessingStatus.OK || result.getMessage() == null) {
+            throw new IOException("Upload refused: " + result.getMessage());
+        }
+        try {
+            return Long.parseLong(result.getMessage().trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected upload status: " + result.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the result, or null if the task is not done by the deadline.
+     */
+    private ProcessingResult waitForResult(String url, String taskId, long deadline)
+            throws IOException, InterruptedException {
+        String check = url + "/check-processing.html?taskId=" + URLEncoder.encode(taskId, ENCODING)
+                + "&wait=" + LONG_POLL_SECONDS;
+        long delay = MIN_DELAY;
+        int failures = 0;
+        long start;
+        while ((start = System.currentTimeMillis()) < deadline) {
+            ProcessingResult result = null;
+            try {
+                result = execute(new HttpGet(check));
+                failures = 0;
+            } catch (IOException e) {
+                if (++failures > MAX_RETRIES) {
+                    throw e;
+                }
+                logger.warn("Could not check task {}: {}", taskId, e.getMessage());
+            }
+            if (result != null && result.getStatus() != ProcessingStatus.IN_PROGRESS) {
+                return result;
+            }
+            // a machine which held the request for the wait is asked again right away
+            if (result == null || System.currentTimeMillis() - start < LONG_POLL_SECONDS * 1000L / 2) {
+                Thread.sleep(Math.max(Math.min(delay, deadline - System.currentTimeMillis()), 0));
+                delay = Math.min(2 * delay, MAX_DELAY);
+            }
+        }
+        return null;
+    }
+
+    private void download(String url, String file, File outputDir) throws IOException {
+        HttpResponse response = httpClient.execute(new HttpGet(url + "/result.html?file="
+                + URLEncoder.encode(file, ENCODING)));
+        HttpEntity entity = response.getEntity();
+        try {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) {
+                throw new IOException("Could not download " + file + ": " + response.getStatusLine());
+            }
+            outputDir.mkdirs();
+            try (InputStream in = entity.getContent();
+                    OutputStream out = new BufferedOutputStream(
+                            new FileOutputStream(new File(outputDir, new File(file).getName())), BUFFER)) {
+                byte[] buffer = new byte[BUFFER];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            }
+        } finally {
+            EntityUtils.consume(entity);
+        }
+    }
+
+    private ProcessingResult execute(HttpUriRequest request) throws IOException {
+        return readResult(httpClient.execute(request));
+    }
+
+    /**
+     * Read the answer of the machine, which also gives the connection back to the pool.
+     */
+    private ProcessingResult readResult(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        try {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) {
+                throw new IOException("Unexpected response: " + response.getStatusLine());
+            }
+            ProcessingResult result = gson.fromJson(EntityUtils.toString(entity, ENCODING), ProcessingResult.class);
+            if (result == null || result.getStatus() == null) {
+                throw new IOException("Empty response");
+            }
+            return result;
+        } catch (JsonParseException e) {
+            throw new IOException("Unexpected response", e);
+        } finally {
+            EntityUtils.consume(entity);
+        }
+    }
+}
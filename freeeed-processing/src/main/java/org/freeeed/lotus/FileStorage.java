@@ -16,20 +16,42 @@
 */
 package org.freeeed.lotus;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.charset.Charset;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.google.common.io.Files;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+/**
+ * Stores the emails extracted from an NSF file as records appended to a few segment files, instead of a file per
+ * email. A segment starts with a header, and each record is the length of the JSON of an email, followed by the
+ * JSON in UTF-8. A segment is closed, and the next one started, once it is large enough. The segments are read back
+ * with NSFRecordReader. A record which fails to be written is cut off, and the emails after it go to a new segment.
+ */
 public class FileStorage {
-    private static final String NSF_EXTRACTED_FILE_EXT = ".nsfe";
+    private static final Logger logger = LoggerFactory.getLogger(FileStorage.class);
+    /**
+     * The file a record is copied to for the email parser, read as UTF-8, unlike the files older versions stored
+     */
+    public static final String RECORD_FILE = "nsf-record.nsfe";
+    private static final long SEGMENT_SIZE = 256L * 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     
     private String outputDir;
-    private int fileCounter = 1;
+    private int segmentCounter = 0;
+    private File segmentFile;
+    private DataOutputStream segment;
+    private long segmentLength;
     private GsonBuilder gsonBuilder;
     
     public FileStorage() {
@@ -52,36 +74,76 @@ public class FileStorage {
     }
     
     public void storeEmail(LotusEmail email) {
-        String fileName = outputDir + fileCounter + NSF_EXTRACTED_FILE_EXT;   
-        
         Gson gson = gsonBuilder.create();
-        String json = gson.toJson(email);
+        byte[] json = gson.toJson(email).getBytes(UTF8);
         
-        FileWriter fw = null;
         try {
-            fw = new FileWriter(fileName);
-            fw.write(json);
-        } catch (Exception e) {
-            System.out.println("Problem saving file: " + fileName);
-            e.printStackTrace();
-        } finally {
-            fileCounter++;
-            if (fw != null) {
-                try {
-                    fw.close();
-                } catch (IOException e) {
-                }
+            if (segment == null || segmentLength >= SEGMENT_SIZE) {
+                close();
+                openSegment();
+            }
+            segment.writeInt(json.length);
+            segment.write(json);
+            segmentLength += 4 + json.length;
+        } catch (IOException e) {
+            logger.error("Problem saving email to segment {}", segmentFile, e);
+            abortSegment();
+        }
+    }
+    
+    private void openSegment() throws IOException {
+        segmentFile = new File(outputDir + "emails-" + (++segmentCounter) + NSFRecordReader.SEGMENT_EXT);
+        segmentLength = 0;
+        segment = new DataOutputStream(new BufferedOutputStream(openStream(segmentFile), 64 * 1024));
+        segment.write(NSFRecordReader.MAGIC);
+        segment.writeByte(NSFRecordReader.VERSION);
+        segmentLength = NSFRecordReader.MAGIC.length + 1;
+    }
+    
+    OutputStream openStream(File file) throws IOException {
+        return new FileOutputStream(file);
+    }
+    
+    /**
+     * Cut the segment back to its last complete record, so that the part of a record which failed to be written
+     * does not hide the records after it, and go on in a new segment.
+     */
+    private void abortSegment() {
+        close();
+        if (segmentFile == null || segmentFile.length() <= segmentLength) {
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            file.setLength(segmentLength);
+        } catch (IOException e) {
+            logger.error("Problem truncating segment {}", segmentFile, e);
+        }
+    }
+    
+    /**
+     * Close the segment being written, the emails stored after this go to the next one.
+     */
+    public void close() {
+        if (segment != null) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                logger.error("Problem closing segment {}", segmentFile, e);
             }
+            segment = null;
         }
     }
     
+    /**
+     * Read an email, from a file of its own as older versions stored them in the platform charset, or from a record
+     * copied out of a segment to RECORD_FILE.
+     */
     public LotusEmail readEmail(File file) {
         try {
-            String content = Files.toString(file, Charset.defaultCharset());
+            Charset charset = RECORD_FILE.equals(file.getName()) ? UTF8 : Charset.defaultCharset();
+            String content = Files.toString(file, charset);
             Gson gson = gsonBuilder.create();
-            
-            LotusEmail email = gson.fromJson(content, LotusEmail.class);
-            return email;
+            return gson.fromJson(content, LotusEmail.class);
         } catch (IOException e) {
             System.out.println("Unable to read file content: " + file);
         }
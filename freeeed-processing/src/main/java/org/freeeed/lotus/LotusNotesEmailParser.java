@@ -75,6 +75,8 @@ public class LotusNotesEmailParser {
             notesConnector.join();
         } catch (InterruptedException e) {
             e.printStackTrace();
+        } finally {
+            fileStorage.close();
         }
         
         if (!notesConnector.success) {
@@ -0,0 +1,99 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.lotus;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the records of a segment file written by FileStorage, one email at a time, so that a segment of any size
+ * takes the memory of one email. A record cut short at the end of the segment, as left by an extraction which did
+ * not finish, ends the segment.
+ *
+ * @author mark
+ */
+public class NSFRecordReader implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(NSFRecordReader.class);
+    public static final String SEGMENT_EXT = ".nsfs";
+    public static final byte[] MAGIC = {'N', 'S', 'F', 'S'};
+    static final int VERSION = 1;
+    /**
+     * No email is larger, a longer record is a corrupt segment
+     */
+    private static final int MAX_RECORD = 1024 * 1024 * 1024;
+    private final File segmentFile;
+    private final DataInputStream in;
+
+    /**
+     * @param segmentFile the segment.
+     * @throws IOException if the file is not a segment.
+     */
+    public NSFRecordReader(File segmentFile) throws IOException {
+        this.segmentFile = segmentFile;
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile), 64 * 1024));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            int version = in.readUnsignedByte();
+            if (!Arrays.equals(magic, MAGIC) || version != VERSION) {
+                throw new IOException("Not an NSF segment: " + segmentFile);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the next record, the JSON of an email in UTF-8, or null at the end of the segment.
+     * @throws IOException if the segment cannot be read.
+     */
+    public byte[] next() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_RECORD) {
+            throw new IOException("Corrupt record of length " + length + " in " + segmentFile);
+        }
+        byte[] record = new byte[length];
+        try {
+            in.readFully(record);
+        } catch (EOFException e) {
+            logger.warn("The last record of {} is cut short", segmentFile);
+            return null;
+        }
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -18,12 +18,14 @@ package org.freeeed.lotus;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
 import javax.mail.MessagingException;
 
+import org.freeeed.mail.EmailAttachment;
 import org.freeeed.mail.EmailDataProvider;
 
 
@@ -45,6 +47,11 @@ public class NSFXDataParser implements EmailDataProvider {
         return lotusEmail.getAttachmentNames();
     }
 
+    @Override
+    public List<EmailAttachment> getAttachments() {
+        return Collections.emptyList();
+    }
+
     @Override
     public List<String> getFrom() {
         return lotusEmail.getFrom();
@@ -0,0 +1,66 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * Attachment of a parsed email, decoded once while the message is parsed.
+ *
+ * @author mark
+ */
+public class EmailAttachment {
+
+    private String name;
+    private String contentType;
+    private byte[] content;
+
+    public EmailAttachment(String name, String contentType, byte[] content) {
+        this.name = name;
+        this.contentType = contentType;
+        this.content = content;
+    }
+
+    /**
+     * @return the attachment file name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the MIME content type, as declared in the message
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the decoded attachment bytes
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return a fresh stream over the decoded attachment bytes
+     */
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(content);
+    }
+}
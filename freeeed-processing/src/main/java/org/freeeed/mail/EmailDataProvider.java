@@ -29,6 +29,8 @@ public interface EmailDataProvider {
     
     List<String> getAttachmentNames();
     
+    List<EmailAttachment> getAttachments();
+    
     List<String> getFrom();
     
     String getSubject();
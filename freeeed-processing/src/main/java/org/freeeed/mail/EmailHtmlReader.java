@@ -0,0 +1,158 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.mail;
+
+import java.io.Reader;
+
+/**
+ * Reads the HTML of an email from the template, with the body written out a line at a time where the template has
+ * the @BODY@ placeholder, and the attachments where it has @ATTACH@. The body is never copied as a whole, which
+ * matters for emails of many megabytes.
+ *
+ * @author mark
+ */
+class EmailHtmlReader extends Reader {
+
+    private static final String BODY = "@BODY@";
+    private static final String ATTACH = "@ATTACH@";
+    private final String html;
+    private final String content;
+    private final String attachments;
+    private final boolean cdata;
+    private final int paragraphLines;
+    private int htmlPos;
+    /**
+     * Next character of the body to write, or -1 outside of the body
+     */
+    private int contentPos = -1;
+    private int contentEnd;
+    private int lineCount;
+    private String chunk = "";
+    private int chunkPos;
+
+    /**
+     * @param html the template, with all but the body and the attachments filled in.
+     * @param content the body.
+     * @param attachments the attachments, in HTML.
+     * @param cdata if the body lines should be wrapped in CDATA sections.
+     * @param paragraphLines if more than 0, the body, which the template puts in a paragraph, is broken into
+     * paragraphs of this many lines. The PDF rendering lays out a paragraph only when it ends, and keeps all of it
+     * until then, while consecutive paragraphs render just like the lines of one.
+     */
+    EmailHtmlReader(String html, String content, String attachments, boolean cdata, int paragraphLines) {
+        this.html = html;
+        this.content = content != null ? content : "";
+        this.attachments = attachments;
+        this.cdata = cdata;
+        this.paragraphLines = paragraphLines;
+    }
+
+    /**
+     * Does the template use the attachments, which are costly to prepare?
+     */
+    static boolean hasAttachments(String html) {
+        return html.contains(ATTACH);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (chunkPos == chunk.length() && !nextChunk()) {
+            return -1;
+        }
+        int count = Math.min(len, chunk.length() - chunkPos);
+        chunk.getChars(chunkPos, chunkPos + count, cbuf, off);
+        chunkPos += count;
+        return count;
+    }
+
+    @Override
+    public void close() {
+        htmlPos = html.length();
+        contentPos = -1;
+        chunk = "";
+        chunkPos = 0;
+    }
+
+    private boolean nextChunk() {
+        chunkPos = 0;
+        if (contentPos >= 0) {
+            if (contentPos < contentEnd) {
+                int lineEnd = content.indexOf('\n', contentPos);
+                if (lineEnd < 0 || lineEnd > contentEnd) {
+                    lineEnd = contentEnd;
+                }
+                chunk = toHtml(content.substring(contentPos, lineEnd));
+                contentPos = lineEnd + 1;
+                if (paragraphLines > 0 && ++lineCount % paragraphLines == 0 && contentPos < contentEnd) {
+                    chunk = chunk + "</p><p>";
+                }
+                return true;
+            }
+            contentPos = -1;
+        }
+        if (htmlPos >= html.length()) {
+            return false;
+        }
+        int next = nextPlaceholder();
+        if (next < 0) {
+            next = html.length();
+        }
+        if (next > htmlPos) {
+            chunk = html.substring(htmlPos, next);
+            htmlPos = next;
+        } else if (html.startsWith(BODY, htmlPos)) {
+            htmlPos += BODY.length();
+            startBody();
+        } else {
+            htmlPos += ATTACH.length();
+            chunk = " " + attachments;
+        }
+        return true;
+    }
+
+    private int nextPlaceholder() {
+        int body = html.indexOf(BODY, htmlPos);
+        int attach = html.indexOf(ATTACH, htmlPos);
+        if (body < 0 || attach < 0) {
+            return Math.max(body, attach);
+        }
+        return Math.min(body, attach);
+    }
+
+    /**
+     * The body lines are those of splitting it on new lines, trailing empty lines left out.
+     */
+    private void startBody() {
+        if (content.isEmpty()) {
+            chunk = " " + toHtml("");
+            return;
+        }
+        contentEnd = content.length();
+        while (contentEnd > 0 && content.charAt(contentEnd - 1) == '\n') {
+            --contentEnd;
+        }
+        contentPos = 0;
+        chunk = " ";
+    }
+
+    private String toHtml(String line) {
+        return cdata ? "<![CDATA[" + line + "]]><br/>" : line + "<br/>";
+    }
+}
@@ -17,11 +17,13 @@
 package org.freeeed.mail;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 
 import javax.mail.Message;
@@ -43,7 +45,11 @@ import com.google.common.base.Charsets;
  * @author mark
  */
 public class EmailUtil {
-    private static int bate = 0;
+    /**
+     * Lines of the body per paragraph when rendering to PDF, see EmailHtmlReader
+     */
+    private static final int PDF_PARAGRAPH_LINES = 100;
+    private static final AtomicInteger bate = new AtomicInteger();
     
     private static String HTML_TEMPLATE;
     static {
@@ -92,16 +98,29 @@ public class EmailUtil {
      */
     public static String createHtmlFromEmlFile(String emlFile, EmailDataProvider emlParser) throws IOException {
         String html = HTML_TEMPLATE;
-        return createHtmlFromEmlFileImp(html, emlFile, emlParser, true);
+        return IOUtils.toString(createHtmlFromEmlFileImp(html, emlFile, emlParser, true, 0));
     }
     
     public static String createHtmlFromEmlFileNoCData(String emlFile, EmailDataProvider emlParser) throws IOException {
         String html = HTML_TEMPLATE_NOCDATA;
-        return createHtmlFromEmlFileImp(html, emlFile, emlParser, false);
+        return IOUtils.toString(createHtmlFromEmlFileImp(html, emlFile, emlParser, false, 0));
+    }
+
+    /**
+     * Same as createHtmlFromEmlFile, but the html is read as it is needed, rather than built in one string, to
+     * render long emails to PDF with little memory.
+     *
+     * @param emlFile
+     * @param emlParser
+     * @return the html
+     */
+    public static Reader createHtmlReaderFromEmlFile(String emlFile, EmailDataProvider emlParser) throws IOException {
+        return createHtmlFromEmlFileImp(HTML_TEMPLATE, emlFile, emlParser, true, PDF_PARAGRAPH_LINES);
     }
     
-    private static String createHtmlFromEmlFileImp(String html, String emlFile, EmailDataProvider emlParser, boolean cdata) throws IOException {
-        html = html.replaceAll("@BATE@", Project.getProject().getProjectName() + "-" + Project.getProject().getProjectCode() + " " + (++bate));
+    private static Reader createHtmlFromEmlFileImp(String html, String emlFile, EmailDataProvider emlParser, boolean cdata,
+            int paragraphLines) throws IOException {
+        html = html.replaceAll("@BATE@", Project.getProject().getProjectName() + "-" + Project.getProject().getProjectCode() + " " + bate.incrementAndGet());
                 
         html = html.replaceAll("@FROM@", "" + Matcher.quoteReplacement(getAddressLine(emlParser.getFrom())));
         html = html.replaceAll("@TO@", "" + Matcher.quoteReplacement(getAddressLine(emlParser.getRecepient())));
@@ -120,39 +139,17 @@ public class EmailUtil {
         html = html.replaceAll("@DATE@", dateStr);
         
         try {
-            String bodyContent = prepareContent(emlParser.getContent(), cdata);
-            String bodyEsc = Matcher.quoteReplacement(bodyContent);
-            
-            html = html.replaceAll("@BODY@", " " + bodyEsc);
-            
-            String attachments = Matcher.quoteReplacement(getAttachments(
-                    emlParser.getAttachmentNames(), emlParser.getAttachmentsContent()));
-            html = html.replaceAll("@ATTACH@", " " + attachments);
+            String attachments = "";
+            if (EmailHtmlReader.hasAttachments(html)) {
+                // attachment text is extracted lazily by the parser, only ask for it when it goes into the image
+                Map<String, String> attachmentsContent = Project.getProject().isAddEmailAttachmentToPDF()
+                        ? emlParser.getAttachmentsContent() : null;
+                attachments = getAttachments(emlParser.getAttachmentNames(), attachmentsContent);
+            }
+            return new EmailHtmlReader(html, emlParser.getContent(), attachments, cdata, paragraphLines);
         } catch (MessagingException e) {
             throw new IOException(e);
         }
-        
-        return html;
-    }
-    
-    private static String prepareContent(String content, boolean cdata) {
-        StringBuffer result = new StringBuffer();
-        
-        String[] lines = content.split("\n");
-        for (String line : lines) {
-            if (cdata) {
-                result.append("<![CDATA[");
-            }
-            
-            result.append(line);
-            
-            if (cdata) {
-                result.append("]]>");
-            }
-            result.append("<br/>");
-        }
-        
-        return result.toString();
     }
     
     private static String getAddressLine(List<String> addresses) {
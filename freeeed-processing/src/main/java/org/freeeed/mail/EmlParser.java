@@ -16,13 +16,17 @@
 */
 package org.freeeed.mail;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -33,20 +37,40 @@ import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
 import javax.mail.Session;
-import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMultipart;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.tika.Tika;
 import org.apache.tika.exception.TikaException;
 import org.apache.tika.metadata.Metadata;
-import org.freeeed.services.Project;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Parses an eml file once: headers, text body and decoded attachments are kept, so that
+ * the metadata, text, PDF and HTML stages can all work from the same parsed message.
+ *
+ * HTML bodies are converted to text with Tika. Of the alternatives of a body, the content
+ * is the plain text one when there is one, while the text of the message keeps them all,
+ * as Tika parsing the whole message did.
+ */
 public class EmlParser implements EmailDataProvider {
     private static final Logger log = LoggerFactory.getLogger(EmlParser.class);
-    
+
+    private static final Session session;
+    private static final Tika tika;
+    // comes before any charset the HTML declares itself
+    private static final String UTF8_META = "<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">";
+
+    static {
+        System.setProperty("mail.mime.address.strict", "false");
+        System.setProperty("mail.mime.decodeparameters", "true");
+        session = Session.getDefaultInstance(System.getProperties());
+        tika = new Tika();
+        tika.setMaxStringLength(10 * 1024 * 1024);
+    }
+
     private File emailFile;
     private ArrayList<String> to;
     private Address[] _bcc;
@@ -54,9 +78,10 @@ public class EmlParser implements EmailDataProvider {
     private Address[] _to;
     private Address[] _from;
     private String _subject;
-    private Object _content;
-    private MimeMessage email;
+    private String _content = "";
+    private StringBuilder bodyText = new StringBuilder();
     private List<String> _attachments;
+    private List<EmailAttachment> attachments;
     private Date _date;
     private Date _sentDate;
     private Map<String, String> attachmentsContent;
@@ -65,33 +90,23 @@ public class EmlParser implements EmailDataProvider {
     public EmlParser(File emailFile) {
         this.emailFile = emailFile;
         _attachments = new ArrayList<>();
-        System.setProperty("mail.mime.address.strict", "false");
-        System.setProperty("mail.mime.decodeparameters", "true");
-        attachmentsContent = new HashMap<>();
-        
+        attachments = new ArrayList<>();
+
         parseEmail();
     }
 
     private void parseEmail() {
-        java.util.Properties properties = System.getProperties();
-        Session session = Session.getDefaultInstance(properties);
-        
-        FileInputStream fis = null;
-        try {
-            fis = new FileInputStream(emailFile);
-            email = new MimeMessage(session, fis);
+        try (InputStream is = new BufferedInputStream(new FileInputStream(emailFile))) {
+            MimeMessage email = new MimeMessage(session, is);
             _bcc = email.getRecipients(RecipientType.BCC);
             _cc = email.getRecipients(RecipientType.CC);
             _to = email.getRecipients(RecipientType.TO);
             _from = email.getFrom();
             _subject = email.getSubject();
-            _content =  email.getContent();
             _date = email.getReceivedDate();
             _sentDate = email.getSentDate();
-            //System.out.println("content type: " + email.getContentType());
-            //System.out.println("\nsubject: " + email.getSubject());
-            //to = EmailUtil.parseAddressLines(email
-             //       .getHeader(Message.RecipientType.TO.toString()));
+
+            _content = dumpPart(email);
         } catch (MessagingException e) {
             throw new IllegalStateException("illegal state issue", e);
         } catch (FileNotFoundException e) {
@@ -99,17 +114,9 @@ public class EmlParser implements EmailDataProvider {
                     + emailFile.getAbsolutePath(), e);
         } catch (Exception e) {
             log.error("Problem parsing eml file", e);
-        } finally {
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
     }
-    
+
     private List<String> getAddressAsList(Address[] address) {
         List<String> result = new ArrayList<String>();
         if(address!=null) {
@@ -119,111 +126,173 @@ public class EmlParser implements EmailDataProvider {
         }
         return result;
     }
-    
+
     @Override
     public List<String> getFrom() {
         return getAddressAsList(_from);
     }
-    
+
     @Override
     public List<String> getRecepient() {
         return getAddressAsList(_to);
     }
-    
+
     @Override
     public List<String> getCC() {
         return getAddressAsList(_cc);
     }
-    
+
     @Override
     public List<String> getBCC() {
         return getAddressAsList(_bcc);
     }
-    
+
+    /**
+     * @return the BCC addresses the way Tika lists them, unquoted and decoded, one per address.
+     */
+    public List<String> getBCCDisplayNames() {
+        List<String> result = new ArrayList<>();
+        if (_bcc != null) {
+            for (Address a : _bcc) {
+                if (a instanceof InternetAddress && ((InternetAddress) a).getPersonal() != null) {
+                    InternetAddress address = (InternetAddress) a;
+                    result.add(address.getPersonal() + " <" + address.getAddress() + ">");
+                } else {
+                    result.add(a instanceof InternetAddress ? ((InternetAddress) a).getAddress() : a.toString());
+                }
+            }
+        }
+        return result;
+    }
+
     @Override
     public String getSubject() {
         return _subject;
     }
-    
+
     @Override
     public Date getDate() {
         return _date;
     }
-    
+
     @Override
-    public String getContent() throws MessagingException, IOException {
-        if (_content instanceof String) {
-            return _content.toString();
-        } 
-        
-        if (_content instanceof MimeMultipart) {
-            MimeMultipart cnt = (MimeMultipart)_content;
-            int size = cnt.getCount();
-            StringBuilder res = new StringBuilder();
-            
-            for (int i = 0; i < size; ++i) {
-                BodyPart bp = cnt.getBodyPart(i);
-                res.append(dumpPart(bp));
-            } 
-            return res.toString();
-        }
-        
-        return "";
+    public String getContent() {
+        return _content;
     }
-    
+
+    /**
+     * @return the text of every body part, the alternatives included, without the attachments.
+     */
+    public String getBodyText() {
+        return bodyText.toString();
+    }
+
+    /**
+     * Walk one part of the message, returning its text and collecting
+     * the attachments it holds.
+     */
     private String dumpPart(Part p) throws MessagingException, IOException {
-        
-        StringBuilder buf = new StringBuilder();
-        if(p.isMimeType("text/plain")) {
-            buf.append(p.getContent());
-        } else if(p.isMimeType("multipart/*")) {
-            Multipart mp = (Multipart)p.getContent();
-            int count = mp.getCount();
-            for (int i = 0; i < count; i++) {
+        if (isAttachment(p)) {
+            addAttachment(p);
+            return "";
+        }
+        if (p.isMimeType("text/plain") || p.isMimeType("text/html")) {
+            return addBody(p);
+        }
+        if (p.isMimeType("multipart/alternative")) {
+            // the alternatives are bodies, never attachments
+            Multipart mp = (Multipart) p.getContent();
+            String plain = null;
+            String other = null;
+            for (int i = 0; i < mp.getCount(); i++) {
                 BodyPart bp = mp.getBodyPart(i);
-                if (bp.isMimeType("text/plain")) {
-                    buf.append(dumpPart(bp));
+                String text = bp.isMimeType("text/*") ? addBody(bp) : dumpPart(bp);
+                if (plain == null && bp.isMimeType("text/plain")) {
+                    plain = text;
+                } else if (other == null && !text.isEmpty()) {
+                    other = text;
                 }
             }
-        } else if (p.isMimeType("message/rfc822")) {
-            buf.append(dumpPart((Part)p.getContent()));
-        } else
-            {
-            String disp = null;
-            try {
-                disp = p.getDisposition();                
-            } catch (Exception e) {
+            return plain != null ? plain : other != null ? other : "";
+        }
+        if (p.isMimeType("multipart/*")) {
+            Multipart mp = (Multipart) p.getContent();
+            StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < mp.getCount(); i++) {
+                buf.append(dumpPart(mp.getBodyPart(i)));
             }
-            
-            String filename = "attach-" + (attachmentSeq++);
-            try {
-                filename = p.getFileName();
-            } catch (Exception e) {
-                log.error("Problem getting the real attachment name", e);
+            return buf.toString();
+        }
+        if (p.isMimeType("message/rfc822")) {
+            return dumpPart((Part) p.getContent());
+        }
+        if (!Part.INLINE.equalsIgnoreCase(getDisposition(p))) {
+            addAttachment(p);
+        }
+        return "";
+    }
+
+    private static boolean isAttachment(Part p) {
+        return Part.ATTACHMENT.equalsIgnoreCase(getDisposition(p));
+    }
+
+    private static String getDisposition(Part p) {
+        try {
+            return p.getDisposition();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Keep the text of a body part, converting HTML to text.
+     */
+    private String addBody(Part p) throws MessagingException, IOException {
+        String text;
+        Object content = p.getContent();
+        if (content instanceof String && p.isMimeType("text/plain")) {
+            text = (String) content;
+        } else {
+            Metadata metadata = new Metadata();
+            InputStream is;
+            if (content instanceof String) {
+                // decoded by the charset of the part, which Tika would otherwise guess from the bytes
+                metadata.set(Metadata.CONTENT_TYPE, "text/html; charset=UTF-8");
+                is = new ByteArrayInputStream((UTF8_META + content).getBytes("UTF-8"));
+            } else {
+                metadata.set(Metadata.CONTENT_TYPE, p.getContentType());
+                is = p.getInputStream();
             }
-            
-            if (disp == null || disp.equalsIgnoreCase(Part.ATTACHMENT)) {
-                log.debug("Adding attachment: " + filename);
-                
-                _attachments.add(filename);
-                
-                if (Project.getProject().isAddEmailAttachmentToPDF()) {
-                    log.debug("Parsing the attachment content with Tika");
-                    
-                    Tika tika = new Tika();
-                    tika.setMaxStringLength(10 * 1024 * 1024);
-                    try {
-                        String attachmentContent = tika.parseToString(p.getInputStream(), new Metadata());
-                        attachmentsContent.put(filename, attachmentContent);
-                        
-                        log.debug("Attachment content parsed!");
-                    } catch (TikaException e) {
-                        log.error("Problem parsing attachment", e);
-                    }
-                }
+            try {
+                text = tika.parseToString(is, metadata);
+            } catch (TikaException e) {
+                log.error("Problem parsing the email body", e);
+                text = "";
+            } finally {
+                is.close();
             }
         }
-        return buf.toString();
+        bodyText.append(text).append("\n");
+        return text;
+    }
+
+    private void addAttachment(Part p) throws MessagingException, IOException {
+        String filename = null;
+        try {
+            filename = p.getFileName();
+        } catch (Exception e) {
+            log.error("Problem getting the real attachment name", e);
+        }
+        if (filename == null) {
+            filename = "attach-" + (attachmentSeq++);
+        }
+
+        log.debug("Adding attachment: " + filename);
+
+        _attachments.add(filename);
+        try (InputStream is = p.getInputStream()) {
+            attachments.add(new EmailAttachment(filename, p.getContentType(), IOUtils.toByteArray(is)));
+        }
     }
 
     public static void main(String argv[]) throws MessagingException, IOException {
@@ -265,45 +334,53 @@ public class EmlParser implements EmailDataProvider {
     /**
      * @return the to
      */
+    @Override
     public List<String> getTo() {
         return getAddressAsList(_to);
     }
-    
+
+    @Override
     public List<String> getAttachmentNames() {
         return _attachments;
     }
 
+    @Override
+    public List<EmailAttachment> getAttachments() {
+        return attachments;
+    }
+
+    @Override
     public Date getSentDate() {
         return this._sentDate;
     }
-    
-    public void saveAttachments() throws MessagingException, IOException {
-        if (email.isMimeType("text/*")) {
-            // no attachments there - this is just the email itself
-        }
-        // TODO - why repeat the code?
-        if (email.isMimeType("multipart/alternative")) {
-            Multipart mp = (Multipart) email.getContent();
-            for (int i = 0; i < mp.getCount(); i++) {
-                MimeBodyPart bodyPart = (MimeBodyPart) mp.getBodyPart(i);
-                String attachmentFileName = bodyPart.getFileName();
-                if (attachmentFileName != null) {
-                    bodyPart.saveFile(attachmentFileName);
-                }
+
+    public void saveAttachments() throws IOException {
+        for (EmailAttachment attachment : attachments) {
+            try (FileOutputStream fos = new FileOutputStream(attachment.getName())) {
+                fos.write(attachment.getContent());
             }
-        } else if (email.isMimeType("multipart/*")) {
-            Multipart mp = (Multipart) email.getContent();
-            for (int i = 0; i < mp.getCount(); i++) {
-                MimeBodyPart bodyPart = (MimeBodyPart) mp.getBodyPart(i);
-                String attachmentFileName = bodyPart.getFileName();
-                if (attachmentFileName != null) {
-                    bodyPart.saveFile(attachmentFileName);
+        }
+    }
+
+    /**
+     * Text of every attachment, extracted with Tika the first time it is asked for.
+     *
+     * @return map of attachment name to attachment text.
+     */
+    @Override
+    public synchronized Map<String, String> getAttachmentsContent() {
+        if (attachmentsContent == null) {
+            attachmentsContent = new LinkedHashMap<>();
+            for (EmailAttachment attachment : attachments) {
+                log.debug("Parsing the attachment content with Tika");
+                try {
+                    String attachmentContent = tika.parseToString(attachment.getInputStream(), new Metadata());
+                    attachmentsContent.put(attachment.getName(), attachmentContent);
+                } catch (IOException | TikaException e) {
+                    log.error("Problem parsing attachment", e);
                 }
             }
         }
-    }
-    
-    public Map<String, String> getAttachmentsContent() {
         return attachmentsContent;
     }
 }
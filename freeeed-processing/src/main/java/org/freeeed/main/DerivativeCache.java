@@ -0,0 +1,310 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Set;
+
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.tika.metadata.Metadata;
+import org.freeeed.html.HtmlBundle;
+import org.freeeed.services.Project;
+import org.freeeed.services.Settings;
+import org.freeeed.services.Util;
+import org.freeeed.util.DiskCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.Files;
+
+/**
+ * Keeps what is derived from a document, its parsed metadata and text, its PDF image and its HTML preview, in a
+ * cache on disk, so that a re-run of a project with other culling or output options does not parse, OCR and image
+ * every document again. Entries are keyed by the MD5 of the document content, its extension, which picks the
+ * parser, the stage, and the settings the stage depends on. The cache is a bounded DiskCache, shared by the tasks
+ * of a node and kept between runs.
+ *
+ * @author mark
+ */
+public class DerivativeCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DerivativeCache.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    public static final String METADATA = "metadata";
+    public static final String PDF = "pdf";
+    public static final String HTML = "html";
+    /**
+     * Stands for the document name in the cached HTML bundles, since the name of the temporary file changes from
+     * run to run
+     */
+    private static final String DOCUMENT_NAME = "${document}";
+    private static DerivativeCache instance = new DerivativeCache();
+    private volatile DiskCache cache;
+
+    public static DerivativeCache getInstance() {
+        return instance;
+    }
+
+    private DerivativeCache() {
+    }
+
+    /**
+     * Open the cache given in the settings, unless its size is 0.
+     */
+    public synchronized void init() {
+        long cacheSize = Settings.getSettings().getDerivativeCacheSize();
+        cache = cacheSize > 0
+                ? new DiskCache(new File(Settings.getSettings().getDerivativeCacheDir()), cacheSize) : null;
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Key of a stage of a document.
+     *
+     * @param discoveryFile the document.
+     * @param stage METADATA, PDF or HTML.
+     * @return the key, or null if there is no cache.
+     * @throws IOException if the document cannot be read.
+     */
+    public String getKey(DiscoveryFile discoveryFile, String stage) throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+        MD5Hash fileHash = discoveryFile.getFileHash();
+        if (fileHash == null) {
+            // not kept on the discovery file, where it would become the key of emails
+            try (InputStream is = new FileInputStream(discoveryFile.getPath())) {
+                fileHash = MD5Hash.digest(is);
+            }
+        }
+        String extension = Util.getExtension(discoveryFile.getRealFileName());
+        StringBuilder key = new StringBuilder();
+        key.append(fileHash).append('\t').append(extension != null ? extension.toLowerCase() : "")
+                .append('\t').append(stage);
+        if (METADATA.equals(stage)) {
+            Project project = Project.getProject();
+            key.append('\t').append(project.isExtractEmbedded())
+                    .append('\t').append(project.isOcrEnabled());
+            if (project.isOcrEnabled()) {
+                key.append('\t').append(project.getOcrMinTextPerPage())
+                        .append('\t').append(project.getOcrMinImageSize());
+            }
+        }
+        return MD5Hash.digest(key.toString()).toString();
+    }
+
+    /**
+     * Add the cached metadata of a document.
+     *
+     * @param key key of the METADATA stage.
+     * @param metadata metadata to add to.
+     * @return true on a hit.
+     */
+    public boolean getMetadata(String key, Metadata metadata) {
+        byte[] value = get(key);
+        if (value == null) {
+            return false;
+        }
+        try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(value))) {
+            Metadata cached = new Metadata();
+            int nameCount = dis.readInt();
+            for (int i = 0; i < nameCount; ++i) {
+                String name = dis.readUTF();
+                int valueCount = dis.readInt();
+                for (int j = 0; j < valueCount; ++j) {
+                    cached.add(name, readString(dis));
+                }
+            }
+            for (String name : cached.names()) {
+                metadata.remove(name);
+                for (String cachedValue : cached.getValues(name)) {
+                    metadata.add(name, cachedValue);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            logger.warn("Broken cached metadata {}", key, e);
+            return false;
+        }
+    }
+
+    /**
+     * Cache the metadata of a document, without the names set before parsing, which belong to this copy of the
+     * document.
+     *
+     * @param key key of the METADATA stage.
+     * @param metadata parsed metadata.
+     * @param presetNames names to leave out.
+     */
+    public void putMetadata(String key, Metadata metadata, Set<String> presetNames) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(bytes)) {
+            int nameCount = 0;
+            for (String name : metadata.names()) {
+                if (!presetNames.contains(name)) {
+                    ++nameCount;
+                }
+            }
+            dos.writeInt(nameCount);
+            for (String name : metadata.names()) {
+                if (!presetNames.contains(name)) {
+                    String[] values = metadata.getValues(name);
+                    dos.writeUTF(name);
+                    dos.writeInt(values.length);
+                    for (String value : values) {
+                        writeString(dos, value);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not cache metadata {}", key, e);
+            return;
+        }
+        put(key, bytes.toByteArray());
+    }
+
+    /**
+     * Write a cached file, such as a PDF image.
+     *
+     * @param key key of the stage.
+     * @param file file to write.
+     * @return true on a hit.
+     * @throws IOException if the file cannot be written.
+     */
+    public boolean getFile(String key, File file) throws IOException {
+        byte[] value = get(key);
+        if (value == null) {
+            return false;
+        }
+        Files.write(value, file);
+        return true;
+    }
+
+    /**
+     * Cache a file, if it exists.
+     *
+     * @param key key of the stage.
+     * @param file file to cache.
+     * @throws IOException if the file cannot be read.
+     */
+    public void putFile(String key, File file) throws IOException {
+        if (key != null && file.exists()) {
+            put(key, Util.getFileContent(file.getPath()));
+        }
+    }
+
+    /**
+     * Get the cached HTML preview of a document.
+     *
+     * @param key key of the HTML stage.
+     * @param documentName name of the document, which the preview files are named after.
+     * @return the preview, or null if it is not cached.
+     */
+    public HtmlBundle getHtml(String key, String documentName) {
+        byte[] value = get(key);
+        if (value == null) {
+            return null;
+        }
+        try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(value))) {
+            HtmlBundle bundle = new HtmlBundle();
+            // the preview HTML is in the platform encoding, like the rest of the HTML processing
+            String html = new String(readBytes(dis), Charset.defaultCharset());
+            bundle.setHtml(html.replace(DOCUMENT_NAME, documentName).getBytes(Charset.defaultCharset()));
+            int assetCount = dis.readInt();
+            for (int i = 0; i < assetCount; ++i) {
+                String name = dis.readUTF().replace(DOCUMENT_NAME, documentName);
+                bundle.addAsset(name, readBytes(dis));
+            }
+            return bundle;
+        } catch (IOException e) {
+            logger.warn("Broken cached HTML {}", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Cache the HTML preview of a document.
+     *
+     * @param key key of the HTML stage.
+     * @param bundle the preview.
+     * @param documentName name of the document, which the preview files are named after.
+     */
+    public void putHtml(String key, HtmlBundle bundle, String documentName) {
+        if (key == null || bundle.getHtml() == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(bytes)) {
+            String html = new String(bundle.getHtml(), Charset.defaultCharset());
+            writeBytes(dos, html.replace(documentName, DOCUMENT_NAME).getBytes(Charset.defaultCharset()));
+            dos.writeInt(bundle.getAssets().size());
+            for (java.util.Map.Entry<String, byte[]> asset : bundle.getAssets().entrySet()) {
+                dos.writeUTF(asset.getKey().replace(documentName, DOCUMENT_NAME));
+                writeBytes(dos, asset.getValue());
+            }
+        } catch (IOException e) {
+            logger.warn("Could not cache HTML {}", key, e);
+            return;
+        }
+        put(key, bytes.toByteArray());
+    }
+
+    private byte[] get(String key) {
+        DiskCache diskCache = cache;
+        return key != null && diskCache != null ? diskCache.get(key) : null;
+    }
+
+    private void put(String key, byte[] value) {
+        DiskCache diskCache = cache;
+        if (key != null && diskCache != null) {
+            diskCache.put(key, value);
+        }
+    }
+
+    /**
+     * Document text may be longer than writeUTF allows.
+     */
+    private static void writeString(DataOutputStream dos, String value) throws IOException {
+        writeBytes(dos, value.getBytes(UTF8));
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        return new String(readBytes(dis), UTF8);
+    }
+
+    private static void writeBytes(DataOutputStream dos, byte[] bytes) throws IOException {
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream dis) throws IOException {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return bytes;
+    }
+}
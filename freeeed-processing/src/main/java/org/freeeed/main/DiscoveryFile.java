@@ -17,7 +17,11 @@
 package org.freeeed.main;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.hadoop.io.MD5Hash;
+import org.freeeed.mail.EmailDataProvider;
 
 /**
  * Container to pass around additional information about a file needed in discovery.
@@ -32,6 +36,12 @@ public class DiscoveryFile {
     private String realFileName;
     private boolean hasAttachments;
     private boolean hasParent;
+    private EmailDataProvider emailData;
+    private String originalPath;
+    private String mediaType;
+    private long lastModified;
+    private MD5Hash fileHash;
+    private List<DiscoveryFile> embeddedFiles = new ArrayList<>();
 
     /**
      * Constructor with two parameters and the rest defaults: no attachments or parents.
@@ -144,4 +154,90 @@ public class DiscoveryFile {
     public void setHasParent(boolean hasParent) {
         this.hasParent = hasParent;
     }
+
+    /**
+     * @return the parsed email, if this file is an email and it has already been parsed, or null
+     */
+    public EmailDataProvider getEmailData() {
+        return emailData;
+    }
+
+    /**
+     * Keep the parsed email with the file, so that later stages do not parse it again.
+     *
+     * @param emailData the parsed email
+     */
+    public void setEmailData(EmailDataProvider emailData) {
+        this.emailData = emailData;
+    }
+
+    /**
+     * @return the original path of an embedded document, or null for documents which come from the input itself
+     */
+    public String getOriginalPath() {
+        return originalPath;
+    }
+
+    /**
+     * @param originalPath the original path of an embedded document, under the path of its container
+     */
+    public void setOriginalPath(String originalPath) {
+        this.originalPath = originalPath;
+    }
+
+    /**
+     * @return attachments and embedded objects extracted from this file while it was parsed
+     */
+    public List<DiscoveryFile> getEmbeddedFiles() {
+        return embeddedFiles;
+    }
+
+    /**
+     * @param embeddedFile attachment or embedded object extracted from this file
+     */
+    public void addEmbeddedFile(DiscoveryFile embeddedFile) {
+        embeddedFiles.add(embeddedFile);
+    }
+
+    /**
+     * @return the media type found by DocumentTypeDetector, or null if not yet detected
+     */
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * @param mediaType the detected media type
+     */
+    public void setMediaType(String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    /**
+     * @return the file system last modified time of the document, as it was in the collection, 0 if unknown
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @param lastModified the file system last modified time of the document, as it was in the collection
+     */
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return the MD5 of the file content, if it was already computed, or null
+     */
+    public MD5Hash getFileHash() {
+        return fileHash;
+    }
+
+    /**
+     * @param fileHash the MD5 of the file content
+     */
+    public void setFileHash(MD5Hash fileHash) {
+        this.fileHash = fileHash;
+    }
 }
@@ -0,0 +1,141 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.main;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.freeeed.services.Project;
+import org.freeeed.services.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pre-parse filter. It checks the criteria which are cheap to evaluate - file system dates, size, extension, detected
+ * type and path - before any parsing, OCR or imaging is done. The criteria come from the project settings.
+ *
+ * @author mark
+ */
+public class DocumentFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentFilter.class);
+    public static final String DATE = "date";
+    public static final String SIZE = "size";
+    public static final String EXTENSION = "extension";
+    public static final String TYPE = "type";
+    public static final String PATH = "path";
+    private static final long ONE_DAY = 24L * 60 * 60 * 1000;
+    private long dateFrom;
+    private long dateTo;
+    private long minSize;
+    private long maxSize;
+    private Set<String> extensions = new HashSet<>();
+    private List<String> types = new ArrayList<>();
+    private List<Pattern> paths = new ArrayList<>();
+
+    public DocumentFilter(Project project) {
+        dateFrom = parseDate(project.getFilterDateFrom());
+        dateTo = parseDate(project.getFilterDateTo());
+        if (dateTo > 0) {
+            // the end date is inclusive
+            dateTo += ONE_DAY;
+        }
+        minSize = project.getFilterMinSize();
+        maxSize = project.getFilterMaxSize();
+        for (String extension : project.getFilterExcludeExtensions()) {
+            extensions.add(extension.toLowerCase());
+        }
+        for (String type : project.getFilterExcludeTypes()) {
+            types.add(type.toLowerCase());
+        }
+        for (String path : project.getFilterExcludePaths()) {
+            paths.add(Pattern.compile(path));
+        }
+    }
+
+    /**
+     * Find the first criterion which filters out the document.
+     *
+     * @param discoveryFile the document, with its type already detected.
+     * @param originalPath path of the document in the collection.
+     * @return the criterion, or null if the document passes the filter.
+     */
+    public String getFilteringCriterion(DiscoveryFile discoveryFile, String originalPath) {
+        long lastModified = discoveryFile.getLastModified();
+        // documents without a real file system date, such as emails, are not filtered by date
+        if (lastModified > 0) {
+            if ((dateFrom > 0 && lastModified < dateFrom) || (dateTo > 0 && lastModified >= dateTo)) {
+                return DATE;
+            }
+        }
+        if (minSize > 0 || maxSize > 0) {
+            long size = discoveryFile.getPath().length();
+            if (size < minSize || (maxSize > 0 && size > maxSize)) {
+                return SIZE;
+            }
+        }
+        if (!extensions.isEmpty()
+                && extensions.contains(Util.getExtension(discoveryFile.getRealFileName()).toLowerCase())) {
+            return EXTENSION;
+        }
+        if (!types.isEmpty() && isExcludedType(discoveryFile.getMediaType())) {
+            return TYPE;
+        }
+        if (originalPath != null) {
+            for (Pattern path : paths) {
+                if (path.matcher(originalPath).find()) {
+                    return PATH;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean isExcludedType(String mediaType) {
+        if (mediaType == null) {
+            return false;
+        }
+        mediaType = mediaType.toLowerCase();
+        for (String type : types) {
+            if (type.endsWith("/*")) {
+                if (mediaType.startsWith(type.substring(0, type.length() - 1))) {
+                    return true;
+                }
+            } else if (mediaType.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long parseDate(String date) {
+        if (date == null || date.trim().isEmpty()) {
+            return 0;
+        }
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd").parse(date.trim()).getTime();
+        } catch (ParseException e) {
+            logger.warn("Wrong filter date, expected yyyy-MM-dd: {}", date);
+            return 0;
+        }
+    }
+}
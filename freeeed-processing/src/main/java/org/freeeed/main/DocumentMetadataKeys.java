@@ -30,4 +30,6 @@ public interface DocumentMetadataKeys {
     public static final String LINK_NATIVE = "native_link";
     public static final String LINK_TEXT = "text_link";
     public static final String LINK_EXCEPTION = "exception_link";
+    public static final String LINK_PDF = "pdf_link";
+    public static final String FILTERED = "filtered";
 }
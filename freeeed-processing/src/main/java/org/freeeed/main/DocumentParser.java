@@ -16,20 +16,32 @@
  */
 package org.freeeed.main;
 
-import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
 
 import org.apache.tika.Tika;
+import org.apache.tika.config.TikaConfig;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.extractor.EmbeddedDocumentExtractor;
 import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
 import org.freeeed.lotus.NSFXDataParser;
+import org.freeeed.mail.EmailAttachment;
 import org.freeeed.mail.EmailDataProvider;
 import org.freeeed.mail.EmlParser;
+import org.freeeed.services.Project;
 import org.freeeed.services.Util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
 
 /**
  * This class is separate to have all Tika-related stuff in a one place It may contain more parsing specifics later on
@@ -39,6 +51,8 @@ public class DocumentParser {
     private static final Logger logger = LoggerFactory.getLogger(DocumentParser.class);
     private static DocumentParser instance = new DocumentParser();
     private Tika tika;
+    // picks the parser by the Content-Type, without detection
+    private Parser typedParser;
 
     public static DocumentParser getInstance() {
         return instance;
@@ -47,6 +61,7 @@ public class DocumentParser {
     private DocumentParser() {
         tika = new Tika();
         tika.setMaxStringLength(10 * 1024 * 1024);
+        typedParser = TikaConfig.getDefaultConfig().getParser();
     }
 
     public void parse(DiscoveryFile discoveryFile, DocumentMetadata metadata) {
@@ -59,24 +74,37 @@ public class DocumentParser {
             logger.debug("Detected extension: {}", extension);
 
             if ("eml".equalsIgnoreCase(extension)) {
+                // the message is parsed only once, and the result is kept for imaging and HTML preview
                 EmlParser emlParser = new EmlParser(discoveryFile.getPath());
+                discoveryFile.setEmailData(emlParser);
                 extractEmlFields(discoveryFile.getPath().getPath(), metadata, emlParser);
-
-                inputStream = TikaInputStream.get(discoveryFile.getPath());
-                String text = tika.parseToString(inputStream, metadata);
-                metadata.set(DocumentMetadataKeys.DOCUMENT_TEXT, text);
+                boolean extractEmbedded = Project.getProject().isExtractEmbedded();
+                if (extractEmbedded) {
+                    // attachments become child documents, with their own text
+                    EmbeddedFileExtractor extractor = new EmbeddedFileExtractor(discoveryFile);
+                    for (EmailAttachment attachment : emlParser.getAttachments()) {
+                        extractor.addEmbeddedFile(attachment.getInputStream(), attachment.getName());
+                    }
+                }
+                extractEmlText(metadata, emlParser, !extractEmbedded);
 
                 parseDateTimeReceivedFields(metadata);
                 parseDateTimeSentFields(metadata, emlParser.getSentDate());
             } else if ("nsfe".equalsIgnoreCase(extension)) {
                 NSFXDataParser emlParser = new NSFXDataParser(discoveryFile.getPath());
+                discoveryFile.setEmailData(emlParser);
                 extractEmlFields(discoveryFile.getPath().getPath(), metadata, emlParser);
             } else {
-                // the given input stream is closed by the parseToString method (see Tika documentation)
-                // we will close it just in case :)            
-                inputStream = TikaInputStream.get(discoveryFile.getPath());
-                String text = tika.parseToString(inputStream, metadata);
-                metadata.setDocumentText(text);
+                String mediaType = DocumentTypeDetector.getInstance().detect(discoveryFile);
+                if (DocumentTypeDetector.getInstance().isBinary(mediaType)) {
+                    // metadata only, executables and unknown binary files have no text to extract
+                    metadata.set(Metadata.CONTENT_TYPE, mediaType);
+                    metadata.setDocumentText("");
+                } else {
+                    inputStream = TikaInputStream.get(discoveryFile.getPath());
+                    String text = parseText(inputStream, metadata, discoveryFile, mediaType);
+                    metadata.setDocumentText(text);
+                }
             }
 
         } catch (Exception e) {
@@ -99,7 +127,39 @@ public class DocumentParser {
         }
     }
 
+    /**
+     * Parse the document text the way Tika.parseToString does, with two differences. When the detected type is
+     * specific enough, the parser is picked by it, without detecting the type again. In the recursive extraction
+     * mode, the embedded documents go to the EmbeddedFileExtractor instead of the text of the container.
+     */
+    private String parseText(InputStream inputStream, DocumentMetadata metadata, DiscoveryFile discoveryFile,
+            String mediaType) throws IOException, TikaException {
+        Parser parser = tika.getParser();
+        if (DocumentTypeDetector.getInstance().isSpecific(mediaType)) {
+            metadata.set(Metadata.CONTENT_TYPE, mediaType);
+            parser = typedParser;
+        }
+        WriteOutContentHandler handler = new WriteOutContentHandler(tika.getMaxStringLength());
+        ParseContext context = new ParseContext();
+        // embedded documents are of unknown type, they go through detection
+        context.set(Parser.class, tika.getParser());
+        if (Project.getProject().isExtractEmbedded()) {
+            context.set(EmbeddedDocumentExtractor.class, new EmbeddedFileExtractor(discoveryFile));
+        }
+        try {
+            parser.parse(inputStream, new BodyContentHandler(handler), metadata, context);
+        } catch (SAXException e) {
+            if (!handler.isWriteLimitReached(e)) {
+                throw new TikaException("Unexpected SAX processing failure", e);
+            }
+        }
+        return handler.toString();
+    }
+
     private void parseDateTimeSentFields(DocumentMetadata metadata, Date sentDate) {
+        if (sentDate == null) {
+            return;
+        }
         SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
         String date = df.format(sentDate);
         parseDateTimeFields(metadata, date);
@@ -180,6 +240,41 @@ public class DocumentParser {
         }
     }
 
+    /**
+     * Fill the text and the standard message fields from the already parsed email, the way Tika would have
+     * filled them by parsing the file once more.
+     */
+    private void extractEmlText(DocumentMetadata metadata, EmlParser emlParser, boolean includeAttachments) {
+        StringBuilder text = new StringBuilder(emlParser.getBodyText());
+        if (includeAttachments) {
+            for (String attachmentText : emlParser.getAttachmentsContent().values()) {
+                text.append("\n").append(attachmentText);
+            }
+        }
+        metadata.setDocumentText(text.toString());
+        metadata.set(Metadata.CONTENT_TYPE, "message/rfc822");
+
+        List<String> from = emlParser.getFrom();
+        if (!from.isEmpty()) {
+            metadata.set(Metadata.AUTHOR, from.get(0).replace("\"", ""));
+        }
+        // part of the email hash, with the other message fields
+        for (String bcc : emlParser.getBCCDisplayNames()) {
+            metadata.add(Metadata.MESSAGE_BCC, bcc);
+        }
+        if (emlParser.getSentDate() != null) {
+            String date = formatIsoDate(emlParser.getSentDate());
+            metadata.setMessageDate(date);
+            metadata.setMessageCreationDate(date);
+        }
+    }
+
+    private static String formatIsoDate(Date date) {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return sdf.format(date);
+    }
+
     private static String prepareContent(String content) {
         StringBuilder result = new StringBuilder();
 
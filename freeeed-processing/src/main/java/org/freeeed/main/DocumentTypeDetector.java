@@ -0,0 +1,258 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.mime.MimeTypes;
+import org.freeeed.services.Util;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Detects the type of a document from its leading bytes only, before any parsing. Our own signatures (PST, NSF,
+ * MBOX, and the segments of NSF emails) are checked first, everything else goes to the Tika magic and file name detection, which is loaded once.
+ * The detected type is kept on the DiscoveryFile, so later stages do not detect it again.
+ *
+ * @author mark
+ */
+public class DocumentTypeDetector {
+
+    public static final String PST = "application/vnd.ms-outlook-pst";
+    public static final String NSF = "application/vnd.lotus-notes";
+    public static final String MBOX = "application/mbox";
+    public static final String NSF_RECORDS = "application/x-freeeed-nsf-records";
+    public static final String ZIP = "application/zip";
+    public static final String TAR = "application/x-tar";
+    public static final String GTAR = "application/x-gtar";
+    public static final String GZIP = "application/x-gzip";
+    public static final String BZIP2 = "application/x-bzip2";
+    public static final String SEVEN_Z = "application/x-7z-compressed";
+    public static final String OCTET_STREAM = "application/octet-stream";
+    private static final byte[] PST_SIGNATURE = {'!', 'B', 'D', 'N'};
+    // ODS file header of a Notes database
+    private static final byte[] NSF_SIGNATURE = {0x1A, 0x00, 0x00, 0x04, 0x00, 0x00};
+    private static final byte[] MBOX_SIGNATURE = {'F', 'r', 'o', 'm', ' '};
+    /**
+     * The From_ line of a mailbox: the sender, or "-", and the date in the asctime format, which may have a time zone
+     */
+    private static final Pattern MBOX_FROM_LINE = Pattern.compile(
+            "From \\S+ +[A-Z][a-z]{2} [A-Z][a-z]{2} +\\d{1,2} \\d{1,2}:\\d{2}(:\\d{2})? .*\\d{4}.*");
+    /**
+     * The header line which the From_ line is followed by, the first of the message
+     */
+    private static final Pattern MBOX_HEADER_LINE = Pattern.compile("[!-9;-~]+:.*");
+    // magic and version of a segment written by the NSF extraction
+    private static final byte[] NSF_RECORDS_SIGNATURE = {'N', 'S', 'F', 'S', 1};
+    private static final byte[] ZIP_SIGNATURE = {'P', 'K', 0x03, 0x04};
+    /**
+     * A bzip2 stream, followed by its block size from '1' to '9', of which Tika knows only '9'
+     */
+    private static final byte[] BZIP2_SIGNATURE = {'B', 'Z', 'h'};
+    /**
+     * Executables, libraries and other binaries which have no text worth extracting
+     */
+    private static final Set<String> BINARY_TYPES = new HashSet<>(Arrays.asList(
+            OCTET_STREAM,
+            "application/x-msdownload",
+            "application/x-dosexec",
+            "application/x-executable",
+            "application/x-sharedlib",
+            "application/x-elf",
+            "application/x-coredump",
+            "application/x-object",
+            "application/x-mach-o",
+            "application/x-mach-o-executable",
+            "application/java-vm"));
+    /**
+     * Archives which the archive processor opens itself, entry by entry, instead of parsing them as one document
+     */
+    private static final Set<String> ARCHIVE_TYPES = new HashSet<>(Arrays.asList(TAR, GTAR, GZIP, BZIP2, SEVEN_Z));
+    private static DocumentTypeDetector instance = new DocumentTypeDetector();
+    private MimeTypes mimeTypes;
+    private int headerSize;
+
+    public static DocumentTypeDetector getInstance() {
+        return instance;
+    }
+
+    private DocumentTypeDetector() {
+        mimeTypes = MimeTypes.getDefaultMimeTypes();
+        headerSize = Math.max(mimeTypes.getMinLength(), NSF_SIGNATURE.length);
+    }
+
+    /**
+     * Detect the type of the discovery file, unless it is already known.
+     *
+     * @param discoveryFile file to detect.
+     * @return media type, such as "application/pdf".
+     * @throws IOException if the file cannot be read.
+     */
+    public String detect(DiscoveryFile discoveryFile) throws IOException {
+        if (discoveryFile.getMediaType() == null) {
+            discoveryFile.setMediaType(detect(discoveryFile.getPath(), discoveryFile.getRealFileName()));
+        }
+        return discoveryFile.getMediaType();
+    }
+
+    /**
+     * Detect the type of a file from its first bytes and its name.
+     *
+     * @param file file to detect.
+     * @param fileName original file name, which may differ from the name of the file on disk.
+     * @return media type, "application/octet-stream" if nothing better is found.
+     * @throws IOException if the file cannot be read.
+     */
+    public String detect(File file, String fileName) throws IOException {
+        byte[] header = new byte[headerSize];
+        int length = 0;
+        try (InputStream is = new FileInputStream(file)) {
+            int count;
+            while (length < header.length && (count = is.read(header, length, header.length - length)) != -1) {
+                length += count;
+            }
+        }
+        return detect(header, length, fileName);
+    }
+
+    /**
+     * Detect the type from the leading bytes of a document.
+     *
+     * @param header leading bytes.
+     * @param length number of valid bytes in the header.
+     * @param fileName original file name, may be null.
+     * @return media type.
+     */
+    public String detect(byte[] header, int length, String fileName) {
+        if (startsWith(header, length, PST_SIGNATURE)) {
+            return PST;
+        }
+        if (startsWith(header, length, NSF_SIGNATURE)
+                || (fileName != null && "nsf".equalsIgnoreCase(Util.getExtension(fileName)))) {
+            return NSF;
+        }
+        if (startsWith(header, length, NSF_RECORDS_SIGNATURE)) {
+            return NSF_RECORDS;
+        }
+        if (startsWith(header, length, BZIP2_SIGNATURE) && length > BZIP2_SIGNATURE.length
+                && header[BZIP2_SIGNATURE.length] >= '1' && header[BZIP2_SIGNATURE.length] <= '9') {
+            return BZIP2;
+        }
+        if (isMbox(header, length)
+                && (fileName == null || !"eml".equalsIgnoreCase(Util.getExtension(fileName)))) {
+            return MBOX;
+        }
+        Metadata metadata = new Metadata();
+        if (fileName != null) {
+            metadata.set(Metadata.RESOURCE_NAME_KEY, new File(fileName).getName());
+        }
+        try {
+            MediaType type = mimeTypes.detect(new ByteArrayInputStream(header, 0, length), metadata);
+            if (MediaType.OCTET_STREAM.equals(type) && startsWith(header, length, ZIP_SIGNATURE)) {
+                return ZIP;
+            }
+            return type.toString();
+        } catch (IOException e) {
+            // can't happen with an in-memory stream
+            return OCTET_STREAM;
+        }
+    }
+
+    /**
+     * Executables and unknown binary content get metadata only, without text extraction.
+     *
+     * @param mediaType detected type.
+     * @return true for system and binary files.
+     */
+    public boolean isBinary(String mediaType) {
+        return mediaType != null && BINARY_TYPES.contains(mediaType);
+    }
+
+    /**
+     * Tar archives, compressed or not, and 7z archives have their entries processed as documents of their own.
+     *
+     * @param mediaType detected type.
+     * @return true for the archives which the archive processor opens.
+     */
+    public boolean isArchive(String mediaType) {
+        return mediaType != null && ARCHIVE_TYPES.contains(mediaType);
+    }
+
+    /**
+     * Is the detected type good enough to pick the parser, or should the parser detect the type of the whole file,
+     * as it has to for Office containers and archives?
+     *
+     * @param mediaType detected type.
+     * @return true if the parser for this type can be used directly.
+     */
+    public boolean isSpecific(String mediaType) {
+        return mediaType != null
+                && !isBinary(mediaType)
+                && !mediaType.startsWith("application/x-tika-")
+                && !ZIP.equals(mediaType)
+                && !PST.equals(mediaType)
+                && !NSF.equals(mediaType)
+                && !MBOX.equals(mediaType)
+                && !NSF_RECORDS.equals(mediaType);
+    }
+
+    /**
+     * A text which starts with "From " is a mailbox only if the line is a real From_ line, followed by a message
+     * header, and not a memo "From the desk of" or any other text.
+     */
+    private static boolean isMbox(byte[] header, int length) {
+        if (!startsWith(header, length, MBOX_SIGNATURE)) {
+            return false;
+        }
+        String[] lines = new String(header, 0, length, Charsets.ISO_8859_1).split("\r?\n", 3);
+        return lines.length == 3 && isMboxMessageStart(lines[0], lines[1]);
+    }
+
+    /**
+     * Does a message of a mailbox start here, with a real From_ line followed by the first header of the message?
+     * The mailbox processor splits the messages by the same rule which the mailbox is detected by.
+     *
+     * @param fromLine the line which starts with "From ", without its line end.
+     * @param nextLine the line after it, without its line end.
+     * @return true if a message starts with these lines.
+     */
+    static boolean isMboxMessageStart(String fromLine, String nextLine) {
+        return MBOX_FROM_LINE.matcher(fromLine).matches() && MBOX_HEADER_LINE.matcher(nextLine).matches();
+    }
+
+    private static boolean startsWith(byte[] header, int length, byte[] signature) {
+        if (length < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; ++i) {
+            if (header[i] != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.main;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tika.extractor.EmbeddedDocumentExtractor;
+import org.apache.tika.metadata.Metadata;
+import org.freeeed.services.Settings;
+import org.freeeed.services.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.ContentHandler;
+
+/**
+ * Receives the embedded documents from Tika while the container is being parsed, and keeps each one as a child
+ * of the container, to be processed as a document of its own. The embedded documents are not parsed into the
+ * text of the container.
+ *
+ * @author mark
+ */
+public class EmbeddedFileExtractor implements EmbeddedDocumentExtractor {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddedFileExtractor.class);
+    private DiscoveryFile container;
+    private int embeddedCount = 0;
+
+    public EmbeddedFileExtractor(DiscoveryFile container) {
+        this.container = container;
+    }
+
+    @Override
+    public boolean shouldParseEmbedded(Metadata metadata) {
+        return true;
+    }
+
+    @Override
+    public void parseEmbedded(InputStream stream, ContentHandler handler, Metadata metadata, boolean outputHtml)
+            throws IOException {
+        addEmbeddedFile(stream, metadata.get(Metadata.RESOURCE_NAME_KEY));
+    }
+
+    /**
+     * Write the embedded document to a temporary file and add it to the children of the container.
+     *
+     * @param stream embedded document content, not closed here.
+     * @param name name of the embedded document, if known.
+     * @throws IOException on any problem writing the temporary file.
+     */
+    public void addEmbeddedFile(InputStream stream, String name) throws IOException {
+        ++embeddedCount;
+        if (name == null || name.trim().isEmpty()) {
+            name = "embedded-" + embeddedCount;
+        }
+        String extension = Util.getExtension(name);
+        File tmpDir = new File(Settings.getSettings().getTmpDir());
+        tmpDir.mkdirs();
+        File tempFile = File.createTempFile("embedded", extension.isEmpty() ? null : "." + extension, tmpDir);
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+            IOUtils.copy(stream, os);
+        }
+        logger.trace("Extracted {} from {} to {}", name, container.getRealFileName(), tempFile.getPath());
+
+        DiscoveryFile embeddedFile = new DiscoveryFile(tempFile.getPath(), name);
+        embeddedFile.setHasParent(true);
+        container.addEmbeddedFile(embeddedFile);
+    }
+}
@@ -18,15 +18,17 @@ package org.freeeed.main;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Set;
 
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.MD5Hash;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Mapper.Context;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
@@ -41,10 +43,13 @@ import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.Version;
 import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.PagedText;
 import org.freeeed.data.index.LuceneIndex;
 import org.freeeed.data.index.SolrIndex;
 import org.freeeed.html.DocumentToHtml;
+import org.freeeed.html.HtmlBundle;
 import org.freeeed.ocr.OCRProcessor;
+import org.freeeed.print.ConversionSupervisor;
 import org.freeeed.print.OfficePrint;
 import org.freeeed.services.Project;
 import org.freeeed.services.Settings;
@@ -53,19 +58,21 @@ import org.freeeed.services.Util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.io.Files;
-
 /**
  * Opens the file, creates Lucene index and searches, then updates Hadoop map
  */
 public abstract class FileProcessor {
 
     private static Logger logger = LoggerFactory.getLogger(FileProcessor.class);
+    private static final String FILTERED_COUNTER_GROUP = "Filtered";
+    private static final String SYSTEM_FILE = "system";
+    private static final String KNOWN_FILE = "known";
     private String zipFileName;
     private String singleFileName;
     private Context context;            // Hadoop processing result context
     protected int docCount;
     private LuceneIndex luceneIndex;
+    private DocumentFilter documentFilter;
 
     public String getZipFileName() {
         return zipFileName;
@@ -105,6 +112,7 @@ public abstract class FileProcessor {
     public FileProcessor(Context context, LuceneIndex luceneIndex) {
         this.context = context;
         this.luceneIndex = luceneIndex;
+        this.documentFilter = new DocumentFilter(Project.getProject());
     }
 
     /**
@@ -127,46 +135,149 @@ public abstract class FileProcessor {
         if (!project.isMapCountWithinRange()) {
             return;
         }
+        processDocument(discoveryFile);
+    }
+
+    /**
+     * Process one document, and then the documents extracted from it, if any.
+     *
+     * @param discoveryFile object with info for processing discovery.
+     * @throws IOException on any IO problem.
+     * @throws InterruptedException throws by Hadoop.
+     */
+    private void processDocument(DiscoveryFile discoveryFile)
+            throws IOException, InterruptedException {
+        Project project = Project.getProject();
         // update application log
         logger.trace("Processing file: {}", discoveryFile.getRealFileName());
         // set to true if file matches any query params
         boolean isResponsive = false;
+        // set to true if the file is not to be processed further
+        boolean isDropped = false;
+        // set to true if the file is filtered out, but still goes to the output with its metadata
+        boolean isMetadataOnly = false;
         // exception message to place in output if error occurs
         String exceptionMessage = null;
         // Document metadata, derived from Tika metadata class
         DocumentMetadata metadata = new DocumentMetadata();
         try {
-            metadata.setOriginalPath(getOriginalDocumentPath(discoveryFile));
+            metadata.setOriginalPath(discoveryFile.getOriginalPath() != null
+                    ? discoveryFile.getOriginalPath() : getOriginalDocumentPath(discoveryFile));
             metadata.setHasAttachments(discoveryFile.isHasAttachments());
             metadata.setHasParent(discoveryFile.isHasParent());
-            // extract file contents with Tika
-            // Tika metadata class contains references to metadata and file text
-            extractMetadata(discoveryFile, metadata);
-            if (project.isRemoveSystemFiles() && Util.isSystemFile(metadata)) {
+            // the type comes from the first bytes only, system files are dropped before any parsing
+            String mediaType = DocumentTypeDetector.getInstance().detect(discoveryFile);
+            String criterion = documentFilter.getFilteringCriterion(discoveryFile, metadata.getOriginalPath());
+            if (criterion == null && KnownFileFilter.getInstance().isKnown(discoveryFile)) {
+                logger.debug("File {} is in the known file list", metadata.getOriginalPath());
+                criterion = KNOWN_FILE;
+                isDropped = true;
+            } else if (criterion == null && project.isRemoveSystemFiles()
+                    && DocumentTypeDetector.getInstance().isBinary(mediaType)) {
                 logger.info("File {} is recognized as system file and is not processed further",
                         discoveryFile.getPath().getPath());
-                return;
+                criterion = SYSTEM_FILE;
+                isDropped = true;
+            } else if (criterion != null) {
+                logger.debug("File {} is filtered out by {}", metadata.getOriginalPath(), criterion);
+                if (project.isFilterMetadataOnly()) {
+                    isMetadataOnly = true;
+                } else {
+                    isDropped = true;
+                }
+            }
+            if (criterion != null) {
+                countFiltered(criterion);
+            }
+            if (isMetadataOnly) {
+                // no parsing, OCR, culling or imaging, just what is known without opening the document
+                metadata.set(Metadata.CONTENT_TYPE, mediaType);
+                metadata.set(DocumentMetadataKeys.FILTERED, criterion);
+                metadata.setCustodian(project.getCurrentCustodian());
+            } else if (!isDropped) {
+                // extract file contents with Tika
+                // Tika metadata class contains references to metadata and file text
+                extractMetadata(discoveryFile, metadata);
+                if (!discoveryFile.getEmbeddedFiles().isEmpty()) {
+                    metadata.setHasAttachments(true);
+                }
+                metadata.setCustodian(project.getCurrentCustodian());
+                // search through Tika results using Lucene
+                isResponsive = isResponsive(metadata);
             }
-            metadata.setCustodian(project.getCurrentCustodian());
-            // search through Tika results using Lucene
-            isResponsive = isResponsive(metadata);
         } catch (Exception e) {
             e.printStackTrace(System.out);
             logger.warn("Exception processing file ", e);
             exceptionMessage = e.getMessage();
         }
+        if (isDropped) {
+            deleteEmbeddedFiles(discoveryFile);
+            return;
+        }
         // update exception message if error
         if (exceptionMessage != null) {
             metadata.set(DocumentMetadataKeys.PROCESSING_EXCEPTION, exceptionMessage);
         }
-        if (isResponsive || exceptionMessage != null) {
-            createImage(discoveryFile);
-            if (isPreview()) {
-                createHtmlForDocument(discoveryFile);
-            }
-            emitAsMap(discoveryFile, metadata);
+        MD5Hash hash = null;
+        if (isMetadataOnly) {
+            hash = emitAsMap(discoveryFile, metadata, null);
+        } else if (isResponsive || exceptionMessage != null) {
+            HtmlBundle htmlBundle = createImageAndHtml(discoveryFile, metadata.getOriginalPath());
+            hash = emitAsMap(discoveryFile, metadata, htmlBundle);
         }
         logger.trace("Is the file responsive: {}", isResponsive);
+        if (!discoveryFile.getEmbeddedFiles().isEmpty()) {
+            if (hash == null) {
+                hash = Util.createKeyHash(discoveryFile.getPath(), metadata);
+            }
+            processEmbeddedFiles(discoveryFile, metadata.getOriginalPath(), hash);
+        }
+    }
+
+    /**
+     * Process the attachments and embedded objects extracted from a document, each one as a document of its own.
+     * The children are keyed by the hash of the top-level parent, so that the whole family stays together.
+     *
+     * @param discoveryFile the container.
+     * @param parentPath original path of the container.
+     * @param hash key hash of the container.
+     */
+    private void processEmbeddedFiles(DiscoveryFile discoveryFile, String parentPath, MD5Hash hash)
+            throws IOException, InterruptedException {
+        MD5Hash parentHash = discoveryFile.getHash() != null ? discoveryFile.getHash() : hash;
+        for (DiscoveryFile embeddedFile : discoveryFile.getEmbeddedFiles()) {
+            embeddedFile.setHash(parentHash);
+            embeddedFile.setOriginalPath(parentPath + File.separator + embeddedFile.getRealFileName());
+            try {
+                processDocument(embeddedFile);
+            } finally {
+                embeddedFile.getPath().delete();
+            }
+        }
+        discoveryFile.getEmbeddedFiles().clear();
+    }
+
+    /**
+     * Count the documents filtered out before parsing, by criterion, both in the job stats and in the Hadoop
+     * counters.
+     *
+     * @param criterion the criterion which filtered the document out.
+     */
+    private void countFiltered(String criterion) {
+        Stats.getInstance().increaseFilteredCount(criterion);
+        if (context != null) {
+            Counter counter = context.getCounter(FILTERED_COUNTER_GROUP, criterion);
+            if (counter != null) {
+                counter.increment(1);
+            }
+        }
+    }
+
+    private void deleteEmbeddedFiles(DiscoveryFile discoveryFile) {
+        for (DiscoveryFile embeddedFile : discoveryFile.getEmbeddedFiles()) {
+            embeddedFile.getPath().delete();
+        }
+        discoveryFile.getEmbeddedFiles().clear();
     }
 
     private boolean isPreview() {
@@ -176,38 +287,108 @@ public abstract class FileProcessor {
         return Project.getProject().isCreatePDF();
     }
 
-    private void createImage(DiscoveryFile discoveryFile) {
-        if (isPdf()) {
-            OfficePrint.getInstance().createPdf(discoveryFile.getPath().getPath(),
-                    discoveryFile.getPath().getPath() + ".pdf", discoveryFile.getRealFileName());
-        }
+    /**
+     * The reducer only runs on Hadoop, the Windows runner images everything here.
+     */
+    private boolean isImageAfterDedup() {
+        return Project.getProject().isImageAfterDedup() && PlatformUtil.isNix();
     }
 
-    private void createHtmlForDocument(DiscoveryFile discoveryFile) throws IOException {
-        //first make sure the output directory is empty
-        File outputDir = new File(getHtmlOutputDir());
-        if (outputDir.exists()) {
-            Util.deleteDirectory(outputDir);
+    /**
+     * Create the PDF image and the HTML preview of a document, as the project asks. When both go through the
+     * office, they come from one conversion.
+     *
+     * @param discoveryFile the document.
+     * @param originalPath original path of the document, which names it on the retry list.
+     * @return the HTML preview, or null if there is none.
+     */
+    private HtmlBundle createImageAndHtml(DiscoveryFile discoveryFile, String originalPath) throws IOException {
+        ConversionSupervisor supervisor = ConversionSupervisor.getInstance();
+        int retryCount = Stats.getInstance().getRetryCount();
+        supervisor.setDocument(originalPath);
+        try {
+            DerivativeCache derivativeCache = DerivativeCache.getInstance();
+            File pdfFile = null;
+            String pdfCacheKey = null;
+            // otherwise the reducer images the masters only, from the native bytes
+            if (isPdf() && !isImageAfterDedup()) {
+                pdfFile = new File(discoveryFile.getPath().getPath() + ".pdf");
+                pdfCacheKey = getCacheKey(discoveryFile, DerivativeCache.PDF);
+                if (derivativeCache.getFile(pdfCacheKey, pdfFile)) {
+                    logger.trace("PDF image of {} is found in the cache", discoveryFile.getRealFileName());
+                    pdfFile = null;
+                }
+            }
+            HtmlBundle htmlBundle = null;
+            if (isPreview()) {
+                htmlBundle = createHtmlForDocument(discoveryFile, pdfFile);
+                if (pdfFile != null && pdfFile.exists()) {
+                    // exported by the conversion of the preview
+                    derivativeCache.putFile(pdfCacheKey, pdfFile);
+                    pdfFile = null;
+                }
+            }
+            // the placeholder of a failed imaging is not cached, the next run may do better
+            if (pdfFile != null && OfficePrint.getInstance().createPdf(discoveryFile.getPath().getPath(),
+                    pdfFile.getPath(), discoveryFile.getRealFileName(), discoveryFile.getEmailData())) {
+                derivativeCache.putFile(pdfCacheKey, pdfFile);
+            }
+            return htmlBundle;
+        } finally {
+            supervisor.setDocument(null);
+            countRetries(Stats.getInstance().getRetryCount() - retryCount);
         }
+    }
 
-        outputDir.mkdirs();
-
-        //convert using open office (special processing for eml files)
-        String outputHtmlFileName = outputDir.getPath() + File.separator + discoveryFile.getPath().getName() + ".html";
-        DocumentToHtml.getInstance().createHtml(discoveryFile.getPath().getPath(),
-                outputHtmlFileName, discoveryFile.getRealFileName());
-        //link the image files to be downloaded by the UI file download controller
-        prepareImageSrcForUI(outputHtmlFileName, discoveryFile.getPath().getName());
+    /**
+     * Count the documents put on the retry list in the Hadoop counters, since the list itself stays on the node
+     * of the task.
+     *
+     * @param count number of documents.
+     */
+    private void countRetries(int count) {
+        if (context != null && count > 0) {
+            Counter counter = context.getCounter(ConversionSupervisor.RETRY_COUNTER_GROUP,
+                    ConversionSupervisor.RETRY_COUNTER);
+            if (counter != null) {
+                counter.increment(count);
+            }
+        }
     }
 
-    private void prepareImageSrcForUI(String htmlFileName, String docName) throws IOException {
-        File htmlFile = new File(htmlFileName);
-        String htmlContent = Files.toString(htmlFile, Charset.defaultCharset());
-        String replaceWhat = "SRC=\"" + Pattern.quote(docName) + "_html_";
-        String replacement = "SRC=\"filedownload.html?action=exportHtmlImage&docPath=" + docName + "_html_";
-        htmlContent = htmlContent.replaceAll(replaceWhat, replacement);
+    /**
+     * @return the derivative cache key of a stage of the document, or null if there is no cache, or if the
+     * document cannot be read, in which case it is processed as usual.
+     */
+    private String getCacheKey(DiscoveryFile discoveryFile, String stage) {
+        try {
+            return DerivativeCache.getInstance().getKey(discoveryFile, stage);
+        } catch (IOException e) {
+            logger.warn("No cache key for {}", discoveryFile.getPath().getPath(), e);
+            return null;
+        }
+    }
 
-        Files.write(htmlContent, htmlFile, Charset.defaultCharset());
+    /**
+     * Create the HTML preview of a document in memory, for the output.
+     *
+     * @param discoveryFile the document.
+     * @param pdfFile the PDF image to export from the same office conversion, or null.
+     * @return the HTML and its images.
+     */
+    private HtmlBundle createHtmlForDocument(DiscoveryFile discoveryFile, File pdfFile) throws IOException {
+        String docName = discoveryFile.getPath().getName();
+        DerivativeCache derivativeCache = DerivativeCache.getInstance();
+        String cacheKey = getCacheKey(discoveryFile, DerivativeCache.HTML);
+        HtmlBundle htmlBundle = derivativeCache.getHtml(cacheKey, docName);
+        if (htmlBundle == null) {
+            //convert using open office (special processing for eml files)
+            htmlBundle = DocumentToHtml.getInstance().createHtmlBundle(discoveryFile.getPath().getPath(),
+                    discoveryFile.getRealFileName(), discoveryFile.getEmailData(), new File(getHtmlOutputDir()),
+                    pdfFile);
+            derivativeCache.putHtml(cacheKey, htmlBundle, docName);
+        }
+        return htmlBundle;
     }
 
     private String getHtmlOutputDir() {
@@ -225,14 +406,17 @@ public abstract class FileProcessor {
      *
      * @param fileName Filename of file search performed on.
      * @param metadata Metadata extracted from search.
+     * @return the hash of the document, used in the key.
      * @throws IOException thrown on any IO problem.
      * @throws InterruptedException thrown by Hadoop processing.
      */
     @SuppressWarnings("unchecked")
-    private void emitAsMap(DiscoveryFile discoveryFile, DocumentMetadata metadata)
+    private MD5Hash emitAsMap(DiscoveryFile discoveryFile, DocumentMetadata metadata, HtmlBundle htmlBundle)
             throws IOException, InterruptedException {
-        MapWritable mapWritable = createMapWritable(metadata, discoveryFile.getPath().getPath());
-        MD5Hash hash = Util.createKeyHash(discoveryFile.getPath(), metadata);
+        MapWritable mapWritable = createMapWritable(metadata, discoveryFile.getPath().getPath(), htmlBundle);
+        // the file hash may already be there from the known file check
+        MD5Hash hash = discoveryFile.getFileHash() != null
+                ? discoveryFile.getFileHash() : Util.createKeyHash(discoveryFile.getPath(), metadata);
         // if this is a standalone file, not an attachment, create its key as a hash, otherwise
         // use pre-computed hash (which is that of its parent) together with this file's hash as a compound key         
         String mrkey = discoveryFile.getHash() == null ? hash.toString() + "\t#"
@@ -248,6 +432,7 @@ public abstract class FileProcessor {
         // update stats
         // TODO use counters
         Stats.getInstance().increaseItemCount();
+        return hash;
     }
 
     /**
@@ -258,7 +443,8 @@ public abstract class FileProcessor {
      * @return Created map
      * @throws IOException
      */
-    private MapWritable createMapWritable(Metadata metadata, String fileName) throws IOException {
+    private MapWritable createMapWritable(Metadata metadata, String fileName, HtmlBundle htmlBundle)
+            throws IOException {
         MapWritable mapWritable = new MapWritable();
         String[] names = metadata.names();
         for (String name : names) {
@@ -277,43 +463,25 @@ public abstract class FileProcessor {
             }
         }
 
-        createMapWritableForHtml(mapWritable);
+        if (htmlBundle != null) {
+            createMapWritableForHtml(mapWritable, htmlBundle);
+        }
 
         return mapWritable;
     }
 
-    private void createMapWritableForHtml(MapWritable mapWritable) throws IOException {
-        //html processing
-
-        //keep the track of all generated files - html + images
-        List<String> htmlFiles = new ArrayList<String>();
-
-        File htmlOutputDir = new File(getHtmlOutputDir());
-        //get all generated files
-        String[] files = htmlOutputDir.list();
-        if (files != null) {
-            for (String file : files) {
-                String htmlFileName = htmlOutputDir.getPath() + File.separator + file;
-                File htmlFile = new File(htmlFileName);
-                if (htmlFile.exists()) {
-                    if ("html".equalsIgnoreCase(Util.getExtension(htmlFile.getName()))) {
-                        byte[] htmlBytes = Util.getFileContent(htmlFileName);
-                        mapWritable.put(new Text(ParameterProcessing.NATIVE_AS_HTML_NAME), new BytesWritable(htmlBytes));
-                    } else {
-                        byte[] htmlBytes = Util.getFileContent(htmlFileName);
-                        String key = ParameterProcessing.NATIVE_AS_HTML + "_" + file;
-                        mapWritable.put(new Text(key), new BytesWritable(htmlBytes));
-
-                        htmlFiles.add(file);
-                    }
-                }
-            }
+    private void createMapWritableForHtml(MapWritable mapWritable, HtmlBundle htmlBundle) {
+        if (htmlBundle.getHtml() != null) {
+            mapWritable.put(new Text(ParameterProcessing.NATIVE_AS_HTML_NAME), new BytesWritable(htmlBundle.getHtml()));
         }
 
-        if (htmlFiles.size() > 0) {
+        //keep the track of all the images of the html
+        if (!htmlBundle.getAssets().isEmpty()) {
             StringBuilder sb = new StringBuilder();
-            for (String file : htmlFiles) {
-                sb.append(file).append(",");
+            for (java.util.Map.Entry<String, byte[]> asset : htmlBundle.getAssets().entrySet()) {
+                String key = ParameterProcessing.NATIVE_AS_HTML + "_" + asset.getKey();
+                mapWritable.put(new Text(key), new BytesWritable(asset.getValue()));
+                sb.append(asset.getKey()).append(",");
             }
 
             mapWritable.put(new Text(ParameterProcessing.NATIVE_AS_HTML), new Text(sb.toString()));
@@ -469,13 +637,27 @@ public abstract class FileProcessor {
      * @return DocumentMetadata container receiving metadata.
      */
     private void extractMetadata(DiscoveryFile discoveryFile, DocumentMetadata metadata) {
+        // a document parsed in an earlier run comes from the cache, with its OCR text
+        DerivativeCache derivativeCache = DerivativeCache.getInstance();
+        String cacheKey = getCacheKey(discoveryFile, DerivativeCache.METADATA);
+        if (derivativeCache.getMetadata(cacheKey, metadata)) {
+            logger.trace("Metadata of {} is found in the cache", discoveryFile.getRealFileName());
+            return;
+        }
+        Set<String> presetNames = new HashSet<>(Arrays.asList(metadata.names()));
+
         DocumentParser.getInstance().parse(discoveryFile, metadata);
         //System.out.println(Util.toString(metadata));
 
         //OCR processing
         if (Project.getProject().isOcrEnabled()) {
             OCRProcessor ocrProcessor = OCRProcessor.createProcessor(Settings.getSettings().getOCRDir(), context);
-            List<String> images = ocrProcessor.getImageText(discoveryFile.getPath().getPath());
+            // the parser already knows the type, the text and the pages, so OCR does not parse again
+            String mimeType = metadata.get(Metadata.CONTENT_TYPE);
+            Integer pageCount = metadata.getInt(PagedText.N_PAGES);
+            List<String> images = ocrProcessor.getImageText(discoveryFile.getPath().getPath(),
+                    mimeType != null ? mimeType : discoveryFile.getMediaType(),
+                    metadata.get(DocumentMetadataKeys.DOCUMENT_TEXT), pageCount != null ? pageCount : 0);
 
             if (images != null && images.size() > 0) {
                 StringBuilder allContent = new StringBuilder();
@@ -490,6 +672,13 @@ public abstract class FileProcessor {
                 metadata.set(DocumentMetadataKeys.DOCUMENT_TEXT, allContent.toString());
             }
         }
+
+        // a hit skips the parsing, so documents with attachments, which the parsing extracts, are not cached,
+        // and neither are failures, which may not happen again
+        if (cacheKey != null && discoveryFile.getEmbeddedFiles().isEmpty()
+                && metadata.get(DocumentMetadataKeys.PROCESSING_EXCEPTION) == null) {
+            derivativeCache.putMetadata(cacheKey, metadata, presetNames);
+        }
     }
 
     abstract String getOriginalDocumentPath(DiscoveryFile discoveryFile);
@@ -0,0 +1,229 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.main;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.hadoop.io.MD5Hash;
+import org.freeeed.services.Project;
+import org.freeeed.services.Settings;
+import org.freeeed.services.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * De-NISTing: drops the files whose MD5 is in a known file list, such as the NIST NSRL. The list is the sorted
+ * binary file written by KnownFileHashBuilder. It is memory-mapped at task start, so that it takes no heap however
+ * large it is, and each lookup is a binary search over the mapped records, without any allocation. If the builder
+ * also wrote a Bloom filter next to the hash file, it is checked first, and most unknown files never reach the
+ * binary search.
+ *
+ * @author mark
+ */
+public class KnownFileFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(KnownFileFilter.class);
+    /**
+     * Mapped segments are 1 GB, a multiple of the record size, so that no record spans two segments
+     */
+    static final int SEGMENT_SHIFT = 30;
+    static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+    private static KnownFileFilter instance = new KnownFileFilter();
+    private volatile MappedByteBuffer[] hashes;
+    private long hashCount;
+    private volatile MappedByteBuffer[] bloom;
+    private int bloomHashCount;
+    private long bloomBitCount;
+
+    public static KnownFileFilter getInstance() {
+        return instance;
+    }
+
+    private KnownFileFilter() {
+    }
+
+    /**
+     * Map the known file list given in the settings, if the project asks for de-NISTing.
+     */
+    public synchronized void init() {
+        destroy();
+        if (!Project.getProject().isDenist()) {
+            return;
+        }
+        String hashFileName = Settings.getSettings().getKnownFileHashes();
+        if (hashFileName == null || !new File(hashFileName).exists()) {
+            logger.warn("De-NISTing is requested, but the known file hashes are not found: {}", hashFileName);
+            return;
+        }
+        try {
+            open(new File(hashFileName));
+        } catch (IOException e) {
+            logger.error("Could not map the known file hashes " + hashFileName, e);
+            destroy();
+        }
+    }
+
+    /**
+     * Map a known file list, and its Bloom filter if there is one.
+     *
+     * @param hashFile sorted binary hash file.
+     * @throws IOException if the files cannot be mapped or are not in the expected format.
+     */
+    public synchronized void open(File hashFile) throws IOException {
+        if (hashFile.length() % KnownFileHashBuilder.RECORD_SIZE != 0) {
+            throw new IOException("Not a known file hash list: " + hashFile.getPath());
+        }
+        File bloomFile = new File(hashFile.getPath() + KnownFileHashBuilder.BLOOM_EXTENSION);
+        if (bloomFile.exists()) {
+            MappedByteBuffer[] bloomSegments = map(bloomFile);
+            bloomHashCount = bloomSegments[0].getInt(0);
+            bloomBitCount = bloomSegments[0].getLong(4);
+            bloom = bloomSegments;
+        }
+        hashCount = hashFile.length() / KnownFileHashBuilder.RECORD_SIZE;
+        hashes = map(hashFile);
+        logger.info("Mapped {} known file hashes from {}, Bloom filter: {}",
+                hashCount, hashFile.getPath(), bloom != null);
+    }
+
+    /**
+     * Release the mapped files. The mapping itself goes away when the buffers are collected.
+     */
+    public synchronized void destroy() {
+        hashes = null;
+        bloom = null;
+    }
+
+    public boolean isEnabled() {
+        return hashes != null;
+    }
+
+    /**
+     * Is this a known file? The MD5 is computed once and kept on the discovery file, for the document key. Emails
+     * are never in the list, and their key is not the file hash, so they are not checked.
+     *
+     * @param discoveryFile the file to check.
+     * @return true if the file is in the known file list.
+     * @throws IOException if the file cannot be read.
+     */
+    public boolean isKnown(DiscoveryFile discoveryFile) throws IOException {
+        if (!isEnabled() || "eml".equalsIgnoreCase(Util.getExtension(discoveryFile.getPath().getName()))) {
+            return false;
+        }
+        if (discoveryFile.getFileHash() == null) {
+            try (InputStream is = new FileInputStream(discoveryFile.getPath())) {
+                discoveryFile.setFileHash(MD5Hash.digest(is));
+            }
+        }
+        return contains(discoveryFile.getFileHash().getDigest());
+    }
+
+    /**
+     * @param digest 16 bytes of MD5.
+     * @return true if the hash is in the known file list.
+     */
+    public boolean contains(byte[] digest) {
+        return contains(toLong(digest, 0), toLong(digest, 8));
+    }
+
+    /**
+     * @param high first 8 bytes of the MD5, big-endian.
+     * @param low last 8 bytes of the MD5, big-endian.
+     * @return true if the hash is in the known file list.
+     */
+    public boolean contains(long high, long low) {
+        MappedByteBuffer[] hashSegments = hashes;
+        if (hashSegments == null) {
+            return false;
+        }
+        if (!mightContain(high, low)) {
+            return false;
+        }
+        long from = 0;
+        long to = hashCount - 1;
+        while (from <= to) {
+            long middle = (from + to) >>> 1;
+            long position = middle * KnownFileHashBuilder.RECORD_SIZE;
+            MappedByteBuffer segment = hashSegments[(int) (position >>> SEGMENT_SHIFT)];
+            int offset = (int) (position & SEGMENT_MASK);
+            int compare = KnownFileHashBuilder.compare(segment.getLong(offset), segment.getLong(offset + 8), high, low);
+            if (compare < 0) {
+                from = middle + 1;
+            } else if (compare > 0) {
+                to = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean mightContain(long high, long low) {
+        MappedByteBuffer[] bloomSegments = bloom;
+        if (bloomSegments == null) {
+            return true;
+        }
+        for (int i = 0; i < bloomHashCount; ++i) {
+            long bit = KnownFileHashBuilder.bloomBit(high, low, i, bloomBitCount);
+            long position = KnownFileHashBuilder.BLOOM_HEADER_SIZE + (bit >>> 3);
+            MappedByteBuffer segment = bloomSegments[(int) (position >>> SEGMENT_SHIFT)];
+            if ((segment.get((int) (position & SEGMENT_MASK)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; ++i) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Map a file read-only, in segments, since one mapping cannot be larger than 2 GB.
+     */
+    static MappedByteBuffer[] map(File file) throws IOException {
+        return map(file, FileChannel.MapMode.READ_ONLY);
+    }
+
+    /**
+     * Map a file in segments, read-only or read-write.
+     */
+    static MappedByteBuffer[] map(File file, FileChannel.MapMode mode) throws IOException {
+        long length = file.length();
+        int segmentCount = (int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] segments = new MappedByteBuffer[Math.max(segmentCount, 1)];
+        try (RandomAccessFile raf = new RandomAccessFile(file,
+                mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw")) {
+            FileChannel channel = raf.getChannel();
+            for (int i = 0; i < segments.length; ++i) {
+                long start = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(mode, start, Math.min(SEGMENT_MASK + 1, length - start));
+            }
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the known file list used by KnownFileFilter from an NSRL-format file (NSRLFile.txt, quoted CSV with an
+ * "MD5" column in the header line), or from a plain list with one MD5 per line.
+ *
+ * The output is a file of 16-byte MD5 records, sorted as unsigned big-endian numbers and without duplicates. The
+ * NSRL has hundreds of millions of entries, so the input is sorted in runs that fit in memory and the runs are
+ * then merged. Optionally, a Bloom filter is written next to it, with the ".bloom" extension.
+ *
+ * @author mark
+ */
+public class KnownFileHashBuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(KnownFileHashBuilder.class);
+    public static final int RECORD_SIZE = 16;
+    public static final String BLOOM_EXTENSION = ".bloom";
+    /**
+     * Number of hash functions (int) and number of bits (long), padded to 16 bytes
+     */
+    public static final int BLOOM_HEADER_SIZE = 16;
+    private static final int BLOOM_BITS_PER_ENTRY = 10;
+    private static final int BLOOM_HASH_COUNT = 7;
+    private static final int DEFAULT_RUN_SIZE = 4 * 1024 * 1024;
+    private int runSize;
+    private long[] run;
+    private int runCount;
+    private List<File> runFiles = new ArrayList<>();
+    private File tmpDir;
+
+    public KnownFileHashBuilder() {
+        this(DEFAULT_RUN_SIZE);
+    }
+
+    /**
+     * @param runSize number of hashes sorted in memory at a time.
+     */
+    public KnownFileHashBuilder(int runSize) {
+        this.runSize = runSize;
+    }
+
+    /**
+     * Build the sorted hash file, and the Bloom filter if asked.
+     *
+     * @param input NSRL file or plain MD5 list.
+     * @param output sorted binary hash file to write.
+     * @param createBloom true to also write output + ".bloom".
+     * @return number of distinct hashes written.
+     * @throws IOException on any problem reading the input or writing the output.
+     */
+    public long build(File input, File output, boolean createBloom) throws IOException {
+        File parent = output.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        tmpDir = parent;
+        run = new long[2 * runSize];
+        runCount = 0;
+        runFiles.clear();
+        long count;
+        try {
+            readInput(input);
+            flushRun();
+            run = null;
+            count = merge(output);
+        } finally {
+            for (File runFile : runFiles) {
+                runFile.delete();
+            }
+            runFiles.clear();
+        }
+        logger.info("Wrote {} known file hashes to {}", count, output.getPath());
+        if (createBloom) {
+            writeBloom(output, count);
+        }
+        return count;
+    }
+
+    private void readInput(File input) throws IOException {
+        int md5Column = -1;
+        long lineNumber = 0;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(input), "UTF-8"), 1024 * 1024)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ++lineNumber;
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (lineNumber == 1 && line.startsWith("\"")) {
+                    md5Column = findColumn(line, "MD5");
+                    if (md5Column < 0) {
+                        throw new IOException("No MD5 column in the header of " + input.getPath());
+                    }
+                    continue;
+                }
+                int start = 0;
+                int end = line.length();
+                if (md5Column >= 0) {
+                    start = columnStart(line, md5Column);
+                    if (start < 0) {
+                        logger.warn("Line {}: no MD5 column", lineNumber);
+                        continue;
+                    }
+                    if (line.charAt(start) == '"') {
+                        ++start;
+                    }
+                    end = start + 32;
+                }
+                if (end > line.length() || end - start != 32) {
+                    logger.warn("Line {}: not an MD5", lineNumber);
+                    continue;
+                }
+                try {
+                    addHash(parseHex(line, start), parseHex(line, start + 16));
+                } catch (NumberFormatException e) {
+                    logger.warn("Line {}: not an MD5", lineNumber);
+                }
+            }
+        }
+    }
+
+    private void addHash(long high, long low) throws IOException {
+        if (runCount == runSize) {
+            flushRun();
+        }
+        run[2 * runCount] = high;
+        run[2 * runCount + 1] = low;
+        ++runCount;
+    }
+
+    /**
+     * Sort the hashes in memory and write them out as a run, without duplicates.
+     */
+    private void flushRun() throws IOException {
+        if (runCount == 0) {
+            return;
+        }
+        sort(run, 0, runCount - 1);
+        File runFile = File.createTempFile("nsrl-run", ".bin", tmpDir);
+        runFiles.add(runFile);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(runFile), 1024 * 1024))) {
+            for (int i = 0; i < runCount; ++i) {
+                if (i > 0 && run[2 * i] == run[2 * i - 2] && run[2 * i + 1] == run[2 * i - 1]) {
+                    continue;
+                }
+                out.writeLong(run[2 * i]);
+                out.writeLong(run[2 * i + 1]);
+            }
+        }
+        logger.debug("Wrote a run of {} hashes", runCount);
+        runCount = 0;
+    }
+
+    /**
+     * Merge the sorted runs into the output, dropping the duplicates between runs.
+     */
+    private long merge(File output) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>();
+        long count = 0;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(output), 1024 * 1024))) {
+            for (File runFile : runFiles) {
+                RunReader reader = new RunReader(runFile);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            boolean first = true;
+            long lastHigh = 0;
+            long lastLow = 0;
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                if (first || reader.high != lastHigh || reader.low != lastLow) {
+                    out.writeLong(reader.high);
+                    out.writeLong(reader.low);
+                    lastHigh = reader.high;
+                    lastLow = reader.low;
+                    first = false;
+                    ++count;
+                }
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Write the Bloom filter straight into a mapped file, so that its size is not limited by the heap.
+     */
+    private void writeBloom(File output, long count) throws IOException {
+        File bloomFile = new File(output.getPath() + BLOOM_EXTENSION);
+        long bitCount = Math.max(count * BLOOM_BITS_PER_ENTRY, 64);
+        try (RandomAccessFile raf = new RandomAccessFile(bloomFile, "rw")) {
+            raf.setLength(0);
+            raf.setLength(BLOOM_HEADER_SIZE + (bitCount + 7) / 8);
+            raf.writeInt(BLOOM_HASH_COUNT);
+            raf.writeLong(bitCount);
+        }
+        MappedByteBuffer[] bloom = KnownFileFilter.map(bloomFile, FileChannel.MapMode.READ_WRITE);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(output), 1024 * 1024))) {
+            for (long i = 0; i < count; ++i) {
+                long high = in.readLong();
+                long low = in.readLong();
+                for (int j = 0; j < BLOOM_HASH_COUNT; ++j) {
+                    long bit = bloomBit(high, low, j, bitCount);
+                    long position = BLOOM_HEADER_SIZE + (bit >>> 3);
+                    MappedByteBuffer segment = bloom[(int) (position >>> KnownFileFilter.SEGMENT_SHIFT)];
+                    int offset = (int) (position & KnownFileFilter.SEGMENT_MASK);
+                    segment.put(offset, (byte) (segment.get(offset) | (1 << (bit & 7))));
+                }
+            }
+        }
+        for (MappedByteBuffer segment : bloom) {
+            segment.force();
+        }
+        logger.info("Wrote the Bloom filter of {} bits to {}", bitCount, bloomFile.getPath());
+    }
+
+    /**
+     * Bit of the i-th Bloom hash function. MD5 is already uniform, so its two halves are used for double hashing.
+     */
+    static long bloomBit(long high, long low, int i, long bitCount) {
+        return ((high + i * low) & Long.MAX_VALUE) % bitCount;
+    }
+
+    /**
+     * Compare two hashes as unsigned 128-bit numbers, which is the byte order of the MD5 digest.
+     */
+    static int compare(long high1, long low1, long high2, long low2) {
+        if (high1 != high2) {
+            return (high1 + Long.MIN_VALUE) < (high2 + Long.MIN_VALUE) ? -1 : 1;
+        }
+        if (low1 != low2) {
+            return (low1 + Long.MIN_VALUE) < (low2 + Long.MIN_VALUE) ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Quicksort of the (high, low) pairs in the array, between the pair indexes from and to, inclusive.
+     */
+    private static void sort(long[] pairs, int from, int to) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            long pivotHigh = pairs[2 * middle];
+            long pivotLow = pairs[2 * middle + 1];
+            int i = from;
+            int j = to;
+            while (i <= j) {
+                while (compare(pairs[2 * i], pairs[2 * i + 1], pivotHigh, pivotLow) < 0) {
+                    ++i;
+                }
+                while (compare(pairs[2 * j], pairs[2 * j + 1], pivotHigh, pivotLow) > 0) {
+                    --j;
+                }
+                if (i <= j) {
+                    swap(pairs, i++, j--);
+                }
+            }
+            // recurse into the smaller part, loop on the larger one
+            if (j - from < to - i) {
+                sort(pairs, from, j);
+                from = i;
+            } else {
+                sort(pairs, i, to);
+                to = j;
+            }
+        }
+    }
+
+    private static void swap(long[] pairs, int i, int j) {
+        long high = pairs[2 * i];
+        long low = pairs[2 * i + 1];
+        pairs[2 * i] = pairs[2 * j];
+        pairs[2 * i + 1] = pairs[2 * j + 1];
+        pairs[2 * j] = high;
+        pairs[2 * j + 1] = low;
+    }
+
+    private static long parseHex(String line, int start) {
+        long value = 0;
+        for (int i = start; i < start + 16; ++i) {
+            int digit = Character.digit(line.charAt(i), 16);
+            if (digit < 0) {
+                throw new NumberFormatException();
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static int findColumn(String header, String name) {
+        String[] columns = header.split(",");
+        for (int i = 0; i < columns.length; ++i) {
+            if (columns[i].replace("\"", "").trim().equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Position of the column in a quoted CSV line, -1 if the line is too short.
+     */
+    private static int columnStart(String line, int column) {
+        boolean inQuotes = false;
+        int current = 0;
+        for (int i = 0; i < line.length() && current < column; ++i) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                inQuotes = !inQuotes;
+            } else if (c == ',' && !inQuotes) {
+                ++current;
+                if (current == column) {
+                    return i + 1 < line.length() ? i + 1 : -1;
+                }
+            }
+        }
+        return current == column ? 0 : -1;
+    }
+
+    /**
+     * Reads one sorted run during the merge.
+     */
+    private static class RunReader implements Comparable<RunReader> {
+
+        private DataInputStream in;
+        private long high;
+        private long low;
+
+        RunReader(File runFile) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), 64 * 1024));
+        }
+
+        boolean next() throws IOException {
+            try {
+                high = in.readLong();
+                low = in.readLong();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            return compare(high, low, other.high, other.low);
+        }
+    }
+
+    /**
+     * Command line: KnownFileHashBuilder NSRLFile.txt known-hashes.bin [-bloom]
+     *
+     * @param args input file, output file, and -bloom to also write the Bloom filter.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: KnownFileHashBuilder <NSRLFile.txt> <output file> [-bloom]");
+            return;
+        }
+        boolean createBloom = args.length > 2 && "-bloom".equals(args[2]);
+        try {
+            long count = new KnownFileHashBuilder().build(new File(args[0]), new File(args[1]), createBloom);
+            System.out.println("Wrote " + count + " hashes to " + args[1]);
+        } catch (IOException e) {
+            logger.error("Could not build the known file hashes", e);
+        }
+    }
+}
@@ -276,8 +276,8 @@ public class MRFreeEedProcess extends Configured implements Tool {
         ArrayList<String> balancedPaths = new ArrayList<String>();
         for (String fileName : inputPaths) {
             // right now balance only s3 files
-            // local cluster remains unbalanced
-            if (fileName.startsWith("s3://")) {
+            // local cluster remains unbalanced, and so do the splits of PST files
+            if (fileName.startsWith("s3://") && !fileName.contains(";")) {
                 try {
                     long size = s3agent.getFileSize(fileName);
                     long chunks = size / settings.getBytesPerMapper() + 1;
@@ -80,7 +80,14 @@ public class Map extends Mapper<LongWritable, Text, Text, MapWritable> {
             return;
         }
         logger.info("Processing: {}", zipFile);
-        if (inputs.length >= 3) {
+        project.setPstFolders(null, false);
+        if (inputs.length >= 3 && (PstFolderSplitter.FOLDERS.equals(inputs[1])
+                || PstFolderSplitter.OTHER_FOLDERS.equals(inputs[1]))) {
+            // a split of a PST, see PstFolderSplitter
+            project.setPstFolders(PstFolderSplitter.decode(inputs[2]),
+                    PstFolderSplitter.OTHER_FOLDERS.equals(inputs[1]));
+            logger.info("With the PST folders: {} {}", inputs[1], inputs[2]);
+        } else if (inputs.length >= 3) {
             project.setMapItemStart(Integer.parseInt(inputs[1]));
             project.setMapItemEnd(Integer.parseInt(inputs[2]));
             logger.info("From {} to {}", project.getMapItemStart(), project.getMapItemEnd());
@@ -112,6 +119,8 @@ public class Map extends Mapper<LongWritable, Text, Text, MapWritable> {
             } catch (Exception e) {
                 logger.error("Problem with PST processing...", e);
             }
+        } else if (MboxProcessor.isMbox(zipFile)) {
+            new MboxProcessor(zipFile, new File(zipFile).getName(), context, luceneIndex).process(false, null);
         } else {
             logger.info("Will create Zip File processor for: {}", zipFile);
             // process archive file
@@ -136,9 +145,9 @@ public class Map extends Mapper<LongWritable, Text, Text, MapWritable> {
         
         if (project.isEnvHadoop()) {
             Configuration conf = context.getConfiguration();
-            String taskId = conf.get("mapred.task.id");
+            String taskId = conf.get(ParameterProcessing.TASK_ID);
             if (taskId != null) {
-                Settings.getSettings().setProperty("mapred.task.id", taskId);
+                Settings.getSettings().setProperty(ParameterProcessing.TASK_ID, taskId);
             }
         
             String metadataFileContents = context.getConfiguration().get(EmailProperties.PROPERTIES_FILE);
@@ -151,6 +160,8 @@ public class Map extends Mapper<LongWritable, Text, Text, MapWritable> {
         }
         
         OfficePrint.getInstance().init();
+        KnownFileFilter.getInstance().init();
+        DerivativeCache.getInstance().init();
         
         if (!checkLicense()) {
             System.out.println("Not authorized to run in this environment");
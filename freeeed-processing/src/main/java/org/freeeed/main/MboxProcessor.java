@@ -0,0 +1,192 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.hadoop.mapreduce.Mapper.Context;
+import org.freeeed.data.index.LuceneIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Processes a mailbox in the MBOX format, as written by Thunderbird and Google Takeout, one message at a time.
+ * The mailbox is read as a stream and split on the "From " lines which start the messages, and each message goes
+ * through the email path as a document of its own, with its attachments as children when the project extracts
+ * embedded documents. Only the message in progress is on disk, in the scratch file.
+ *
+ * @author mark
+ */
+public class MboxProcessor extends ScratchFileProcessor {
+
+    private static final Logger logger = LoggerFactory.getLogger(MboxProcessor.class);
+    private static final byte[] FROM = {'F', 'r', 'o', 'm', ' '};
+    /**
+     * Longer lines are read in pieces, only the start of a line can start a message
+     */
+    private static final int MAX_LINE = 8192;
+    private static final String SCRATCH_FILE = "mbox-message.eml";
+    private final byte[] line = new byte[MAX_LINE];
+    /**
+     * The From_ line held until the line after it is read
+     */
+    private final byte[] fromLine = new byte[MAX_LINE];
+    private int fromLineLength;
+
+    /**
+     * @param mboxFilePath the mailbox.
+     * @param originalPath the path of the mailbox in the collection, under which its messages are listed.
+     * @param context Hadoop context, may be null.
+     * @param luceneIndex the index.
+     */
+    public MboxProcessor(String mboxFilePath, String originalPath, Context context, LuceneIndex luceneIndex) {
+        super(mboxFilePath, originalPath, SCRATCH_FILE, ".eml", context, luceneIndex);
+    }
+
+    /**
+     * Determine whether a given file is a mailbox in the MBOX format, by its signature.
+     *
+     * @param fileName file path to be analyzed.
+     * @return true if the file is a mailbox.
+     */
+    public static boolean isMbox(String fileName) {
+        try {
+            return DocumentTypeDetector.MBOX.equals(
+                    DocumentTypeDetector.getInstance().detect(new File(fileName), fileName));
+        } catch (IOException e) {
+            logger.warn("Could not read file {}", fileName, e);
+            return false;
+        }
+    }
+
+    @Override
+    void processEmails() throws IOException, InterruptedException {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(getSingleFileName()))) {
+            split(is);
+        }
+    }
+
+    /**
+     * Copy the messages of the mailbox to the scratch file, one at a time, and process each one when it is complete.
+     * A message starts with a From_ line, at the start of the mailbox or after an empty line, which is held until
+     * the next line shows that it is followed by a header, as the mailbox is detected, so that a line of a message
+     * which starts with "From " and was not quoted does not split it. The lines of the messages which start with
+     * "From ", quoted as ">From ", are unquoted.
+     */
+    private void split(InputStream is) throws IOException, InterruptedException {
+        OutputStream message = null;
+        try {
+            boolean lineStart = true;
+            boolean previousEmpty = true;
+            int length;
+            while ((length = readLine(is)) > 0) {
+                boolean lineEnd = line[length - 1] == '\n';
+                if (fromLineLength > 0) {
+                    if (DocumentTypeDetector.isMboxMessageStart(lineText(fromLine, fromLineLength),
+                            lineText(line, length))) {
+                        if (message != null) {
+                            message.close();
+                            processScratchFile();
+                        }
+                        message = new BufferedOutputStream(new FileOutputStream(getScratchFile()));
+                    } else if (message != null) {
+                        message.write(fromLine, 0, fromLineLength);
+                    }
+                    fromLineLength = 0;
+                }
+                if (lineStart && lineEnd && previousEmpty && startsWith(line, 0, length, FROM)) {
+                    System.arraycopy(line, 0, fromLine, 0, length);
+                    fromLineLength = length;
+                } else if (message != null) {
+                    int start = lineStart && isQuotedFrom(length) ? 1 : 0;
+                    message.write(line, start, length - start);
+                }
+                previousEmpty = lineStart && lineEnd && (length == 1 || (length == 2 && line[0] == '\r'));
+                lineStart = lineEnd;
+            }
+            if (message != null) {
+                message.write(fromLine, 0, fromLineLength);
+                message.close();
+                message = null;
+                processScratchFile();
+            }
+        } finally {
+            if (message != null) {
+                message.close();
+            }
+        }
+    }
+
+    /**
+     * @return the line as text, without its line end.
+     */
+    private static String lineText(byte[] bytes, int length) {
+        while (length > 0 && (bytes[length - 1] == '\n' || bytes[length - 1] == '\r')) {
+            --length;
+        }
+        return new String(bytes, 0, length, Charsets.ISO_8859_1);
+    }
+
+    /**
+     * Read the next line, with its line end, or the next piece of a line which does not fit.
+     *
+     * @return the number of bytes read, 0 at the end of the mailbox.
+     */
+    private int readLine(InputStream is) throws IOException {
+        int length = 0;
+        int b;
+        while (length < line.length && (b = is.read()) != -1) {
+            line[length++] = (byte) b;
+            if (b == '\n') {
+                break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Is this a line of the message which starts with "From ", quoted with one or more '>'?
+     */
+    private boolean isQuotedFrom(int length) {
+        int quotes = 0;
+        while (quotes < length && line[quotes] == '>') {
+            ++quotes;
+        }
+        return quotes > 0 && startsWith(line, quotes, length, FROM);
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, int length, byte[] prefix) {
+        if (length - offset < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i) {
+            if (bytes[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -20,6 +20,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.mapreduce.Mapper.Context;
 import org.freeeed.data.index.LuceneIndex;
@@ -43,6 +44,9 @@ public class NSFProcessor implements ActionListener {
     private String nsfFilePath;
     private Context context;
     private LuceneIndex luceneIndex;
+    private File nsfFile;
+    private File outputDir;
+    private Future<Boolean> parsing;
 
     public NSFProcessor(String nsfFilePath, Context context, LuceneIndex luceneIndex) {
         this.nsfFilePath = nsfFilePath;
@@ -51,34 +55,64 @@ public class NSFProcessor implements ActionListener {
     }
     
     public static boolean isNSF(String fileName) {
-        if ("nsf".equalsIgnoreCase(Util.getExtension(fileName))) {
-            return true;
+        try {
+            return DocumentTypeDetector.NSF.equals(
+                    DocumentTypeDetector.getInstance().detect(new File(fileName), fileName));
+        } catch (IOException e) {
+            return false;
         }
-        return false;
     }
     
     public void process() throws IOException, Exception {
-        String outputDir = Settings.getSettings().getNFSDir();
-        File nsfDirFile = new File(outputDir);
-        if (nsfDirFile.exists()) {
-            Util.deleteDirectory(nsfDirFile);
-        }
-        
-        extractEmails(nsfFilePath, outputDir);
-        collectEmails(outputDir);
+        start();
+        finish();
     }
-    
-    private void extractEmails(String nsfPath, String outputDir) {
-        NSFParser parser = new NSFParser();
-        parser.parseNSF(nsfPath, outputDir, context);
+
+    /**
+     * Start parsing the NSF file, which goes on while the rest of the package is processed. The file is moved out
+     * of the way of the next file extracted from the package, and its emails get an output directory of their own.
+     *
+     * @throws IOException if the file cannot be moved.
+     */
+    public void start() throws IOException {
+        File tmpDir = new File(Settings.getSettings().getTmpDir());
+        tmpDir.mkdirs();
+        nsfFile = File.createTempFile("nsf", ".nsf", tmpDir);
+        Files.move(new File(nsfFilePath), nsfFile);
+        outputDir = new File(Settings.getSettings().getNFSDir(), nsfFile.getName());
+        parsing = new NSFParser().startNSF(nsfFile.getPath(), outputDir.getPath());
+    }
+
+    /**
+     * Wait for the NSF file to be parsed, and process its emails.
+     *
+     * @throws IOException on any problem with the emails.
+     * @throws InterruptedException throws by Hadoop.
+     */
+    public void finish() throws IOException, InterruptedException {
+        try {
+            NSFParser.waitFor(parsing, context);
+            if (outputDir.exists()) {
+                collectEmails(outputDir.getPath());
+            }
+        } finally {
+            nsfFile.delete();
+            if (outputDir.exists()) {
+                Util.deleteDirectory(outputDir);
+            }
+        }
     }
     
     private void collectEmails(String emailDir) throws IOException, InterruptedException {
-        if (new File(emailDir).isFile()) {
+        File emailFile = new File(emailDir);
+        if (emailFile.isFile() && NSFRecordProcessor.isSegment(emailDir)) {
+            String originalPath = emailFile.getParentFile().getName() + File.separator + emailFile.getName();
+            new NSFRecordProcessor(emailDir, originalPath, context, luceneIndex).process(false, null);
+        } else if (emailFile.isFile()) {
             ZipFileProcessor fileProcessor = new ZipFileProcessor(emailDir, context, luceneIndex);
             fileProcessor.process(false, null);
         } else {
-            File files[] = new File(emailDir).listFiles();
+            File files[] = emailFile.listFiles();
             for (File file : files) {
                 collectEmails(file.getPath());
             }
@@ -0,0 +1,80 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.main;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.hadoop.mapreduce.Mapper.Context;
+import org.freeeed.data.index.LuceneIndex;
+import org.freeeed.lotus.FileStorage;
+import org.freeeed.lotus.NSFRecordReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processes the emails of an NSF file from a segment written by the NSF extraction, one record at a time. Each
+ * record is the JSON of one email, which is what the NSF email parser reads, so it goes to the email path through
+ * the scratch file, instead of a file per email on both sides.
+ *
+ * @author mark
+ */
+public class NSFRecordProcessor extends ScratchFileProcessor {
+
+    private static final Logger logger = LoggerFactory.getLogger(NSFRecordProcessor.class);
+
+    /**
+     * @param segmentFilePath the segment.
+     * @param originalPath the path of the segment in the collection, under which its emails are listed.
+     * @param context Hadoop context, may be null.
+     * @param luceneIndex the index.
+     */
+    public NSFRecordProcessor(String segmentFilePath, String originalPath, Context context, LuceneIndex luceneIndex) {
+        super(segmentFilePath, originalPath, FileStorage.RECORD_FILE, ".nsfe", context, luceneIndex);
+    }
+
+    /**
+     * Determine whether a given file is a segment of NSF emails, by its signature.
+     *
+     * @param fileName file path to be analyzed.
+     * @return true if the file is a segment.
+     */
+    public static boolean isSegment(String fileName) {
+        try {
+            return DocumentTypeDetector.NSF_RECORDS.equals(
+                    DocumentTypeDetector.getInstance().detect(new File(fileName), fileName));
+        } catch (IOException e) {
+            logger.warn("Could not read file {}", fileName, e);
+            return false;
+        }
+    }
+
+    @Override
+    void processEmails() throws IOException, InterruptedException {
+        try (NSFRecordReader reader = new NSFRecordReader(new File(getSingleFileName()))) {
+            byte[] record;
+            while ((record = reader.next()) != null) {
+                try (OutputStream os = new FileOutputStream(getScratchFile())) {
+                    os.write(record);
+                }
+                processScratchFile();
+            }
+        }
+    }
+}
@@ -18,11 +18,14 @@ package org.freeeed.main;
 
 import java.io.*;
 import java.text.DecimalFormat;
+import java.util.List;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import javax.swing.JOptionPane;
 
 import org.freeeed.services.Project;
+import org.freeeed.services.Settings;
 import org.freeeed.ui.StagingProgressUI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +50,8 @@ public class PackageArchive {
     private String zipFileName;
     private String rootDir;
     private boolean fileSizeReached;
+    // a PST split across mappers is packaged on its own
+    private boolean ownPackage;
     private StagingProgressUI stagingUI;
     private boolean interrupted = false;
     
@@ -86,10 +91,12 @@ public class PackageArchive {
                 stagingUI.updateProcessingFile(file.getAbsolutePath());
             }
             
+            List<Set<String>> pstSplits = file.length() > Settings.getSettings().getPstSplitSize()
+                    && PstProcessor.isPST(file.getPath()) ? PstFolderSplitter.split(file) : null;
             double newSizeGigs = (1.
                     * (file.length() + new File(zipFileName).length()))
                     / ParameterProcessing.ONE_GIG;            
-            if (newSizeGigs > gigsPerArchive
+            if ((newSizeGigs > gigsPerArchive || ownPackage || pstSplits != null)
                     && filesCount > 0) {
                 fileSizeReached = true;
                 resetZipStreams();
@@ -115,6 +122,10 @@ public class PackageArchive {
             }
             bufferedInputStream.close();
             fileInputStream.close();
+            if (pstSplits != null) {
+                PstFolderSplitter.writeSplits(zipFileName, pstSplits);
+                ownPackage = true;
+            }
             
             if (stagingUI != null) {
                 stagingUI.updateProgress(file.length());
@@ -141,6 +152,7 @@ public class PackageArchive {
     
     private void resetZipStreams() throws Exception {
         ++packageFileCount;
+        ownPackage = false;
         if (zipOutputStream != null) {
             zipOutputStream.close();
         }
@@ -124,11 +124,45 @@ public class ParameterProcessing {
     public static final String EML_HTML_TEMPLATE_FILE_NO_CDATA = "eml_html_template_nocdata.html";
     public static final String SKIP_INSTANCE_CREATION = "skip_instance_creation";
     public static final String OCR_MAX_IMAGES_PER_PDF = "ocr_max_images_per_pdf";
+    public static final String OCR_MIN_TEXT_PER_PAGE = "ocr_min_text_per_page";
+    public static final String OCR_MIN_IMAGE_SIZE = "ocr_min_image_size";
     public static final String SOLRCLOUD_REPLICA_COUNT = "solrcloud_replica_count";
     public static final String SOLRCLOUD_SHARD_COUNT = "solrcloud_shard_count";
     public static final String APPLICATION_OUTPUT_DIR = "output_dir";
     public static final String OOFFICE_HOME = "open_office_home";
     public static final String CUSTODIAN_PATTERN = "custodian_pattern";
+    public static final String EXTRACT_EMBEDDED = "extract_embedded";
+    public static final String FILTER_DATE_FROM = "filter_date_from";
+    public static final String FILTER_DATE_TO = "filter_date_to";
+    public static final String FILTER_MIN_SIZE = "filter_min_size";
+    public static final String FILTER_MAX_SIZE = "filter_max_size";
+    public static final String FILTER_EXCLUDE_EXTENSIONS = "filter_exclude_extensions";
+    public static final String FILTER_EXCLUDE_TYPES = "filter_exclude_types";
+    public static final String FILTER_EXCLUDE_PATH = "filter_exclude_path";
+    public static final String FILTER_METADATA_ONLY = "filter_metadata_only";
+    public static final String DENIST = "denist";
+    public static final String KNOWN_FILE_HASHES = "known_file_hashes";
+    public static final String OCR_THREADS = "ocr_threads";
+    public static final String OCR_TIMEOUT = "ocr_timeout";
+    public static final String OCR_BATCH_SIZE = "ocr_batch_size";
+    public static final String OCR_CACHE_DIR = "ocr_cache_dir";
+    public static final String OCR_CACHE_SIZE = "ocr_cache_size";
+    public static final String OFFICE_PROCESSES = "office_processes";
+    public static final String TASK_ID = "mapred.task.id";
+    public static final String OFFICE_BASE_PORT = "office_base_port";
+    public static final String OFFICE_MAX_TASKS = "office_max_tasks";
+    public static final String OFFICE_TIMEOUT = "office_timeout";
+    public static final String HTML_TIMEOUT = "html_timeout";
+    public static final String PST_TIMEOUT = "pst_timeout";
+    public static final String PST_SCRATCH_SIZE = "pst_scratch_size";
+    public static final String PST_SPLIT_SIZE = "pst_split_size";
+    public static final String PST_MAX_SPLITS = "pst_max_splits";
+    public static final String NSF_CONCURRENCY = "nsf_concurrency";
+    public static final String NSF_TIMEOUT = "nsf_timeout";
+    public static final String NSF_CHUNK_SIZE = "nsf_chunk_size";
+    public static final String IMAGE_AFTER_DEDUP = "image_after_dedup";
+    public static final String DERIVATIVE_CACHE_DIR = "derivative_cache_dir";
+    public static final String DERIVATIVE_CACHE_SIZE = "derivative_cache_size";
 
     /**
      * Custom configuration / processing parameters
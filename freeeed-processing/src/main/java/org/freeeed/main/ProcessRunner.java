@@ -0,0 +1,241 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.main;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs an external program and waits on the process itself: input is fed on stdin, the output is read from stdout,
+ * and a watchdog kills the process if it runs longer than allowed. Unlike PlatformUtil.runUnixCommand, nothing goes
+ * through temporary files, and there is no polling for results.
+ *
+ * @author mark
+ */
+public class ProcessRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcessRunner.class);
+    private static final long ERROR_PUMP_WAIT_MS = 1000;
+    private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "process-runner");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(DAEMON_THREADS);
+    // feeds stdin and drains stderr, so that the process never blocks on a full pipe
+    private static final ExecutorService pumps = Executors.newCachedThreadPool(DAEMON_THREADS);
+
+    private ProcessRunner() {
+        // static methods only
+    }
+
+    /**
+     * Run the command to completion, or until the timeout.
+     *
+     * @param command program and its arguments, not parsed by a shell.
+     * @param input bytes to write to stdin, or null to close stdin right away.
+     * @param timeoutMs maximum run time in milliseconds, 0 for no limit.
+     * @return exit code and outputs of the process.
+     * @throws IOException if the process cannot be started or read.
+     */
+    public static Result run(List<String> command, final byte[] input, long timeoutMs) throws IOException {
+        return run(command, input, timeoutMs, null);
+    }
+
+    /**
+     * Run the command to completion, or until the timeout, handing its output to the listener line by line, as
+     * the process writes it. The listener is called on the calling thread, and while it works the process may go
+     * on until the pipe is full.
+     *
+     * @param command program and its arguments, not parsed by a shell.
+     * @param input bytes to write to stdin, or null to close stdin right away.
+     * @param timeoutMs maximum run time in milliseconds, 0 for no limit.
+     * @param listener receives the lines of stdout, which are then not in the result, or null to collect them.
+     * @return exit code and outputs of the process.
+     * @throws IOException if the process cannot be started or read, or the listener fails, which kills the
+     * process.
+     */
+    public static Result run(List<String> command, final byte[] input, long timeoutMs, LineListener listener)
+            throws IOException {
+        logger.trace("Running command: {}", command);
+        final Process process = new ProcessBuilder(command).start();
+        final AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> kill = null;
+        if (timeoutMs > 0) {
+            kill = watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timedOut.set(true);
+                    process.destroy();
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        try {
+            pumps.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try (OutputStream stdin = process.getOutputStream()) {
+                        if (input != null) {
+                            stdin.write(input);
+                        }
+                    } catch (IOException e) {
+                        // the process may exit without reading all of its input
+                        logger.trace("Could not write to the process", e);
+                    }
+                }
+            });
+            final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            Future<?> errorPump = pumps.submit(new Runnable() {
+                @Override
+                public void run() {
+                    copy(process.getErrorStream(), stderr);
+                }
+            });
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            try (InputStream is = process.getInputStream()) {
+                if (listener != null) {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        listener.onLine(line);
+                    }
+                } else {
+                    IOUtils.copy(is, stdout);
+                }
+            } catch (IOException e) {
+                process.destroy();
+                throw e;
+            }
+            int exitCode = process.waitFor();
+            try {
+                // stderr closes with the process, unless a child process still holds it
+                errorPump.get(ERROR_PUMP_WAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                logger.trace("Incomplete error output", e);
+            }
+            byte[] errorBytes;
+            synchronized (stderr) {
+                errorBytes = stderr.toByteArray();
+            }
+            Result result = new Result(exitCode, stdout.toByteArray(), new String(errorBytes), timedOut.get());
+            if (result.isTimedOut()) {
+                logger.warn("Command timed out after {} ms: {}", timeoutMs, command);
+            }
+            return result;
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while running " + command);
+        } finally {
+            if (kill != null) {
+                kill.cancel(false);
+            }
+        }
+    }
+
+    private static void copy(InputStream is, ByteArrayOutputStream os) {
+        byte[] buffer = new byte[4096];
+        try (InputStream in = is) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                synchronized (os) {
+                    os.write(buffer, 0, count);
+                }
+            }
+        } catch (IOException e) {
+            logger.trace("Could not read from the process", e);
+        }
+    }
+
+    /**
+     * Receives the output of a process as it comes.
+     */
+    public interface LineListener {
+
+        void onLine(String line) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Outcome of a process run.
+     */
+    public static class Result {
+
+        private int exitCode;
+        private byte[] output;
+        private String error;
+        private boolean timedOut;
+
+        Result(int exitCode, byte[] output, String error, boolean timedOut) {
+            this.exitCode = exitCode;
+            this.output = output;
+            this.error = error;
+            this.timedOut = timedOut;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        /**
+         * @return everything the process wrote to stdout
+         */
+        public byte[] getOutput() {
+            return output;
+        }
+
+        /**
+         * @return what the process wrote to stderr so far, which may be incomplete
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return true if the process was killed by the watchdog
+         */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public boolean isSuccess() {
+            return !timedOut && exitCode == 0;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.freeeed.services.Settings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.Files;
+
+/**
+ * Splits a large PST file across mappers by its folders. At staging, the folder tree is listed with lspst, with
+ * the number of items in each folder, and the folders are dealt to as many splits as the size of the PST calls
+ * for, by their item counts. The splits go next to the staged package, and the job gets an input for each of
+ * them, in the form "package;folders;names" or, for the split which also takes the folders that the scan did not
+ * see, "package;other_folders;names of the folders of the other splits".
+ *
+ * readpst cannot extract a part of a PST, so each split still downloads the whole file and runs readpst over all
+ * of it, and only then keeps its own folders and deletes the others. What a split saves is the parsing, imaging and
+ * indexing of the other folders, and what it costs is one more extraction of the whole PST, so the number of splits
+ * is capped by "pst_max_splits", whatever the size of the PST.
+ *
+ * @author mark
+ */
+public class PstFolderSplitter {
+
+    private static final Logger logger = LoggerFactory.getLogger(PstFolderSplitter.class);
+    public static final String FOLDERS = "folders";
+    public static final String OTHER_FOLDERS = "other_folders";
+    private static final String SPLITS_EXT = ".pst_splits";
+    private static final String FOLDER_LINE = "Folder \"";
+    private static final String ENCODING = "UTF-8";
+
+    private PstFolderSplitter() {
+        // static methods only
+    }
+
+    /**
+     * Split a PST, if it is large enough, and lspst can list its folders.
+     *
+     * @param pstFile the PST.
+     * @return the folders of each split, or null if the PST is not split.
+     */
+    public static List<Set<String>> split(File pstFile) {
+        long splitSize = Settings.getSettings().getPstSplitSize();
+        if (splitSize <= 0 || pstFile.length() <= splitSize || !PlatformUtil.isNix()) {
+            return null;
+        }
+        try {
+            ProcessRunner.Result result = ProcessRunner.run(Arrays.asList("lspst", pstFile.getPath()), null,
+                    Settings.getSettings().getPstTimeout());
+            if (!result.isSuccess()) {
+                logger.warn("Could not list the folders of {}: {}", pstFile, result.getError());
+                return null;
+            }
+            int splits = (int) Math.min(pstFile.length() / splitSize + 1,
+                    Settings.getSettings().getPstMaxSplits());
+            List<Set<String>> folders = split(countItems(new String(result.getOutput(), Charset.defaultCharset())),
+                    splits);
+            logger.info("{} is split into {} parts by its folders", pstFile, folders.size());
+            return folders.size() > 1 ? folders : null;
+        } catch (IOException e) {
+            logger.warn("Could not run lspst on {}", pstFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Count the items of each folder in the lspst listing, which names a folder and then lists its items. Folders
+     * are known by the names of the directories readpst extracts them to, so folders of the same directory name are
+     * counted together.
+     */
+    static java.util.Map<String, Integer> countItems(String listing) {
+        java.util.Map<String, Integer> counts = new LinkedHashMap<>();
+        String folder = null;
+        for (String line : listing.split("\n")) {
+            if (line.startsWith(FOLDER_LINE) && line.trim().endsWith("\"")) {
+                folder = PstProcessor.toDirName(line.trim().substring(FOLDER_LINE.length(), line.trim().length() - 1));
+                if (!counts.containsKey(folder)) {
+                    counts.put(folder, 0);
+                }
+            } else if (folder != null && !line.trim().isEmpty()) {
+                counts.put(folder, counts.get(folder) + 1);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Deal the folders to the splits, the largest first, each to the split with the fewest items so far.
+     */
+    static List<Set<String>> split(final java.util.Map<String, Integer> counts, int splits) {
+        List<String> folders = new ArrayList<>(counts.keySet());
+        Collections.sort(folders, new Comparator<String>() {
+            @Override
+            public int compare(String folder1, String folder2) {
+                return counts.get(folder2).compareTo(counts.get(folder1));
+            }
+        });
+        int splitCount = Math.max(Math.min(splits, folders.size()), 1);
+        List<Set<String>> result = new ArrayList<>(splitCount);
+        long[] sizes = new long[splitCount];
+        for (int i = 0; i < splitCount; ++i) {
+            result.add(new HashSet<String>());
+        }
+        for (String folder : folders) {
+            int smallest = 0;
+            for (int i = 1; i < splitCount; ++i) {
+                if (sizes[i] < sizes[smallest]) {
+                    smallest = i;
+                }
+            }
+            result.get(smallest).add(folder);
+            sizes[smallest] += counts.get(folder);
+        }
+        return result;
+    }
+
+    /**
+     * Keep the splits of the PST in a package next to the package.
+     *
+     * @param packageFile the package, holding only the PST.
+     * @param splits the folders of each split.
+     */
+    public static void writeSplits(String packageFile, List<Set<String>> splits) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (Set<String> folders : splits) {
+            builder.append(encode(folders)).append(ParameterProcessing.NL);
+        }
+        Files.write(builder.toString(), new File(packageFile + SPLITS_EXT), Charset.forName(ENCODING));
+    }
+
+    /**
+     * The job inputs of a package, one per split of its PST.
+     *
+     * @param packageFile the package as staged.
+     * @param input the package as the job reads it.
+     * @return the inputs, or the input alone if the package is not split.
+     */
+    public static List<String> getInputs(String packageFile, String input) throws IOException {
+        File splitsFile = new File(packageFile + SPLITS_EXT);
+        if (!splitsFile.exists()) {
+            return Collections.singletonList(input);
+        }
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readLines(splitsFile, Charset.forName(ENCODING))) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line.trim());
+            }
+        }
+        List<String> inputs = new ArrayList<>();
+        StringBuilder others = new StringBuilder();
+        for (int i = 1; i < lines.size(); ++i) {
+            inputs.add(input + ";" + FOLDERS + ";" + lines.get(i));
+            others.append(others.length() > 0 ? "/" : "").append(lines.get(i));
+        }
+        // the first split takes the folders the scan did not see, such as the deleted items
+        inputs.add(0, input + ";" + OTHER_FOLDERS + ";" + others);
+        return inputs;
+    }
+
+    /**
+     * Folder names are encoded, so that they do not clash with the separators of the job inputs.
+     */
+    private static String encode(Set<String> folders) throws UnsupportedEncodingException {
+        StringBuilder builder = new StringBuilder();
+        for (String folder : folders) {
+            builder.append(builder.length() > 0 ? "/" : "").append(URLEncoder.encode(folder, ENCODING));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param encoded the folder names of a job input.
+     * @return the folder names.
+     */
+    public static Set<String> decode(String encoded) throws UnsupportedEncodingException {
+        Set<String> folders = new HashSet<>();
+        for (String folder : encoded.split("/")) {
+            if (!folder.isEmpty()) {
+                folders.add(URLDecoder.decode(folder, ENCODING));
+            }
+        }
+        return folders;
+    }
+}
@@ -20,14 +20,26 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.swing.Timer;
 import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Mapper.Context;
 import org.freeeed.data.index.LuceneIndex;
+import org.freeeed.print.ConversionSupervisor;
+import org.freeeed.services.Project;
 import org.freeeed.services.Util;
 import org.freeeed.services.Settings;
+import org.freeeed.services.Stats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +50,23 @@ public class PstProcessor implements ActionListener {
     private static int refreshInterval = 60000;
     private LuceneIndex luceneIndex;
     private static Logger logger = LoggerFactory.getLogger(PstProcessor.class);
+    /**
+     * What readpst prints when it is done with a folder, such as: "Inbox" - 120 items done, 0 items skipped.
+     */
+    private static final Pattern FOLDER_DONE = Pattern.compile("^\\s*\"(.*)\" - \\d+ items done");
+    private static final Pattern PID = Pattern.compile("\\d+");
+    private static final long SCRATCH_CHECK_MS = 1000;
+    private static final long SIGNAL_TIMEOUT_MS = 10000;
+    // watches the scratch space of readpst while a folder is processed
+    private static final ScheduledExecutorService scratchMonitor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "pst-scratch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     /**
      *
@@ -54,11 +83,8 @@ public class PstProcessor implements ActionListener {
     }
 
     /**
-     * Determine whether a given file is a Microsoft Outlook file. There are two tests here: firstly, the file must have
-     * the extension of *.pst. That is because PST files are under our control, and we do not expect that they will come
-     * in without *.pst extension. Other MS Outlook extension may be added later on. Secondly, we do the Unix 'file'
-     * command, to confirm this test. We will not attempt the extraction if Unix does not recognize it. That's for *nix.
-     * For Windows, we do the JPST tricks.
+     * Determine whether a given file is a Microsoft Outlook file, by its signature. This reads only the first bytes of
+     * the file, and needs neither the *.pst extension nor the Unix 'file' command.
      *
      * @param fileName file path to be analyzed.
      * @return yes if file is a MS Outlook file, false if it is not.
@@ -66,15 +92,11 @@ public class PstProcessor implements ActionListener {
     public static boolean isPST(String fileName) {
         logger.trace("Determine isPST for file {}", fileName);
         boolean isPst = false;
-        if ("pst".equalsIgnoreCase(Util.getExtension(fileName))) {
-            if (PlatformUtil.isNix()) {
-                String fileType = PlatformUtil.getFileType(fileName);
-                logger.trace("In *nix, file type is {}", fileType);
-                isPst = fileType.startsWith("Microsoft Outlook");
-            } else if (PlatformUtil.isWindows()) {
-                // TODO use JPST to verify PST type
-                isPst = true;
-            }
+        try {
+            isPst = DocumentTypeDetector.PST.equals(
+                    DocumentTypeDetector.getInstance().detect(new File(fileName), fileName));
+        } catch (IOException e) {
+            logger.warn("Could not read file {}", fileName, e);
         }
         logger.trace("isPst results: {}", isPst);
         return isPst;
@@ -87,7 +109,35 @@ public class PstProcessor implements ActionListener {
             Util.deleteDirectory(pstDirFile);
         }
         extractEmails(outputDir);
-        collectEmails(outputDir, false, null);
+        // what was not processed during the extraction, which is all of it with jreadpst
+        if (Project.getProject().isPstSplit()) {
+            collectSplitEmails(pstDirFile, pstDirFile);
+        } else {
+            collectEmails(outputDir, false, null);
+        }
+    }
+
+    /**
+     * Collect the emails of the folders which belong to this split of the PST, the emails outside of any folder
+     * going with the folders the scan did not see.
+     */
+    private void collectSplitEmails(File outputDir, File dir) throws IOException, InterruptedException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> emails = new ArrayList<>();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectSplitEmails(outputDir, file);
+            } else {
+                emails.add(file);
+            }
+        }
+        String folder = dir.equals(outputDir) ? "" : dir.getName();
+        if (Project.getProject().isPstFolderIncluded(folder)) {
+            collectFiles(emails.toArray(new File[emails.size()]));
+        }
     }
 
     /**
@@ -105,61 +155,31 @@ public class PstProcessor implements ActionListener {
             EmlFileProcessor fileProcessor = new EmlFileProcessor(emailDir, context, luceneIndex);
             fileProcessor.process(hasAttachments, hash);
         } else {
-            File files[] = new File(emailDir).listFiles();
-            Arrays.sort(files, new MailWithAttachmentsComparator());
-            for (File file : files) {
-                logger.trace(file.getPath());
-            }
-            for (int f = 0; f < files.length; ++f) {
-                int attachmentCount = getAttachmentCount(f, files);
-                if (attachmentCount == 0) {
-                    collectEmails(files[f].getPath(), false, null);
-                } else {
-                    logger.debug("File {} has {} attachments", files[f].getName(), attachmentCount);
-                    MD5Hash parentHash = Util.createKeyHash(files[f], null);
-                    collectEmails(files[f].getPath(), true, null);
-                    for (int a = 1; a <= attachmentCount; ++a) {
-                        collectEmails(files[f + a].getPath(), false, parentHash);
-                    }
-                    f += attachmentCount;
-                }
-            }
+            collectFiles(new File(emailDir).listFiles());
         }
     }
 
     /**
-     * Determine if the file in the array has attachments following it in order, and tell us the count.
-     *
-     * @param f file position in the array.
-     * @param files array of file to analyze.
-     * @return 0 if there are no attachments, positive integer if there are some.
+     * Collect the emails among the files of a directory, each followed by its attachments.
      */
-    private int getAttachmentCount(int f, File[] files) {
-        int attachmentCount = 0;
-        for (int n = 1; n < files.length - 1 - f; ++n) {
-            if (files[f].isFile()
-                    && f + n < files.length
-                    && files[f + n].isFile()
-                    && files[f].getName().matches("\\d+")
-                    && files[f + n].getName().startsWith(files[f].getName() + "-")) {
-                attachmentCount = n;
+    private void collectFiles(File[] dirFiles) throws IOException, InterruptedException {
+        ReadpstListing listing = new ReadpstListing(dirFiles);
+        File[] files = listing.getFiles();
+        for (int f = 0; f < files.length; ++f) {
+            logger.trace(files[f].getPath());
+            int attachmentCount = listing.getAttachmentCount(f);
+            if (attachmentCount == 0) {
+                collectEmails(files[f].getPath(), false, null);
             } else {
-                break;
+                logger.debug("File {} has {} attachments", files[f].getName(), attachmentCount);
+                MD5Hash parentHash = Util.createKeyHash(files[f], null);
+                collectEmails(files[f].getPath(), true, null);
+                for (int a = 1; a <= attachmentCount; ++a) {
+                    collectEmails(files[f + a].getPath(), false, parentHash);
+                }
+                f += attachmentCount;
             }
         }
-        return attachmentCount;
-    }
-
-    /**
-     * Determine if the given file is an attachment to the given parent. This is determined by the parent having a name
-     * like "23 and attachment - like "23-excel.xls".
-     *
-     * @param file file whose name is to be analyzed for being a child.
-     * @param parent parent file name to be analyzed for parenthood.
-     * @return true if file is an attachment of parent.
-     */
-    private boolean isAttachment(File file, File parentFile) {
-        return parentFile != null && file.getName().startsWith(parentFile.getName() + "-");
     }
 
     /**
@@ -175,97 +195,212 @@ public class PstProcessor implements ActionListener {
             }
         }
         new File(outputDir).mkdirs();
+        // killed if it runs over the PST budget, the emails extracted so far are still processed
+        long timeoutMs = Settings.getSettings().getPstTimeout();
         if (useJpst) {
             // TODO implement partial extraction
-            String cmd = "java -jar proprietary_drivers/jreadpst.jar "
-                    + pstFilePath + " "
-                    + outputDir + " false true";
             // TODO what if we are in Windows, do we still run Linux command ;) ?
-            PlatformUtil.runUnixCommand(cmd);
+            checkExtraction(ProcessRunner.run(Arrays.asList("java", "-jar", "proprietary_drivers/jreadpst.jar",
+                    pstFilePath, outputDir, "false", "true"), null, timeoutMs));
         } else {
             logger.info("Will use readpst...");
             // start a timer thread to periodically inform Hadoop that we are alive
-            // the assumption is that readpst is very stable
+            // since readpst is not always stable, the PST budget puts a limit on it
             Timer timer = new Timer(refreshInterval, this);
             timer.start();
-            String command = "readpst -e -D -b -S -o " + outputDir + " " + pstFilePath;
-            PlatformUtil.runUnixCommand(command);
-
+            try {
+                // the shell tells the pid of readpst first, so that readpst can be paused
+                checkExtraction(ProcessRunner.run(Arrays.asList("sh", "-c", "echo $$; exec \"$0\" \"$@\"",
+                        "readpst", "-e", "-D", "-b", "-S", "-o", outputDir, pstFilePath), null, timeoutMs,
+                        new FolderListener(new File(outputDir), Settings.getSettings().getPstScratchSize())));
+            } finally {
+                timer.stop();
+            }
             logger.info("readpst finished!");
-            timer.stop();
         }
     }
 
-    @Override
-    public void actionPerformed(ActionEvent event) {
-        // inform Hadoop that we are alive
-        if (context != null) {
-            context.progress();
+    private void checkExtraction(ProcessRunner.Result result) {
+        if (result.isTimedOut()) {
+            Stats.getInstance().addRetry(pstFilePath, "timed out");
+            if (context != null) {
+                Counter counter = context.getCounter(ConversionSupervisor.RETRY_COUNTER_GROUP,
+                        ConversionSupervisor.RETRY_COUNTER);
+                if (counter != null) {
+                    counter.increment(1);
+                }
+            }
+        } else if (result.getExitCode() != 0) {
+            logger.warn("PST extraction of {} failed: {}", pstFilePath, result.getError());
         }
     }
 
     /**
-     * Sort according to the file naming created by readpst.
+     * Follows the progress which readpst reports, and processes each folder as soon as readpst is done with it,
+     * while readpst goes on with the next ones. A folder is done after its subfolders, so all of it can be
+     * processed then, and deleted. A folder which cannot be told by its name, such as one readpst renamed for being
+     * a duplicate, is left for the end. When the PST is split, a folder of another split is only deleted.
+     *
+     * readpst reports one line per folder, so it is not held back by its output. While a folder is processed, the
+     * size of the extracted emails is checked, and readpst is stopped when it has run too far ahead, until the
+     * folder is done and deleted. It is never stopped while the mapper waits for it, so the bound is exceeded only
+     * by a folder larger than the bound.
      */
-    class MailWithAttachmentsComparator implements Comparator<File> {
+    private class FolderListener implements ProcessRunner.LineListener {
+
+        private final File outputDir;
+        private final long scratchSize;
+        private String pid;
+        private boolean processing;
+        private boolean stopped;
+
+        FolderListener(File outputDir, long scratchSize) {
+            this.outputDir = outputDir;
+            this.scratchSize = scratchSize;
+        }
 
         @Override
-        public int compare(File file1, File file2) {
-            if (file1.isDirectory() || file2.isDirectory()) {
-                return file1.getPath().compareTo(file2.getPath());
+        public void onLine(String line) throws IOException, InterruptedException {
+            logger.trace(line);
+            if (pid == null) {
+                pid = PID.matcher(line.trim()).matches() ? line.trim() : "";
+                return;
             }
-            int comparePath = file1.getParent().compareTo(file2.getParent());
-            if (comparePath != 0) {
-                return comparePath;
+            String folderName = getDoneFolder(line);
+            if (folderName == null) {
+                return;
             }
-            String fileName1 = file1.getName();
-            String fileName2 = file2.getName();
-            int nfile1, nfile2;
-            try {
-                nfile1 = Integer.parseInt(fileName1);
-                nfile2 = Integer.parseInt(fileName2);
-                return new Integer(nfile1).compareTo(new Integer(nfile2));
-            } catch (NumberFormatException e) {
-                // fall through and process attachments
+            String name = toDirName(folderName);
+            List<File> folders = findFolders(outputDir, name);
+            if (folders.size() == 1) {
+                File folder = folders.get(0);
+                ScheduledFuture<?> monitor = startProcessing();
+                try {
+                    if (Project.getProject().isPstFolderIncluded(name)) {
+                        logger.debug("Processing PST folder {} while extraction goes on", folder);
+                        collectEmails(folder.getPath(), false, null);
+                    }
+                    Util.deleteDirectory(folder);
+                } finally {
+                    if (monitor != null) {
+                        monitor.cancel(false);
+                    }
+                    endProcessing();
+                }
             }
-            try {
-                int index1 = fileName1.indexOf('-');
-                nfile1 = getFileNameInt(fileName1);
-
-                int index2 = fileName2.indexOf('-');
-                nfile2 = getFileNameInt(fileName2);
+        }
 
-                if (nfile1 < nfile2) {
-                    return -1;
-                }
-                if (nfile1 > nfile2) {
-                    return 1;
-                }
-                if (index1 < 0) {
-                    return -1;
+        private synchronized ScheduledFuture<?> startProcessing() {
+            processing = true;
+            if (scratchSize <= 0 || pid.isEmpty()) {
+                return null;
+            }
+            return scratchMonitor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkScratch();
                 }
-                if (index2 < 0) {
-                    return 1;
+            }, SCRATCH_CHECK_MS, SCRATCH_CHECK_MS, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void checkScratch() {
+            if (processing && !stopped) {
+                long size = getScratchSize(outputDir);
+                if (size > scratchSize) {
+                    logger.debug("readpst has {} bytes extracted, stopping it", size);
+                    stopped = signal("STOP");
                 }
-                return fileName1.compareTo(fileName2);
-            } catch (NumberFormatException e) {
-                logger.warn("Unexpected problem parsing email file name", e);
-                return fileName1.compareTo(fileName2);
             }
         }
-        
-        private int getFileNameInt(String fileName) {
-            int index = fileName.indexOf('-');
-            if (index > 0) {
-                return Integer.parseInt(fileName.substring(0, index));
-            } else {
-                int extIndex = fileName.indexOf('.');
-                if (extIndex > 0) {
-                    fileName = fileName.substring(0, extIndex);
-                }
-                
-                return Integer.parseInt(fileName);
+
+        private synchronized void endProcessing() {
+            processing = false;
+            if (stopped) {
+                logger.debug("Resuming readpst");
+                stopped = !signal("CONT");
+            }
+        }
+
+        /**
+         * @return true if the signal went to readpst
+         */
+        private boolean signal(String signal) {
+            try {
+                return ProcessRunner.run(Arrays.asList("kill", "-" + signal, pid), null, SIGNAL_TIMEOUT_MS)
+                        .isSuccess();
+            } catch (IOException e) {
+                logger.warn("Could not send {} to readpst", signal, e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @param line a line of the readpst output.
+     * @return the name of the folder readpst is done with, or null if the line does not tell.
+     */
+    static String getDoneFolder(String line) {
+        Matcher matcher = FOLDER_DONE.matcher(line);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /**
+     * Find the extracted folders by the name, among those with no subfolders left, since readpst does not start
+     * the subfolders of a folder after it is done with it.
+     *
+     * @param outputDir where readpst extracts to.
+     * @param name directory name of the folder.
+     * @return the folders of that name, more than one if the name does not tell which.
+     */
+    static List<File> findFolders(File outputDir, String name) {
+        List<File> folders = new ArrayList<>();
+        findFolders(outputDir, outputDir, name, folders);
+        return folders;
+    }
+
+    private static void findFolders(File outputDir, File dir, String name, List<File> folders) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        boolean leaf = true;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                leaf = false;
+                findFolders(outputDir, file, name, folders);
+            }
+        }
+        if (leaf && !dir.equals(outputDir) && dir.getName().equals(name)) {
+            folders.add(dir);
+        }
+    }
+
+    /**
+     * @return the size of the files under the directory, which may be deleted meanwhile
+     */
+    static long getScratchSize(File dir) {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.isDirectory() ? getScratchSize(file) : file.length();
             }
         }
+        return size;
+    }
+
+    /**
+     * @return the directory name readpst gives a folder
+     */
+    static String toDirName(String folderName) {
+        return folderName.replaceAll("[/\\\\:]", "_");
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent event) {
+        // inform Hadoop that we are alive
+        if (context != null) {
+            context.progress();
+        }
     }
 }
@@ -0,0 +1,177 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.main;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The files of a directory written by readpst, in the order they are processed: each email, named by its number,
+ * such as "23", followed by its attachments, such as "23-excel.xls". Readpst numbers the emails of a folder from 1
+ * on, so the files are grouped by their numbers in one pass over an array indexed by the number, instead of sorting
+ * the directory with a comparison which parses the names every time.
+ *
+ * Files without a number, or with one far beyond the count of files, come after the numbered ones, by name, and
+ * the subdirectories last.
+ *
+ * @author mark
+ */
+class ReadpstListing {
+
+    private static final Comparator<File> BY_NAME = new Comparator<File>() {
+        @Override
+        public int compare(File file1, File file2) {
+            return file1.getName().compareTo(file2.getName());
+        }
+    };
+    private final File[] files;
+    private final int[] attachmentCounts;
+
+    /**
+     * @param files the files of the directory, in any order.
+     */
+    ReadpstListing(File[] files) {
+        this.files = new File[files.length];
+        this.attachmentCounts = new int[files.length];
+        // numbers are dense, a number above the bound is not one that readpst gave
+        int bound = 2 * files.length + 1024;
+        int[] numbers = new int[files.length];
+        int maxNumber = -1;
+        List<File> others = new ArrayList<>();
+        List<File> dirs = new ArrayList<>();
+        for (int i = 0; i < files.length; ++i) {
+            numbers[i] = -1;
+            if (files[i].isDirectory()) {
+                dirs.add(files[i]);
+            } else {
+                numbers[i] = getNumber(files[i].getName(), bound);
+                if (numbers[i] < 0) {
+                    others.add(files[i]);
+                }
+                maxNumber = Math.max(maxNumber, numbers[i]);
+            }
+        }
+        // counting sort, then the files of a number are at start[number] .. start[number + 1]
+        int[] start = new int[maxNumber + 2];
+        for (int number : numbers) {
+            if (number >= 0) {
+                ++start[number + 1];
+            }
+        }
+        for (int n = 1; n < start.length; ++n) {
+            start[n] += start[n - 1];
+        }
+        int[] next = Arrays.copyOf(start, start.length);
+        for (int i = 0; i < files.length; ++i) {
+            if (numbers[i] >= 0) {
+                this.files[next[numbers[i]]++] = files[i];
+            }
+        }
+        for (int n = 0; n <= maxNumber; ++n) {
+            if (start[n + 1] - start[n] > 0) {
+                group(start[n], start[n + 1]);
+            }
+        }
+        int pos = start[start.length - 1];
+        Collections.sort(others, BY_NAME);
+        Collections.sort(dirs, BY_NAME);
+        for (File file : others) {
+            this.files[pos++] = file;
+        }
+        for (File dir : dirs) {
+            this.files[pos++] = dir;
+        }
+    }
+
+    /**
+     * Put the email of a number first, then its attachments, then any other files of the number, which are
+     * processed on their own.
+     */
+    private void group(int from, int to) {
+        if (to - from == 1) {
+            return;
+        }
+        for (int i = from; i < to; ++i) {
+            if (isNumber(files[i].getName())) {
+                File email = files[i];
+                files[i] = files[from];
+                files[from] = email;
+                String prefix = email.getName() + "-";
+                int end = from + 1;
+                for (int j = from + 1; j < to; ++j) {
+                    if (files[j].getName().startsWith(prefix)) {
+                        File attachment = files[j];
+                        files[j] = files[end];
+                        files[end++] = attachment;
+                    }
+                }
+                Arrays.sort(files, from + 1, end, BY_NAME);
+                Arrays.sort(files, end, to, BY_NAME);
+                attachmentCounts[from] = end - from - 1;
+                return;
+            }
+        }
+        Arrays.sort(files, from, to, BY_NAME);
+    }
+
+    /**
+     * @return the leading number of a file name, or -1 if there is none below the bound.
+     */
+    private static int getNumber(String name, int bound) {
+        int number = 0;
+        int i = 0;
+        for (; i < name.length(); ++i) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            number = number * 10 + (c - '0');
+            if (number >= bound) {
+                return -1;
+            }
+        }
+        return i > 0 ? number : -1;
+    }
+
+    private static boolean isNumber(String name) {
+        for (int i = 0; i < name.length(); ++i) {
+            if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return !name.isEmpty();
+    }
+
+    /**
+     * @return the files, in the order to process them.
+     */
+    File[] getFiles() {
+        return files;
+    }
+
+    /**
+     * @param position the position of a file.
+     * @return the number of attachments which follow the file, if it is an email.
+     */
+    int getAttachmentCount(int position) {
+        return attachmentCounts[position];
+    }
+}
@@ -21,20 +21,26 @@ import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Set;
 
 import javax.swing.Timer;
 
 import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.MD5Hash;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.tika.metadata.Metadata;
 import org.freeeed.data.index.LuceneIndex;
 import org.freeeed.ec2.S3Agent;
+import org.freeeed.mail.EmailProperties;
+import org.freeeed.print.ConversionSupervisor;
+import org.freeeed.print.OfficePrint;
 import org.freeeed.services.Project;
 import org.freeeed.services.Settings;
 import org.freeeed.services.Stats;
@@ -60,6 +66,11 @@ public class Reduce extends Reducer<Text, MapWritable, Text, Text>
     protected boolean isDuplicate;
     private Reducer.Context context;
     private LuceneIndex luceneIndex;
+    // imaging after de-duplication: the key of the document being reduced, and the last imaged one with its image
+    private boolean imageAfterDedup;
+    private String documentKey;
+    private String imagedKey;
+    private String imagedEntryName;
 
     @Override
     public void reduce(Text key, Iterable<MapWritable> values, Context context)
@@ -71,6 +82,8 @@ public class Reduce extends Reducer<Text, MapWritable, Text, Text>
         isDuplicate = false;
         first = true;
         for (MapWritable value : values) {
+            // the key moves along with the values, to the full key of each document in the group
+            documentKey = key.toString();
             processMap(value);
         }
     }
@@ -121,7 +134,11 @@ public class Reduce extends Reducer<Text, MapWritable, Text, Text>
         BytesWritable pdfBytesWritable = (BytesWritable) value.get(new Text(ParameterProcessing.NATIVE_AS_PDF));
         if (pdfBytesWritable != null) {
             zipFileWriter.addBinaryFile(pdfNativeEntryName, pdfBytesWritable.getBytes(), pdfBytesWritable.getLength());
+            columnMetadata.addMetadataValue(DocumentMetadataKeys.LINK_PDF, pdfNativeEntryName);
             logger.trace("Processing file: {}", pdfNativeEntryName);
+        } else if (imageAfterDedup && allMetadata.get(DocumentMetadataKeys.FILTERED) == null) {
+            addImage(bytesWritable, originalFileName, pdfNativeEntryName,
+                    allMetadata.get(DocumentMetadataKeys.DOCUMENT_ORIGINAL_PATH));
         }
         
         processHtmlContent(value, allMetadata);
@@ -147,6 +164,84 @@ public class Reduce extends Reducer<Text, MapWritable, Text, Text>
         first = false;
     }
 
+    /**
+     * Image a document after de-duplication. Duplicates have the same key and come one after the other, so only
+     * the first document of a key is imaged, and its duplicates link to the master's image.
+     *
+     * @param nativeBytes the native document.
+     * @param originalFileName original name of the document, which gives its type.
+     * @param pdfEntryName entry of the image in the output zip.
+     * @param originalPath original path of the document, which names it on the retry list.
+     */
+    private void addImage(BytesWritable nativeBytes, String originalFileName, String pdfEntryName,
+            String originalPath) throws IOException {
+        if (documentKey.equals(imagedKey)) {
+            if (imagedEntryName != null) {
+                columnMetadata.addMetadataValue(DocumentMetadataKeys.LINK_PDF, imagedEntryName);
+            }
+            return;
+        }
+        imagedKey = documentKey;
+        imagedEntryName = null;
+        if (nativeBytes == null) {
+            return;
+        }
+        String extension = Util.getExtension(originalFileName);
+        File nativeFile = File.createTempFile("image", extension == null || extension.isEmpty() ? "" : "." + extension);
+        File pdfFile = new File(nativeFile.getPath() + ".pdf");
+        ConversionSupervisor supervisor = ConversionSupervisor.getInstance();
+        int retryCount = Stats.getInstance().getRetryCount();
+        supervisor.setDocument(originalPath);
+        try {
+            byte[] nativeContent = Arrays.copyOf(nativeBytes.getBytes(), nativeBytes.getLength());
+            Files.write(nativeContent, nativeFile);
+            DerivativeCache derivativeCache = DerivativeCache.getInstance();
+            String pdfCacheKey = getPdfCacheKey(nativeFile, nativeContent, originalFileName);
+            if (derivativeCache.getFile(pdfCacheKey, pdfFile)) {
+                logger.trace("PDF image of {} is found in the cache", originalPath);
+            } else if (OfficePrint.getInstance().createPdf(nativeFile.getPath(), pdfFile.getPath(),
+                    originalFileName)) {
+                // the placeholder of a failed imaging is not cached, the next run may do better
+                derivativeCache.putFile(pdfCacheKey, pdfFile);
+            }
+            if (pdfFile.exists()) {
+                byte[] pdfBytes = Util.getFileContent(pdfFile.getPath());
+                zipFileWriter.addBinaryFile(pdfEntryName, pdfBytes, pdfBytes.length);
+                imagedEntryName = pdfEntryName;
+                columnMetadata.addMetadataValue(DocumentMetadataKeys.LINK_PDF, pdfEntryName);
+                logger.trace("Processing file: {}", pdfEntryName);
+            }
+        } finally {
+            supervisor.setDocument(null);
+            nativeFile.delete();
+            pdfFile.delete();
+        }
+        if (Stats.getInstance().getRetryCount() > retryCount) {
+            // the retry list stays on the node of the task
+            Counter counter = context.getCounter(ConversionSupervisor.RETRY_COUNTER_GROUP,
+                    ConversionSupervisor.RETRY_COUNTER);
+            if (counter != null) {
+                counter.increment(Stats.getInstance().getRetryCount() - retryCount);
+            }
+        }
+        context.progress();
+    }
+
+    /**
+     * @return the key of the PDF image of a document in the derivative cache, the same as the mapper gives it, or
+     * null if there is no cache.
+     */
+    private String getPdfCacheKey(File nativeFile, byte[] nativeContent, String originalFileName) {
+        DiscoveryFile discoveryFile = new DiscoveryFile(nativeFile.getPath(), originalFileName);
+        discoveryFile.setFileHash(MD5Hash.digest(nativeContent));
+        try {
+            return DerivativeCache.getInstance().getKey(discoveryFile, DerivativeCache.PDF);
+        } catch (IOException e) {
+            logger.warn("No cache key for {}", originalFileName, e);
+            return null;
+        }
+    }
+
     private void processHtmlContent(MapWritable value, Metadata allMetadata) throws IOException {
         BytesWritable htmlBytesWritable = (BytesWritable) value.get(new Text(ParameterProcessing.NATIVE_AS_HTML_NAME));
         if (htmlBytesWritable != null) {
@@ -204,6 +299,18 @@ public class Reduce extends Reducer<Text, MapWritable, Text, Text>
 
         luceneIndex = new LuceneIndex(settings.getLuceneIndexDir(), project.getProjectCode(), null);
         luceneIndex.init();        
+
+        imageAfterDedup = project.isCreatePDF() && project.isImageAfterDedup();
+        if (imageAfterDedup) {
+            if (project.isEnvHadoop()) {
+                // emails are imaged through their HTML, which needs the email properties
+                String emailPropertiesContents = context.getConfiguration().get(EmailProperties.PROPERTIES_FILE);
+                new File(EmailProperties.PROPERTIES_FILE).getParentFile().mkdirs();
+                Files.write(emailPropertiesContents.getBytes(), new File(EmailProperties.PROPERTIES_FILE));
+            }
+            OfficePrint.getInstance().init();
+            DerivativeCache.getInstance().init();
+        }
     }
 
     @Override
@@ -215,6 +322,9 @@ public class Reduce extends Reducer<Text, MapWritable, Text, Text>
             context.write(new Text("Hash"), new Text(columnMetadata.delimiterSeparatedHeaders()));
         }
         zipFileWriter.closeZip();
+        if (imageAfterDedup) {
+            OfficePrint.getInstance().destroy();
+        }
 
         if (Project.getProject().isLuceneIndexEnabled()) {
             mergeLuceneIndex();
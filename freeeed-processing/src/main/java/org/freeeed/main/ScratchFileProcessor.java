@@ -0,0 +1,111 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.main;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.mapreduce.Mapper.Context;
+import org.freeeed.data.index.LuceneIndex;
+import org.freeeed.services.Settings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processes a container of emails, such as a mailbox, one email at a time, through one scratch file which every
+ * email reuses, so that neither the memory nor the scratch space grows with the size of the container. A subclass
+ * copies each email of the container to the scratch file and has it processed, and the emails are listed under the
+ * path of the container, numbered in order.
+ *
+ * @author mark
+ */
+public abstract class ScratchFileProcessor extends FileProcessor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ScratchFileProcessor.class);
+    private final String originalPath;
+    private final String scratchFileName;
+    private final String emailExtension;
+    private File scratchFile;
+    private int emailCount;
+
+    /**
+     * @param filePath the container.
+     * @param originalPath the path of the container in the collection, under which its emails are listed.
+     * @param scratchFileName name of the scratch file, whose extension picks the parser of the emails.
+     * @param emailExtension extension of the names the emails are listed under.
+     * @param context Hadoop context, may be null.
+     * @param luceneIndex the index.
+     */
+    protected ScratchFileProcessor(String filePath, String originalPath, String scratchFileName,
+            String emailExtension, Context context, LuceneIndex luceneIndex) {
+        super(context, luceneIndex);
+        setSingleFileName(filePath);
+        this.originalPath = originalPath;
+        this.scratchFileName = scratchFileName;
+        this.emailExtension = emailExtension;
+    }
+
+    @Override
+    public void process(boolean hasAttachments, MD5Hash hash) throws IOException, InterruptedException {
+        String tmpDir = Settings.getSettings().getTmpDir();
+        new File(tmpDir).mkdirs();
+        scratchFile = new File(tmpDir, scratchFileName);
+        try {
+            processEmails();
+        } finally {
+            scratchFile.delete();
+            new File(scratchFile.getPath() + ".pdf").delete();
+        }
+        logger.info("Processed {} emails of {}", emailCount, originalPath);
+    }
+
+    /**
+     * Copy each email of the container to the scratch file, and process it with processScratchFile once it is
+     * complete.
+     */
+    abstract void processEmails() throws IOException, InterruptedException;
+
+    /**
+     * @return the file the email in progress is copied to.
+     */
+    File getScratchFile() {
+        return scratchFile;
+    }
+
+    /**
+     * Process the email in the scratch file as the next email of the container.
+     */
+    void processScratchFile() throws IOException, InterruptedException {
+        ++emailCount;
+        // the image of the previous email must not be taken for this one
+        new File(scratchFile.getPath() + ".pdf").delete();
+        String emailName = emailCount + emailExtension;
+        logger.trace("Processing email {} of {}", emailCount, originalPath);
+        DiscoveryFile discoveryFile = new DiscoveryFile(scratchFile.getPath(), emailName);
+        discoveryFile.setOriginalPath(originalPath + File.separator + emailName);
+        processFileEntry(discoveryFile);
+        if (getContext() != null) {
+            getContext().progress();
+        }
+    }
+
+    @Override
+    String getOriginalDocumentPath(DiscoveryFile discoveryFile) {
+        return originalPath + File.separator + discoveryFile.getRealFileName();
+    }
+}
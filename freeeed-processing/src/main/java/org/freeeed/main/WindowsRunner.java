@@ -45,6 +45,8 @@ public class WindowsRunner {
             
             SolrIndex.getInstance().init();
             OfficePrint.getInstance().init();
+            KnownFileFilter.getInstance().init();
+            DerivativeCache.getInstance().init();
             
             List<String> zipFiles = Files.readLines(
                     new File(project.getInventoryFileName()),
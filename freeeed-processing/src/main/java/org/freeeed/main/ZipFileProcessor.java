@@ -22,11 +22,22 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
+import org.apache.commons.compress.archivers.sevenz.SevenZFile;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2Utils;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.io.MD5Hash;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
@@ -59,7 +70,13 @@ public class ZipFileProcessor extends FileProcessor {
     private static final int ZIP_STREAM = 2;
     private int zipLibrary = TRUE_ZIP;
     static private final int BUFFER = 4096;
+    // a tar archive is told by its first header block
+    static private final int TAR_HEADER = 512;
     private byte data[] = new byte[BUFFER];
+    /**
+     * NSF files of the package which are being parsed while the rest of it is processed
+     */
+    private final List<NSFProcessor> nsfProcessors = new ArrayList<>();
 
     /**
      * Constructor
@@ -121,6 +138,7 @@ public class ZipFileProcessor extends FileProcessor {
             }
             zipInputStream.close();
         }
+        finishNsfProcessors();
     }
 
     /**
@@ -147,6 +165,7 @@ public class ZipFileProcessor extends FileProcessor {
             emitAsMap(getZipFileName(), metadata);
         }
         TFile.umount(true);
+        finishNsfProcessors();
         if (Project.getProject().isEnvHadoop()) {
             new File(getZipFileName()).delete();
         }
@@ -179,18 +198,14 @@ public class ZipFileProcessor extends FileProcessor {
                     WindowsReduce.getInstance().processBufferedFiles();
                 }
                 
-                if (PstProcessor.isPST(tempFile)) {
-                    new PstProcessor(tempFile, getContext(), getLuceneIndex()).process();
-                } else if (NSFProcessor.isNSF(tempFile)) {
-                    new NSFProcessor(tempFile, getContext(), getLuceneIndex()).process();
-                } else {
-                    String originalFileName = tfile.getPath();
+                String originalFileName = tfile.getPath();
 
-                    if (originalFileName.startsWith(getZipFileName())) {
-                        originalFileName = originalFileName.substring(getZipFileName().length() + 1);
-                    }                    
-                    processFileEntry(new DiscoveryFile(tempFile, originalFileName));
+                if (originalFileName.startsWith(getZipFileName())) {
+                    originalFileName = originalFileName.substring(getZipFileName().length() + 1);
                 }
+                DiscoveryFile discoveryFile = new DiscoveryFile(tempFile, originalFileName);
+                discoveryFile.setLastModified(tfile.lastModified());
+                processExtractedFile(discoveryFile);
             } catch (Exception e) {
                 logger.error("Problem processing zip file: ", e);
                 
@@ -208,12 +223,196 @@ public class ZipFileProcessor extends FileProcessor {
         }
         // uncompress and write to temporary file
         String tempFile = writeZipEntry(zipInputStream, zipEntry);
-        if (PstProcessor.isPST(tempFile)) {
+        DiscoveryFile discoveryFile = new DiscoveryFile(tempFile, zipEntry.getName());
+        discoveryFile.setLastModified(Math.max(zipEntry.getTime(), 0));
+        processExtractedFile(discoveryFile);
+    }
+
+    /**
+     * Process the emails of the NSF files of the package, as each one is parsed.
+     */
+    private void finishNsfProcessors() throws InterruptedException {
+        for (NSFProcessor nsfProcessor : nsfProcessors) {
+            try {
+                nsfProcessor.finish();
+            } catch (IOException e) {
+                logger.error("Problem processing NSF file", e);
+            }
+        }
+        nsfProcessors.clear();
+    }
+
+    /**
+     * Process a file extracted from an archive by its type. Mailboxes go to their processors, zip, tar and 7z
+     * archives are opened in turn, and any other file is a document.
+     *
+     * @param discoveryFile the extracted file.
+     * @throws Exception on any problem with the file.
+     */
+    private void processExtractedFile(DiscoveryFile discoveryFile) throws Exception {
+        String tempFile = discoveryFile.getPath().getPath();
+        String mediaType = DocumentTypeDetector.getInstance().detect(discoveryFile);
+        if (DocumentTypeDetector.PST.equals(mediaType)) {
             new PstProcessor(tempFile, getContext(), getLuceneIndex()).process();
-        } else if (NSFProcessor.isNSF(tempFile)) {
-            new NSFProcessor(tempFile, getContext(), getLuceneIndex()).process();
-        } else {            
-            processFileEntry(new DiscoveryFile(tempFile, zipEntry.getName()));
+        } else if (DocumentTypeDetector.NSF.equals(mediaType)) {
+            NSFProcessor nsfProcessor = new NSFProcessor(tempFile, getContext(), getLuceneIndex());
+            nsfProcessor.start();
+            nsfProcessors.add(nsfProcessor);
+        } else if (DocumentTypeDetector.MBOX.equals(mediaType)) {
+            new MboxProcessor(tempFile, discoveryFile.getRealFileName(), getContext(), getLuceneIndex())
+                    .process(false, null);
+        } else if (DocumentTypeDetector.NSF_RECORDS.equals(mediaType)) {
+            new NSFRecordProcessor(tempFile, discoveryFile.getRealFileName(), getContext(), getLuceneIndex())
+                    .process(false, null);
+        } else if (DocumentTypeDetector.ZIP.equals(mediaType)) {
+            processZip(discoveryFile.getPath(), discoveryFile.getRealFileName());
+        } else if (DocumentTypeDetector.SEVEN_Z.equals(mediaType)) {
+            processSevenZ(discoveryFile.getPath(), discoveryFile.getRealFileName());
+        } else if (DocumentTypeDetector.getInstance().isArchive(mediaType)) {
+            processTar(discoveryFile.getPath(), discoveryFile.getRealFileName(), mediaType);
+        } else {
+            processFileEntry(discoveryFile);
+        }
+    }
+
+    /**
+     * Stream the entries of a tar archive, compressed with gzip or bzip2 or not, one after the other. A compressed
+     * file which is not a tar archive is a single entry.
+     *
+     * @param file the archive.
+     * @param archivePath the path of the archive in the collection.
+     * @param mediaType the type of the archive.
+     */
+    private void processTar(File file, String archivePath, String mediaType) throws Exception {
+        try (InputStream is = openUncompressed(file, mediaType)) {
+            byte[] header = new byte[TAR_HEADER];
+            is.mark(header.length);
+            int length = 0;
+            int count;
+            while (length < header.length && (count = is.read(header, length, header.length - length)) != -1) {
+                length += count;
+            }
+            is.reset();
+            boolean compressed = DocumentTypeDetector.GZIP.equals(mediaType)
+                    || DocumentTypeDetector.BZIP2.equals(mediaType);
+            if (compressed && !TarArchiveInputStream.matches(header, length)) {
+                String entryName = DocumentTypeDetector.GZIP.equals(mediaType)
+                        ? GzipUtils.getUncompressedFilename(archivePath)
+                        : BZip2Utils.getUncompressedFilename(archivePath);
+                processArchiveEntry(is, entryName, file.lastModified());
+                return;
+            }
+            TarArchiveInputStream tarInputStream = new TarArchiveInputStream(is);
+            TarArchiveEntry entry;
+            while ((entry = tarInputStream.getNextTarEntry()) != null) {
+                if (entry.isFile()) {
+                    processArchiveEntry(tarInputStream, archivePath + File.separator + entry.getName(),
+                            entry.getModTime().getTime());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream the entries of a zip archive extracted from another archive, such as a zip inside a tar.
+     *
+     * @param file the archive.
+     * @param archivePath the path of the archive in the collection.
+     */
+    private void processZip(File file, String archivePath) throws Exception {
+        try (ZipInputStream zipInputStream = new ZipInputStream(
+                new BufferedInputStream(new FileInputStream(file), BUFFER))) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                if (!entry.isDirectory()) {
+                    processArchiveEntry(zipInputStream, archivePath + File.separator + entry.getName(),
+                            entry.getTime());
+                }
+            }
+        }
+    }
+
+    private InputStream openUncompressed(File file, String mediaType) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(file), BUFFER);
+        try {
+            if (DocumentTypeDetector.GZIP.equals(mediaType)) {
+                is = new BufferedInputStream(new GzipCompressorInputStream(is), BUFFER);
+            } else if (DocumentTypeDetector.BZIP2.equals(mediaType)) {
+                is = new BufferedInputStream(new BZip2CompressorInputStream(is), BUFFER);
+            }
+            return is;
+        } catch (IOException e) {
+            is.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read the entries of a 7z archive, which needs random access to the file, so it is not streamed.
+     *
+     * @param file the archive.
+     * @param archivePath the path of the archive in the collection.
+     */
+    private void processSevenZ(File file, String archivePath) throws Exception {
+        final SevenZFile sevenZFile = new SevenZFile(file);
+        try {
+            InputStream entryStream = new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    return sevenZFile.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return sevenZFile.read(b, off, len);
+                }
+            };
+            SevenZArchiveEntry entry;
+            while ((entry = sevenZFile.getNextEntry()) != null) {
+                if (!entry.isDirectory() && entry.hasStream()) {
+                    processArchiveEntry(entryStream, archivePath + File.separator + entry.getName(),
+                            entry.getHasLastModifiedDate() ? entry.getLastModifiedDate().getTime() : 0);
+                }
+            }
+        } finally {
+            sevenZFile.close();
+        }
+    }
+
+    /**
+     * Extract an entry of a tar or 7z archive to a temporary file of its own, since it may be an archive which is
+     * being read when the next entry is extracted, and process it.
+     *
+     * @param is the stream of the entry, which is not closed.
+     * @param entryPath the path of the entry in the collection.
+     * @param lastModified the time the entry was last modified.
+     */
+    private void processArchiveEntry(InputStream is, String entryPath, long lastModified)
+            throws IOException, InterruptedException {
+        if (PlatformUtil.isWindows()) {
+            WindowsReduce.getInstance().processBufferedFiles();
+        }
+        File tmpDir = new File(Settings.getSettings().getTmpDir());
+        tmpDir.mkdirs();
+        String extension = Util.getExtension(entryPath);
+        File tempFile = File.createTempFile("entry", extension.isEmpty() ? null : "." + extension, tmpDir);
+        try {
+            logger.trace("Extracting: {}", entryPath);
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER)) {
+                IOUtils.copy(is, os);
+            }
+            DiscoveryFile discoveryFile = new DiscoveryFile(tempFile.getPath(), entryPath);
+            discoveryFile.setLastModified(Math.max(lastModified, 0));
+            processExtractedFile(discoveryFile);
+        } catch (Exception e) {
+            logger.error("Problem processing archive entry {}", entryPath, e);
+            Metadata metadata = new Metadata();
+            metadata.set(DocumentMetadataKeys.PROCESSING_EXCEPTION, e.getMessage());
+            metadata.set(DocumentMetadataKeys.DOCUMENT_ORIGINAL_PATH, entryPath);
+            emitAsMap(tempFile.getPath(), metadata);
+        } finally {
+            tempFile.delete();
+            new File(tempFile.getPath() + ".pdf").delete();
         }
     }
 
@@ -16,6 +16,7 @@
  */
 package org.freeeed.ocr;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -33,6 +34,8 @@ import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import com.google.common.io.Files;
+
 /**
  *
  *
@@ -55,7 +58,7 @@ public class Document {
     }
     private DocumentType type = DocumentType.UNKNOWN;
     private String file;
-    private List<String> images;
+    private List<byte[]> images;
     private Metadata metadata;
     private OCRConfiguration conf;
 
@@ -64,12 +67,15 @@ public class Document {
      *
      * @param file
      */
-    private Document(String file, OCRConfiguration conf) {
+    private Document(String file, OCRConfiguration conf, String mimeType) {
         this.file = file;
         this.conf = conf;
         
-        parseContent();
-        detectType();
+        if (mimeType == null) {
+            parseContent();
+            mimeType = metadata.get(HttpHeaders.CONTENT_TYPE);
+        }
+        detectType(mimeType);
         extractImages();
     }
     
@@ -98,8 +104,7 @@ public class Document {
         }
     }
     
-    private void detectType() {
-        String mimeType = metadata.get(HttpHeaders.CONTENT_TYPE);
+    private void detectType(String mimeType) {
         if (mimeType == null) {
             return;
         }
@@ -114,10 +119,14 @@ public class Document {
     }
     
     private void extractImages() {
-        this.images = new ArrayList<String>();
+        this.images = new ArrayList<>();
         
         if (type == DocumentType.IMAGE) {
-            images.add(file);
+            try {
+                images.add(Files.toByteArray(new File(file)));
+            } catch (IOException e) {
+                logger.warn("Problem reading image {}", file, e);
+            }
             return;
         }
         
@@ -132,7 +141,7 @@ public class Document {
      *
      * @return
      */
-    public List<String> getImages() {
+    public List<byte[]> getImages() {
         return images;
     }
 
@@ -154,7 +163,21 @@ public class Document {
      * @return
      */
     public static Document createDocument(String file, OCRConfiguration conf) {
-        Document doc = new Document(file, conf);
+        Document doc = new Document(file, conf, null);
+        return doc;
+    }
+
+    /**
+     *
+     * Create a new image parser for a document of known type, without parsing it again.
+     *
+     * @param file
+     * @param conf
+     * @param mimeType type found by the main parsing
+     * @return
+     */
+    public static Document createDocument(String file, OCRConfiguration conf, String mimeType) {
+        Document doc = new Document(file, conf, mimeType);
         return doc;
     }
 }
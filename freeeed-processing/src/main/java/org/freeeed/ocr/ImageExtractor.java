@@ -39,11 +39,11 @@ public abstract class ImageExtractor {
     }
 
     /**
-     * Extract and return the images for this file, if any
+     * Extract and return the images for this file, if any, as image file bytes
      *
      * @return
      */
-    public abstract List<String> extractImages();
+    public abstract List<byte[]> extractImages();
 
     /**
      *
@@ -16,6 +16,8 @@
 */
 package org.freeeed.ocr;
 
+import java.util.List;
+
 /**
  * 
  * Interface OCREngine.
@@ -28,14 +30,31 @@ package org.freeeed.ocr;
 public interface OCREngine {
 
     /**
-     * Do OCR processing over the given image file
+     * Do OCR processing over the given image
      * and return the recognized text. 
      * 
-     * @param imageFile
-     * @return
+     * @param image image bytes
+     * @return recognized text, or null
+     */
+    String getImageText(byte[] image);
+
+    /**
+     * Do OCR processing over several images at once, which
+     * may be cheaper than one image at a time.
+     *
+     * @param images image bytes
+     * @return recognized text for each image, in the same order, null for the images not recognized
      */
-    String getImageText(String imageFile);
+    List<String> getImageTexts(List<byte[]> images);
     
+    /**
+     * Identify the engine and its settings, so that cached
+     * results of another engine are not used.
+     *
+     * @return engine name, version and settings
+     */
+    String getSignature();
+
     /**
      * Check if the OCR engine is available.
      * This should encapsulate all platform specific
@@ -16,11 +16,26 @@
  */
 package org.freeeed.ocr;
 
+import java.io.File;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.hadoop.io.MD5Hash;
 import org.apache.hadoop.mapreduce.Mapper.Context;
 import org.freeeed.ocr.tess.TesseractOCRFactory;
+import org.freeeed.services.Project;
+import org.freeeed.services.Settings;
+import org.freeeed.util.DiskCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,6 +46,11 @@ import org.slf4j.LoggerFactory;
  * Search in documents for images, do OCR processing over them and extract their text. Return the result text for each
  * image found.
  *
+ * Tesseract is single-threaded, so the images are recognized in parallel by a bounded pool, shared by all the
+ * documents, of as many workers as the settings allow (the number of cores by default). Each worker gets a batch of
+ * images, recognized in one tesseract run, so that the tesseract startup is paid once per batch. Recognized text is
+ * kept in a cache on disk, by image content, so that an image seen before is not recognized again.
+ *
  * @author ilazarov
  *
  */
@@ -38,8 +58,16 @@ public class OCRProcessor {
 
     private static final Logger logger = LoggerFactory.getLogger(OCRProcessor.class);
     private static OCRProcessor __instance;
+    /**
+     * How often to report progress to Hadoop while waiting for the OCR of a document
+     */
+    private static final long PROGRESS_INTERVAL_MS = 5000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     private OCREngine ocrEngine;
     private OCRConfiguration conf;
+    private ExecutorService executor;
+    private int threads = 1;
+    private DiskCache cache;
 
     /**
      *
@@ -49,29 +77,108 @@ public class OCRProcessor {
      * @return
      */
     public List<String> getImageText(String documentFile) {
+        return getImageText(documentFile, null, null, 0);
+    }
+
+    /**
+     *
+     * Get the text for the images of a document which was already parsed. Only images and PDFs without a text
+     * layer are OCRed, and blank or tiny images are skipped.
+     *
+     * @param documentFile
+     * @param mimeType type found by the parser, or null to parse the document here
+     * @param text text found by the parser, or null
+     * @param pageCount number of pages found by the parser, 0 if not known
+     * @return
+     */
+    public List<String> getImageText(String documentFile, String mimeType, String text, int pageCount) {
         List<String> imageTexts = new ArrayList<>();
 
         if (!ocrEngine.isEngineAvailable()) {
             return imageTexts;
         }
 
+        if (mimeType != null && !isOcrCandidate(mimeType, text, pageCount)) {
+            logger.trace("OCR - not needed for {}", documentFile);
+            return imageTexts;
+        }
+
         logger.trace("OCR - processing document: {}", documentFile);
 
-        Document doc = Document.createDocument(documentFile, conf);
+        Document doc = Document.createDocument(documentFile, conf, mimeType);
 
         if (doc.containImages()) {
-            List<String> images = doc.getImages();
+            List<byte[]> images = doc.getImages();
+
+            logger.trace("OCR - {} images", images.size());
 
-            logger.trace("OCR - Images: {}", images);
+            int minImageSize = Project.getProject().getOcrMinImageSize();
+            List<byte[]> candidates = new ArrayList<>(images.size());
+            for (byte[] image : images) {
+                if (!OCRUtil.isTrivialImage(image, minImageSize)) {
+                    candidates.add(image);
+                }
+            }
+            logger.trace("OCR - {} images are blank or too small", images.size() - candidates.size());
+            images = candidates;
 
-            for (String image : images) {
-                String text = ocrEngine.getImageText(image);
-                if (text != null) {
-                    imageTexts.add(text);
+            // repeated images, such as logos and letterheads, come from the cache
+            String[] texts = new String[images.size()];
+            String[] keys = new String[images.size()];
+            final List<Integer> misses = new ArrayList<>();
+            for (int i = 0; i < images.size(); ++i) {
+                if (cache != null) {
+                    keys[i] = getCacheKey(images.get(i));
+                    byte[] cached = cache.get(keys[i]);
+                    if (cached != null) {
+                        texts[i] = new String(cached, UTF8);
+                        continue;
+                    }
                 }
+                misses.add(i);
+            }
+            logger.trace("OCR - {} images found in the cache", images.size() - misses.size());
 
-                if (conf.getContext() != null) {
-                    conf.getContext().progress();
+            // one tesseract run per batch, with enough batches to keep all the workers busy
+            int batchSize = Math.max(1, Math.min(Settings.getSettings().getOcrBatchSize(),
+                    (misses.size() + threads - 1) / threads));
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (int start = 0; start < misses.size(); start += batchSize) {
+                final List<byte[]> batch = new ArrayList<>(batchSize);
+                for (int index : misses.subList(start, Math.min(start + batchSize, misses.size()))) {
+                    batch.add(images.get(index));
+                }
+                futures.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() {
+                        return ocrEngine.getImageTexts(batch);
+                    }
+                }));
+            }
+            // collect in page order, keeping Hadoop informed while the workers run
+            for (int i = 0; i < futures.size(); ++i) {
+                try {
+                    List<String> batchTexts = waitFor(futures.get(i));
+                    for (int j = 0; j < batchTexts.size(); ++j) {
+                        int index = misses.get(i * batchSize + j);
+                        texts[index] = batchTexts.get(j);
+                        if (cache != null && texts[index] != null) {
+                            cache.put(keys[index], texts[index].getBytes(UTF8));
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    logger.warn("OCR - problem with image batch {} of {}", i + 1, documentFile, e.getCause());
+                } catch (InterruptedException e) {
+                    for (Future<List<String>> future : futures) {
+                        future.cancel(true);
+                    }
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            for (String imageText : texts) {
+                if (imageText != null) {
+                    imageTexts.add(imageText);
                 }
             }
         }
@@ -79,6 +186,49 @@ public class OCRProcessor {
         return imageTexts;
     }
 
+    /**
+     * Images are always OCRed, PDFs only when they have less text per page than the project asks for, which means
+     * they are scans, and other documents never.
+     */
+    private boolean isOcrCandidate(String mimeType, String text, int pageCount) {
+        if (mimeType.contains("image")) {
+            return true;
+        }
+        if (!mimeType.contains("pdf")) {
+            return false;
+        }
+        if (text == null || pageCount <= 0) {
+            return true;
+        }
+        return text.trim().length() / pageCount < Project.getProject().getOcrMinTextPerPage();
+    }
+
+    /**
+     * The same image recognized by another engine or version may give another text, so the engine is part of the
+     * key.
+     */
+    private String getCacheKey(byte[] image) {
+        return MD5Hash.digest(ocrEngine.getSignature() + "\t" + MD5Hash.digest(image)).toString();
+    }
+
+    private List<String> waitFor(Future<List<String>> future) throws ExecutionException, InterruptedException {
+        while (true) {
+            try {
+                List<String> texts = future.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                progress();
+                return texts;
+            } catch (TimeoutException e) {
+                progress();
+            }
+        }
+    }
+
+    private void progress() {
+        if (conf.getContext() != null) {
+            conf.getContext().progress();
+        }
+    }
+
     /**
      *
      * Creates an OCR processor with the given working directory.
@@ -105,11 +255,35 @@ public class OCRProcessor {
 
             OCREngine ocrEngine = TesseractOCRFactory.createTesseractOCR(conf);
             __instance.setOcrEngine(ocrEngine);
+            __instance.threads = Settings.getSettings().getOcrThreads();
+            long cacheSize = Settings.getSettings().getOcrCacheSize();
+            if (cacheSize > 0) {
+                __instance.cache = new DiskCache(new File(Settings.getSettings().getOcrCacheDir()), cacheSize);
+            }
+            __instance.setExecutor(createExecutor(__instance.threads));
         }
 
         return __instance;
     }
 
+    private static ExecutorService createExecutor(int threads) {
+        logger.info("OCR - {} workers", threads);
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ocr-" + threadCount.incrementAndGet());
+                // the workers must not keep the task alive
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
     public void setConf(OCRConfiguration conf) {
         this.conf = conf;
     }
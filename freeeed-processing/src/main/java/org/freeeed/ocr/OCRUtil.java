@@ -16,13 +16,20 @@
 */
 package org.freeeed.ocr;
 
+import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
 /**
  * 
  * Class OCRUtil.
@@ -32,25 +39,97 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class OCRUtil {
 	private static AtomicLong incrementor = new AtomicLong(1);
+	// every other pixel, both ways, is enough to see text strokes when checking whether an image is blank
+	private static final int UNIFORMITY_STEP = 2;
+	private static final int UNIFORMITY_TOLERANCE = 48;
+	// a single line of text on a page is well above this fraction of the samples, a few specks are below it
+	private static final double UNIFORMITY_MAX_DIFFERENT = 0.0001;
 	
 	public static String createUniqueFileName(String out) {
 		return out + System.currentTimeMillis() + "-" + incrementor.getAndIncrement();
 	}
 	
 	public static String readFileContent(String file) throws IOException {
-		BufferedReader reader = new BufferedReader(new FileReader(file));
 		String line = null;
 		StringBuilder stringBuilder = new StringBuilder();
 		String ls = System.getProperty("line.separator");
 
-		while ((line = reader.readLine()) != null) {
-			stringBuilder.append(line);
-			stringBuilder.append(ls);
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			while ((line = reader.readLine()) != null) {
+				stringBuilder.append(line);
+				stringBuilder.append(ls);
+			}
 		}
 
 		return stringBuilder.toString();
 	}
 	
+	/**
+	 * Is the image too small to hold text, or so uniform that it is blank? Images which Java cannot read are
+	 * not trivial, since tesseract may still read them.
+	 * 
+	 * @param image image bytes
+	 * @param minSize minimum width and height in pixels
+	 * @return true if the image is not worth OCR
+	 */
+	public static boolean isTrivialImage(byte[] image, int minSize) {
+		try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(image))) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext()) {
+				return false;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(iis, true, true);
+				// the size is in the header, no need to decode for it
+				if (reader.getWidth(0) < minSize || reader.getHeight(0) < minSize) {
+					return true;
+				}
+				return isUniform(reader.read(0));
+			} finally {
+				reader.dispose();
+			}
+		} catch (IOException | RuntimeException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Sample the image, and call it uniform if almost no sample differs much from the average.
+	 */
+	private static boolean isUniform(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int count = 0;
+		long total = 0;
+		for (int y = 0; y < height; y += UNIFORMITY_STEP) {
+			for (int x = 0; x < width; x += UNIFORMITY_STEP) {
+				total += luminance(image.getRGB(x, y));
+				++count;
+			}
+		}
+		if (count == 0) {
+			return true;
+		}
+		int average = (int) (total / count);
+		int different = 0;
+		for (int y = 0; y < height; y += UNIFORMITY_STEP) {
+			for (int x = 0; x < width; x += UNIFORMITY_STEP) {
+				if (Math.abs(luminance(image.getRGB(x, y)) - average) > UNIFORMITY_TOLERANCE) {
+					++different;
+				}
+			}
+		}
+		return different < count * UNIFORMITY_MAX_DIFFERENT;
+	}
+	
+	private static int luminance(int rgb) {
+		int r = (rgb >> 16) & 0xFF;
+		int g = (rgb >> 8) & 0xFF;
+		int b = rgb & 0xFF;
+		return (r * 299 + g * 587 + b * 114) / 1000;
+	}
+	
 	public static double compareText(String text, String source) {
 		Map<String, Integer> sourceMap = parseTextToWords(source);
 		Map<String, Integer> textMap = parseTextToWords(text);
@@ -16,7 +16,7 @@
 */
 package org.freeeed.ocr;
 
-import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -27,6 +27,8 @@ import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDResources;
 import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObjectImage;
 import org.freeeed.services.Project;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
@@ -39,17 +41,16 @@ import org.freeeed.services.Project;
  */
 public class PDFImageExtractor extends ImageExtractor {
 
+    private static final Logger logger = LoggerFactory.getLogger(PDFImageExtractor.class);
+
     protected PDFImageExtractor(String file) {
         super(file);
     }
 
     @SuppressWarnings("rawtypes")
     @Override
-    public List<String> extractImages() {
-        File extractionDir = new File(conf.getPdfImageExtractionDir());
-        extractionDir.mkdirs();
-    	
-        List<String> result = new ArrayList<String>();
+    public List<byte[]> extractImages() {
+        List<byte[]> result = new ArrayList<>();
 
         PDDocument document = null;
         try {
@@ -59,6 +60,7 @@ public class PDFImageExtractor extends ImageExtractor {
             Iterator iter = pages.iterator();
             int i = 1;
             int maxNumberOfImages = Project.getProject().getOcrMaxImagesPerPDF();
+            int minImageSize = Project.getProject().getOcrMinImageSize();
             
             while (iter.hasNext()) {
                 PDPage page = (PDPage) iter.next();
@@ -73,11 +75,15 @@ public class PDFImageExtractor extends ImageExtractor {
                         
                         String key = (String) imageIter.next();
                         PDXObjectImage image = (PDXObjectImage) pageImages.get(key);
+                        // icons and rules have no text, and are not worth writing out
+                        if (image.getWidth() < minImageSize || image.getHeight() < minImageSize) {
+                            continue;
+                        }
 
-                        String fileName = conf.getPdfImageExtractionDir() + OCRUtil.createUniqueFileName("image");
-                        image.write2file(fileName);
-
-                        result.add(fileName + "." + image.getSuffix());
+                        // the image stays in memory, on its way to tesseract
+                        ByteArrayOutputStream imageBytes = new ByteArrayOutputStream();
+                        image.write2OutputStream(imageBytes);
+                        result.add(imageBytes.toByteArray());
 
                         i++;
                     }
@@ -85,6 +91,14 @@ public class PDFImageExtractor extends ImageExtractor {
             }
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            if (document != null) {
+                try {
+                    document.close();
+                } catch (IOException e) {
+                    logger.warn("Could not close PDF {}", file, e);
+                }
+            }
         }
 
         return result;
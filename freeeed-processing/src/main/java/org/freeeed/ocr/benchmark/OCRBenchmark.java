@@ -1,6 +1,6 @@
 /*
  *
- * Copyright SHMsoft, Inc. 
+ * Copyright SHMsoft, Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,15 +19,48 @@ package org.freeeed.ocr.benchmark;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.freeeed.ocr.OCRConfiguration;
-import org.freeeed.ocr.OCRProcessor;
+import org.freeeed.ocr.OCREngine;
 import org.freeeed.ocr.OCRUtil;
+import org.freeeed.ocr.tess.TesseractOCRFactory;
 
+import com.google.gson.GsonBuilder;
+
+/**
+ *
+ * Class OCRBenchmark.
+ *
+ * Sweep the OCR engine over a generated corpus, for every combination of concurrency (number of workers) and
+ * batch size (images per engine call), the way OCRProcessor runs it. Each configuration is warmed up first, and
+ * then reports the throughput in images per second, the p50/p95/p99 latency of an image, which is the time of the
+ * engine call it was part of, and the average accuracy against the generated text. The results are written to
+ * benchmark.csv and benchmark.json in the images directory, for sizing the OCR workers of an instance type.
+ *
+ */
 public class OCRBenchmark {
 
+    private static final int[] DEFAULT_THREADS = {1, 2, 4, Runtime.getRuntime().availableProcessors()};
+    private static final int[] DEFAULT_BATCH_SIZES = {1, 4, 8};
+    private static final int DEFAULT_WARMUP_IMAGES = 4;
+    private static final String IMAGE_EXTENSION = ".png";
+    private static final String CSV_FILE = "benchmark.csv";
+    private static final String JSON_FILE = "benchmark.json";
+    private int[] threadCounts = DEFAULT_THREADS;
+    private int[] batchSizes = DEFAULT_BATCH_SIZES;
+    private int warmupImages = DEFAULT_WARMUP_IMAGES;
+
     /**
      *
      * Run full test for OCR.
@@ -47,75 +80,192 @@ public class OCRBenchmark {
             File f = new File(tesseractWorkDir);
             f.mkdirs();
 
-            System.out.println("Starting OCR processing...");
-            
-            List<OCRResult> results = new ArrayList<OCRResult>();
-            long totalStart = System.currentTimeMillis();
-
-            File outputDirFile = new File(outputDir);
-            String[] files = outputDirFile.list();
-            System.out.println("Files: " + files.length);
-            
-            for (String file : files) {
-                String imageFileName = outputDir + File.separatorChar + file;
-                File imageFile = new File(imageFileName);
-                if (imageFile.isDirectory()) {
-                    continue;
+            List<Sample> samples = loadSamples(outputDir);
+            System.out.println("Files: " + samples.size());
+            if (samples.isEmpty()) {
+                return;
+            }
+
+            OCRConfiguration conf = new OCRConfiguration(tesseractWorkDir, null);
+            OCREngine engine = TesseractOCRFactory.createTesseractOCR(conf);
+            if (!engine.isEngineAvailable()) {
+                System.out.println("OCR engine is not available");
+                return;
+            }
+            System.out.println("OCR engine: " + engine.getSignature());
+
+            List<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+            for (int threads : distinct(threadCounts)) {
+                for (int batchSize : distinct(batchSizes)) {
+                    System.out.println("Running " + threads + " workers, batches of " + batchSize + "...");
+                    ExecutorService executor = Executors.newFixedThreadPool(threads);
+                    try {
+                        // start the engine and load its data, so that the first images are not slower than the rest
+                        run(engine, executor, samples.subList(0, Math.min(warmupImages, samples.size())), batchSize);
+                        BenchmarkResult result = measure(engine, executor, samples, threads, batchSize);
+                        System.out.println(result);
+                        results.add(result);
+                    } finally {
+                        executor.shutdownNow();
+                    }
                 }
+            }
 
-                String textFileName = outputDir + File.separatorChar + "texts" + File.separatorChar + file;
+            System.out.println("OCR processing - Done");
+            writeResults(results, outputDir);
 
-                OCRConfiguration conf = new OCRConfiguration(tesseractWorkDir, null);
-                OCRProcessor processor = OCRProcessor.createProcessor(conf);
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            System.out.println("Problem running the test: " + e.getMessage());
+        }
+    }
 
-                long start = System.currentTimeMillis();
-                List<String> data = processor.getImageText(imageFileName);
-                long end = System.currentTimeMillis();
+    private BenchmarkResult measure(OCREngine engine, ExecutorService executor, List<Sample> samples,
+            int threads, int batchSize) throws InterruptedException, ExecutionException {
+        long start = System.nanoTime();
+        List<BatchResult> batches = run(engine, executor, samples, batchSize);
+        long wallTime = System.nanoTime() - start;
 
-                try {
-                    double match = OCRUtil.compareText(data.get(0), OCRUtil.readFileContent(textFileName));
-                    results.add(new OCRResult(file, (end - start), match));
-                } catch (IOException e) {
-                    e.printStackTrace(System.out);
+        long[] latencies = new long[samples.size()];
+        int count = 0;
+        int failed = 0;
+        double match = 0;
+        for (BatchResult batch : batches) {
+            for (int i = 0; i < batch.samples.size(); ++i) {
+                latencies[count++] = batch.time;
+                String text = batch.texts != null && i < batch.texts.size() ? batch.texts.get(i) : null;
+                if (text == null) {
+                    ++failed;
+                } else {
+                    match += OCRUtil.compareText(text, batch.samples.get(i).text);
                 }
-                
-                System.out.print(".");
             }
+        }
+        Arrays.sort(latencies);
+
+        BenchmarkResult result = new BenchmarkResult();
+        result.threads = threads;
+        result.batchSize = batchSize;
+        result.images = samples.size();
+        result.failed = failed;
+        result.totalMs = toMs(wallTime);
+        result.imagesPerSecond = samples.size() * 1e9 / wallTime;
+        result.p50Ms = toMs(percentile(latencies, 50));
+        result.p95Ms = toMs(percentile(latencies, 95));
+        result.p99Ms = toMs(percentile(latencies, 99));
+        // a failed image counts as nothing recognized
+        result.accuracy = match / samples.size();
+        return result;
+    }
 
-            System.out.println("\nOCR processing - Done");
-            
-            long totalEnd = System.currentTimeMillis();
-            printResults((totalEnd - totalStart), results, outputDir);
+    /**
+     * Recognize the samples in batches on the executor, and wait for all of them.
+     */
+    private List<BatchResult> run(final OCREngine engine, ExecutorService executor, List<Sample> samples,
+            int batchSize) throws InterruptedException, ExecutionException {
+        List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>();
+        for (int start = 0; start < samples.size(); start += batchSize) {
+            final List<Sample> batch = samples.subList(start, Math.min(start + batchSize, samples.size()));
+            futures.add(executor.submit(new Callable<BatchResult>() {
+                @Override
+                public BatchResult call() {
+                    List<byte[]> images = new ArrayList<byte[]>(batch.size());
+                    for (Sample sample : batch) {
+                        images.add(sample.image);
+                    }
+                    long start = System.nanoTime();
+                    List<String> texts = engine.getImageTexts(images);
+                    return new BatchResult(batch, texts, System.nanoTime() - start);
+                }
+            }));
+        }
+        List<BatchResult> results = new ArrayList<BatchResult>(futures.size());
+        for (Future<BatchResult> future : futures) {
+            results.add(future.get());
+        }
+        return results;
+    }
 
-        } catch (IOException e) {
-            System.out.println("Problem running the test: " + e.getMessage());
+    /**
+     * Nearest-rank percentile of sorted values.
+     */
+    static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
         }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
     }
 
-    private void printResults(long time, List<OCRResult> results, String outputDir) throws IOException {
-        StringBuilder output = new StringBuilder();
+    private static double toMs(long nanos) {
+        return nanos / 1e6;
+    }
 
-        output.append("Total OCR processing time: ").append(time).append("\n");
-        output.append("Results collected: ").append(results.size()).append("\n");
+    private static List<Integer> distinct(int[] values) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (int value : values) {
+            if (value > 0 && !list.contains(value)) {
+                list.add(value);
+            }
+        }
+        Collections.sort(list);
+        return list;
+    }
 
-        double match = 0;
-        for (OCRResult ocrResult : results) {
-            output.append(ocrResult.file).append(",").append(ocrResult.time).append(",").append(ocrResult.match).append("\n");
-            match += ocrResult.match;
+    /**
+     * Read the generated images, with the text each was made from, in memory, so that disk reads are not measured.
+     */
+    private List<Sample> loadSamples(String outputDir) throws IOException {
+        List<Sample> samples = new ArrayList<Sample>();
+        File[] files = new File(outputDir).listFiles();
+        if (files == null) {
+            return samples;
+        }
+        Arrays.sort(files);
+        for (File imageFile : files) {
+            if (imageFile.isDirectory() || !imageFile.getName().endsWith(IMAGE_EXTENSION)) {
+                continue;
+            }
+            String textFileName = outputDir + File.separatorChar + "texts" + File.separatorChar + imageFile.getName();
+            samples.add(new Sample(Files.readAllBytes(imageFile.toPath()), OCRUtil.readFileContent(textFileName)));
+        }
+        return samples;
+    }
+
+    private void writeResults(List<BenchmarkResult> results, String outputDir) throws IOException {
+        StringBuilder csv = new StringBuilder();
+        csv.append("threads,batch_size,images,failed,total_ms,images_per_second,p50_ms,p95_ms,p99_ms,accuracy\n");
+        for (BenchmarkResult result : results) {
+            csv.append(result.threads).append(",")
+                    .append(result.batchSize).append(",")
+                    .append(result.images).append(",")
+                    .append(result.failed).append(",")
+                    .append(String.format(Locale.ROOT, "%.1f", result.totalMs)).append(",")
+                    .append(String.format(Locale.ROOT, "%.3f", result.imagesPerSecond)).append(",")
+                    .append(String.format(Locale.ROOT, "%.1f", result.p50Ms)).append(",")
+                    .append(String.format(Locale.ROOT, "%.1f", result.p95Ms)).append(",")
+                    .append(String.format(Locale.ROOT, "%.1f", result.p99Ms)).append(",")
+                    .append(String.format(Locale.ROOT, "%.4f", result.accuracy)).append("\n");
         }
+        System.out.println(csv);
 
-        double avgMatch = match / results.size();
-        double avgTime = (double) time / results.size();
+        try (FileWriter fw = new FileWriter(outputDir + File.separator + CSV_FILE)) {
+            fw.write(csv.toString());
+        }
+        try (FileWriter fw = new FileWriter(outputDir + File.separator + JSON_FILE)) {
+            fw.write(new GsonBuilder().setPrettyPrinting().create().toJson(results));
+        }
+    }
 
-        output.append("Average matching result: ").append(avgMatch).append("\n");
-        output.append("Average time result: ").append(avgTime).append("\n");
+    public void setThreadCounts(int[] threadCounts) {
+        this.threadCounts = threadCounts;
+    }
 
-        String outputText = output.toString();
-        System.out.println(outputText);
+    public void setBatchSizes(int[] batchSizes) {
+        this.batchSizes = batchSizes;
+    }
 
-        FileWriter fw = new FileWriter(outputDir + File.separator + "output.csv");
-        fw.write(outputText);
-        fw.close();
+    public void setWarmupImages(int warmupImages) {
+        this.warmupImages = warmupImages;
     }
 
     /**
@@ -126,15 +276,25 @@ public class OCRBenchmark {
         String templatesDir = "";
         String outputDir = "";
         String tesseractWorkDir = "";
-        
+        OCRBenchmark ocrBench = new OCRBenchmark();
+
     	try {
             templatesZip = args[0];
             templatesDir = args[1];
             outputDir = args[2];
             tesseractWorkDir = args[3];
-            
-            if (templatesZip.length() == 0 || 
-                    templatesDir.length() == 0 || outputDir.length() == 0 || 
+            if (args.length > 4) {
+                ocrBench.setThreadCounts(parseList(args[4]));
+            }
+            if (args.length > 5) {
+                ocrBench.setBatchSizes(parseList(args[5]));
+            }
+            if (args.length > 6) {
+                ocrBench.setWarmupImages(Integer.parseInt(args[6]));
+            }
+
+            if (templatesZip.length() == 0 ||
+                    templatesDir.length() == 0 || outputDir.length() == 0 ||
                     tesseractWorkDir.length() == 0) {
                 printUsage();
             }
@@ -142,26 +302,67 @@ public class OCRBenchmark {
             printUsage();
     	}
 
-        OCRBenchmark ocrBench = new OCRBenchmark();
         ocrBench.runFullTest(templatesZip, templatesDir, outputDir, tesseractWorkDir);
     }
 
+    private static int[] parseList(String list) {
+        String[] items = list.split(",");
+        int[] values = new int[items.length];
+        for (int i = 0; i < items.length; ++i) {
+            values[i] = Integer.parseInt(items[i].trim());
+        }
+        return values;
+    }
+
     private static void printUsage() {
         System.out.println("Usage: java org.freeeed.ocr.benchmark.OCRBenchmark " +
             "<text templates zip> <text templates dir> <text templates " +
-            "images output dir> <tesseract output dir>");	
+            "images output dir> <tesseract output dir> [<worker counts, e.g. 1,2,4>] " +
+            "[<batch sizes, e.g. 1,4,8>] [<warm-up images>]");
+    }
+
+    private static final class Sample {
+
+        private byte[] image;
+        private String text;
+
+        public Sample(byte[] image, String text) {
+            this.image = image;
+            this.text = text;
+        }
     }
-    
-    private static final class OCRResult {
 
-        private String file;
+    private static final class BatchResult {
+
+        private List<Sample> samples;
+        private List<String> texts;
         private long time;
-        private double match;
 
-        public OCRResult(String file, long time, double match) {
-            this.file = file;
+        public BatchResult(List<Sample> samples, List<String> texts, long time) {
+            this.samples = samples;
+            this.texts = texts;
             this.time = time;
-            this.match = match;
+        }
+    }
+
+    private static final class BenchmarkResult {
+
+        private int threads;
+        private int batchSize;
+        private int images;
+        private int failed;
+        private double totalMs;
+        private double imagesPerSecond;
+        private double p50Ms;
+        private double p95Ms;
+        private double p99Ms;
+        private double accuracy;
+
+        @Override
+        public String toString() {
+            return String.format("%d workers, batch %d: %.2f images/s, p50 %.0f ms, p95 %.0f ms, p99 %.0f ms, "
+                    + "accuracy %.3f, failed %d", threads, batchSize, imagesPerSecond, p50Ms, p95Ms, p99Ms,
+                    accuracy, failed);
         }
     }
 }
@@ -16,27 +16,47 @@
  */
 package org.freeeed.ocr.tess;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.freeeed.main.PlatformUtil;
+import org.freeeed.main.ProcessRunner;
+import org.freeeed.ocr.OCRUtil;
+import org.freeeed.services.Settings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.io.Files;
+
 /**
  *
  * Class TesseractAdapter.
  *
  * Call OS specific command for tesseract.
  *
+ * The image goes to tesseract on stdin and the text comes back on stdout, which tesseract supports since 3.03. Older
+ * versions get the image in a file and write the text to a file, which is read once the process has exited.
+ *
  * @author ilazarov
  *
  */
 public class TesseractAdapter {
 
     private static final Logger logger = LoggerFactory.getLogger(TesseractAdapter.class);
-    private static final String TESSERACT_VERSION_LINE = "tesseract 3.";
+    private static final Pattern TESSERACT_VERSION_LINE = Pattern.compile("^tesseract (\\d+)\\.(\\d+)");
+    private static final String STDIN = "stdin";
+    private static final String STDOUT = "stdout";
+    private static final char PAGE_SEPARATOR = '\f';
     private static TesseractAdapter __instance;
     private String tesseractBin;
+    private boolean stdio;
+    private String version = "tesseract";
     
     private TesseractAdapter(String tesseractBin) {
         this.tesseractBin = tesseractBin;
@@ -51,14 +71,117 @@ public class TesseractAdapter {
     }
 
     /**
-     * Call the tesseract bin to extract the image file text.
+     * Call the tesseract bin to extract the image text.
+     *
+     * @param image image bytes, in any format tesseract reads.
+     * @param workDir directory for the files used by the older tesseract versions.
+     * @return recognized text, or null if tesseract failed or timed out.
+     * @throws IOException if tesseract cannot be run.
+     */
+    public String call(byte[] image, String workDir) throws IOException {
+        long timeout = Settings.getSettings().getOcrTimeout();
+        if (stdio) {
+            ProcessRunner.Result result = ProcessRunner.run(
+                    Arrays.asList(tesseractBin, STDIN, STDOUT), image, timeout);
+            if (!result.isSuccess()) {
+                logger.warn("Tesseract failed, exit code {}: {}", result.getExitCode(), result.getError());
+                return null;
+            }
+            return new String(result.getOutput(), "UTF-8");
+        }
+        new File(workDir).mkdirs();
+        File imageFile = new File(workDir, OCRUtil.createUniqueFileName("image"));
+        String output = workDir + File.separator + OCRUtil.createUniqueFileName("out");
+        File outputFile = new File(output + ".txt");
+        try {
+            Files.write(image, imageFile);
+            ProcessRunner.Result result = ProcessRunner.run(
+                    Arrays.asList(tesseractBin, imageFile.getPath(), output), null, timeout);
+            if (!result.isSuccess() || !outputFile.exists()) {
+                logger.warn("Tesseract failed, exit code {}: {}", result.getExitCode(), result.getError());
+                return null;
+            }
+            return OCRUtil.readFileContent(outputFile.getPath());
+        } finally {
+            imageFile.delete();
+            outputFile.delete();
+        }
+    }
+
+    /**
+     * Recognize several images in one tesseract run, which loads the language data once for all. Tesseract takes a
+     * list file with one image file per line, and ends the text of each page with a form feed.
+     *
+     * @param images image bytes.
+     * @param workDir directory for the image and list files.
+     * @return recognized text of each image, in order, or null if tesseract failed or the pages do not match the
+     * images, as happens with multi-page images.
+     * @throws IOException if tesseract cannot be run.
+     */
+    public List<String> callBatch(List<byte[]> images, String workDir) throws IOException {
+        new File(workDir).mkdirs();
+        List<File> imageFiles = new ArrayList<>(images.size());
+        File listFile = new File(workDir, OCRUtil.createUniqueFileName("list") + ".txt");
+        try {
+            StringBuilder list = new StringBuilder();
+            for (byte[] image : images) {
+                File imageFile = new File(workDir, OCRUtil.createUniqueFileName("image"));
+                imageFiles.add(imageFile);
+                Files.write(image, imageFile);
+                list.append(imageFile.getAbsolutePath()).append('\n');
+            }
+            Files.write(list.toString(), listFile, Charset.forName("UTF-8"));
+            // the timeout is per image
+            ProcessRunner.Result result = ProcessRunner.run(
+                    Arrays.asList(tesseractBin, listFile.getPath(), STDOUT), null,
+                    Settings.getSettings().getOcrTimeout() * images.size());
+            if (!result.isSuccess()) {
+                logger.warn("Tesseract failed, exit code {}: {}", result.getExitCode(), result.getError());
+                return null;
+            }
+            return splitPages(new String(result.getOutput(), "UTF-8"), images.size());
+        } finally {
+            listFile.delete();
+            for (File imageFile : imageFiles) {
+                imageFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Split the text of a batch at the page separators.
      *
-     * @param imageFile
-     * @param outputPath
-     * @return
+     * @param text output of a batch run.
+     * @param pageCount expected number of pages.
+     * @return the text of each page, or null if the number of pages is not as expected.
+     */
+    static List<String> splitPages(String text, int pageCount) {
+        List<String> pages = new ArrayList<>(pageCount);
+        int start = 0;
+        int end;
+        while ((end = text.indexOf(PAGE_SEPARATOR, start)) >= 0) {
+            pages.add(text.substring(start, end));
+            start = end + 1;
+        }
+        // anything after the last separator is only the trailing new line
+        if (!text.substring(start).trim().isEmpty()) {
+            pages.add(text.substring(start));
+        }
+        return pages.size() == pageCount ? pages : null;
+    }
+
+    /**
+     * @return true if the installed tesseract reads list files and writes to stdout
+     */
+    public boolean isBatchSupported() {
+        return stdio;
+    }
+
+    /**
+     * @return the version line of the installed tesseract, known once it is verified
      */
-    public List<String> call(String imageFile, String outputPath) {
-        return PlatformUtil.runUnixCommand(tesseractBin + " " + imageFile + " " + outputPath);
+    public String getVersion() {
+        return version;
     }
 
     /**
@@ -71,9 +194,17 @@ public class TesseractAdapter {
         if (PlatformUtil.isNix()) {
             List<String> output = PlatformUtil.runUnixCommand(tesseractBin + " -v", true);
             for (String line : output) {
-                if (line.startsWith(TESSERACT_VERSION_LINE)) {
-                    logger.info("Tesseract installed is confirmed");
-                    return true;
+                Matcher matcher = TESSERACT_VERSION_LINE.matcher(line);
+                if (matcher.find()) {
+                    int major = Integer.parseInt(matcher.group(1));
+                    int minor = Integer.parseInt(matcher.group(2));
+                    if (major >= 3) {
+                        version = line.trim();
+                        stdio = major > 3 || minor >= 3;
+                        logger.info("Tesseract installed is confirmed, {} stdin and stdout",
+                                stdio ? "using" : "not using");
+                        return true;
+                    }
                 }
             }
         }        
@@ -16,11 +16,12 @@
  */
 package org.freeeed.ocr.tess;
 
-import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.freeeed.ocr.OCRConfiguration;
 import org.freeeed.ocr.OCREngine;
-import org.freeeed.ocr.OCRUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,45 +43,44 @@ public class TesseractOCR implements OCREngine {
     }
 
     @Override
-    public String getImageText(String imageFile) {
+    public String getImageText(byte[] image) {
         try {
-            File outDir = new File(configuration.getTesseractWorkDir());
-            outDir.mkdirs();
-
-            String output = configuration.getTesseractWorkDir() + OCRUtil.createUniqueFileName("out");
-            tessAdapter.call(imageFile, output);
-
-            String outputFile = output + "."
-                    + configuration.getTesseractOutputExtension();
+            String text = tessAdapter.call(image, configuration.getTesseractWorkDir());
+            if (text == null) {
+                logger.warn("TesseractOCR - image not recognized");
+            }
+            return text;
+        } catch (IOException e) {
+            logger.error("TesseractOCR - Problem processing image", e);
+        }
 
-            logger.trace("TesseractOCR - processing, outputFile: {} waiting...", outputFile);
+        return null;
+    }
 
-            File resultFile = new File(outputFile);
-            // as the creation of the file goes in OS background, wait for the result
-            int maxRetries = 10;
-            while (!resultFile.exists() && maxRetries > 0) {
-                // sleep 1 second
-                try {
-                    Thread.sleep(500);
-                    maxRetries--;
-                } catch (InterruptedException e) {
-                    logger.trace("Interrupted: ", e);
+    @Override
+    public List<String> getImageTexts(List<byte[]> images) {
+        if (images.size() > 1 && tessAdapter.isBatchSupported()) {
+            try {
+                List<String> texts = tessAdapter.callBatch(images, configuration.getTesseractWorkDir());
+                if (texts != null) {
+                    return texts;
                 }
+                logger.debug("TesseractOCR - batch of {} images not split back, recognizing one by one",
+                        images.size());
+            } catch (IOException e) {
+                logger.error("TesseractOCR - Problem processing a batch of images", e);
             }
-
-            if (!resultFile.exists()) {
-                logger.warn("TesseractOCR - image file not recognized");
-                return null;
-            }
-
-            logger.trace("TesseractOCR - file processed: {}", outputFile);
-
-            return OCRUtil.readFileContent(outputFile);
-        } catch (Exception e) {
-            logger.error("TesseractOCR - Problem processing image: {}", imageFile, e);
         }
+        List<String> texts = new ArrayList<>(images.size());
+        for (byte[] image : images) {
+            texts.add(getImageText(image));
+        }
+        return texts;
+    }
 
-        return null;
+    @Override
+    public String getSignature() {
+        return tessAdapter.getVersion();
     }
 
     @Override
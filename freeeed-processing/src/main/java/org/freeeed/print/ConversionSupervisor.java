@@ -0,0 +1,162 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.print;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.freeeed.services.Settings;
+import org.freeeed.services.Stats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the conversions of documents within a time budget for their type, so that one document which hangs a
+ * converter cannot stall the task until Hadoop kills it, with all of its output. A conversion over its budget is
+ * stopped, the document gets the placeholder image, and it goes to the retry list.
+ *
+ * The office processes are watched by their own pool, which restarts a process whose conversion runs longer than
+ * "office_timeout". The conversions in this JVM, of emails and HTML documents, run here on a thread of their own,
+ * which is interrupted at the end of the "html_timeout" budget. External programs run with ProcessRunner, which
+ * kills them.
+ *
+ * @author mark
+ */
+public class ConversionSupervisor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConversionSupervisor.class);
+    private static final ConversionSupervisor instance = new ConversionSupervisor();
+    /**
+     * Hadoop counter of the documents to retry, the retry list itself stays on the node of the task
+     */
+    public static final String RETRY_COUNTER_GROUP = "Retry";
+    public static final String RETRY_COUNTER = "Documents to retry";
+    /**
+     * Documents which ran out of time in a conversion, not to be given another budget by the next one
+     */
+    private final Set<String> timedOut = Collections.synchronizedSet(new HashSet<String>());
+    private final ExecutorService converters = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "conversion");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /**
+     * Original path of the document being converted, as it goes on the retry list
+     */
+    private volatile String document;
+
+    public static ConversionSupervisor getInstance() {
+        return instance;
+    }
+
+    private ConversionSupervisor() {
+        // singleton
+    }
+
+    /**
+     * Run a conversion within the budget for HTML rendering.
+     *
+     * @param conversion the conversion, which should stop when interrupted.
+     * @throws TimeoutException if the conversion is over its budget, and was interrupted.
+     * @throws Exception the exception of the conversion.
+     */
+    public void runHtmlConversion(Callable<Void> conversion) throws Exception {
+        run(conversion, Settings.getSettings().getHtmlTimeout());
+    }
+
+    private void run(Callable<Void> conversion, long timeoutMs) throws Exception {
+        Future<Void> future = converters.submit(conversion);
+        try {
+            future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the conversion failed for running out of time, here or in the office pool.
+     */
+    public static boolean isTimeout(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Note that the conversion of a document ran out of time, so that its other conversions are not tried.
+     *
+     * @param docFile the file of the document.
+     */
+    public void setTimedOut(String docFile) {
+        timedOut.add(docFile);
+    }
+
+    /**
+     * @param docFile the file of the document.
+     * @return true if a conversion of the document ran out of time, which is forgotten once asked.
+     */
+    public boolean takeTimedOut(String docFile) {
+        return timedOut.remove(docFile);
+    }
+
+    /**
+     * Set the document whose conversions follow. The converters only see the file of the document, which is a
+     * temporary one for attachments and archive entries, so the retry list names the document by its original path.
+     *
+     * @param originalPath original path of the document, or null once its conversions are done.
+     */
+    public void setDocument(String originalPath) {
+        document = originalPath;
+    }
+
+    /**
+     * Put a document whose conversion failed on the retry list.
+     *
+     * @param docFile the file of the document, on the list if the original path of the document is not set.
+     * @param failure why it failed.
+     */
+    public void addRetry(String docFile, Throwable failure) {
+        String reason = isTimeout(failure) ? "timed out" : String.valueOf(failure.getMessage());
+        String document = this.document != null ? this.document : docFile;
+        logger.warn("Conversion of {} failed ({}), it is on the retry list", document, reason);
+        Stats.getInstance().addRetry(document, reason);
+    }
+}
@@ -16,37 +16,54 @@
  */
 package org.freeeed.print;
 
-import com.lowagie.text.BadElementException;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.io.IOUtils;
 import org.freeeed.main.ParameterProcessing;
-import org.freeeed.main.PlatformUtil;
+import org.freeeed.main.ProcessRunner;
+import org.freeeed.services.Settings;
 
 import com.lowagie.text.DocListener;
 import com.lowagie.text.Document;
-import com.lowagie.text.Element;
 import com.lowagie.text.Image;
 import com.lowagie.text.html.simpleparser.ChainedProperties;
 import com.lowagie.text.html.simpleparser.HTMLWorker;
 import com.lowagie.text.html.simpleparser.ImageProvider;
 import com.lowagie.text.html.simpleparser.StyleSheet;
 import com.lowagie.text.pdf.PdfWriter;
-import java.io.IOException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class Html2Pdf {
     private static Logger logger = LoggerFactory.getLogger(Html2Pdf.class);
+    /**
+     * Shared by all the conversions of the JVM, and only read by them
+     */
+    private static final StyleSheet STYLES = createStyles();
+    private static final Image NO_IMAGE = loadNoImage();
+    private static final ImageProvider IMAGE_PROVIDER = new ImageProvider() {
+        @Override
+        @SuppressWarnings("rawtypes")
+        public Image getImage(String src, HashMap attributes, ChainedProperties cprops, DocListener doc) {
+            // a copy, since the parser scales the image to the attributes of the tag
+            return NO_IMAGE != null ? Image.getInstance(NO_IMAGE) : null;
+        }
+    };
+
     public static void html2pdf(String inputFile, String outputFile) throws Exception {
         html2pdf_itext(inputFile, outputFile);
     }
@@ -56,6 +73,18 @@ public class Html2Pdf {
         convertHtml2Pdf(htmlReader, outputFile);
     }
 
+    /**
+     * Render HTML as it is read. Elements go to the PDF writer as soon as they are parsed, and pages to the file as
+     * soon as they are full, so a long email does not have to fit in memory more than once. It is safe to call
+     * from several threads.
+     *
+     * @param htmlReader HTML to render, closed when done.
+     * @param outputFile resulting PDF file.
+     */
+    public static void htmlStream2Pdf(Reader htmlReader, String outputFile) throws Exception {
+        convertHtml2Pdf(htmlReader, outputFile);
+    }
+
     private static void html2pdf_itext(String inputFile, String outputFile) throws Exception {
         Reader htmlreader = new BufferedReader(new InputStreamReader(
                 new FileInputStream(inputFile)));
@@ -68,52 +97,78 @@ public class Html2Pdf {
     @SuppressWarnings({"rawtypes", "unchecked"})
     private static void convertHtml2Pdf(Reader htmlReader, String outputFile) throws Exception {
         Document pdfDocument = new Document();
+        try (Reader reader = new InterruptibleReader(htmlReader);
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+            PdfWriter.getInstance(pdfDocument, out);
+            pdfDocument.open();
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        PdfWriter.getInstance(pdfDocument, baos);
-        pdfDocument.open();
-        StyleSheet styles = new StyleSheet();
-        styles.loadTagStyle("body", "font", "Times New Roman");
-
-        ImageProvider imageProvider = new ImageProvider() {
-            @Override
-            public Image getImage(String src, HashMap arg1,
-                    ChainedProperties arg2, DocListener arg3) {
+            HashMap interfaceProps = new HashMap();
+            interfaceProps.put("img_provider", IMAGE_PROVIDER);
 
-                try {
-                    Image image = Image.getInstance(IOUtils.toByteArray(
-                            getClass().getClassLoader().getResourceAsStream(ParameterProcessing.NO_IMAGE_FILE)));
-                    return image;
-                } catch (IOException | BadElementException e) {
-                    logger.warn("Problem with html to pdf rendering.", e);
-                }
-
-                return null;
-            }
-        };
+            HTMLWorker worker = new HTMLWorker(pdfDocument);
+            worker.setStyleSheet(STYLES);
+            worker.setInterfaceProps(interfaceProps);
+            worker.parse(reader);
+            pdfDocument.close();
+        }
+    }
 
-        HashMap interfaceProps = new HashMap();
-        interfaceProps.put("img_provider", imageProvider);
+    private static StyleSheet createStyles() {
+        StyleSheet styles = new StyleSheet();
+        styles.loadTagStyle("body", "font", "Times New Roman");
+        return styles;
+    }
 
-        ArrayList arrayElementList = HTMLWorker.parseToList(htmlReader, styles, interfaceProps);
-        for (int i = 0; i < arrayElementList.size(); ++i) {
-            Element e = (Element) arrayElementList.get(i);
-            pdfDocument.add(e);
+    private static Image loadNoImage() {
+        try (InputStream is = Html2Pdf.class.getClassLoader().getResourceAsStream(ParameterProcessing.NO_IMAGE_FILE)) {
+            return Image.getInstance(IOUtils.toByteArray(is));
+        } catch (Exception e) {
+            logger.warn("Problem with html to pdf rendering.", e);
+            return null;
         }
-        pdfDocument.close();
-        byte[] bs = baos.toByteArray();
-        File pdfFile = new File(outputFile);
-        FileOutputStream out = new FileOutputStream(pdfFile);
-        out.write(bs);
-        out.close();
     }
 
     /**
      * wkhtmltopdf needs to be installed It is a great utility under active development It uses X11 and WebKit rendering
-     * engine of Apple's Safari
+     * engine of Apple's Safari. It is killed if it runs longer than the HTML budget.
+     */
+    public static void html2pdfwk(String inputFile, String outputFile) throws IOException {
+        ProcessRunner.Result result = ProcessRunner.run(Arrays.asList("wkhtmltopdf", inputFile, outputFile), null,
+                Settings.getSettings().getHtmlTimeout());
+        if (result.isTimedOut()) {
+            throw new IOException("wkhtmltopdf timed out", new TimeoutException());
+        }
+        if (!result.isSuccess()) {
+            throw new IOException("wkhtmltopdf failed: " + result.getError());
+        }
+    }
+
+    /**
+     * Lets the rendering stop between reads when its thread is interrupted, which is how the conversion supervisor
+     * stops a rendering over budget.
      */
-    public static void html2pdfwk(String inputFile, String outputFile) {
-        String command = "wkhtmltopdf " + inputFile + " " + outputFile;
-        PlatformUtil.runUnixCommand(command);
+    private static class InterruptibleReader extends FilterReader {
+
+        InterruptibleReader(Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkInterrupted();
+            return super.read();
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            checkInterrupted();
+            return super.read(cbuf, off, len);
+        }
+
+        private static void checkInterrupted() throws InterruptedIOException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("HTML rendering interrupted");
+            }
+        }
     }
 }
@@ -0,0 +1,153 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.print;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FilenameUtils;
+import org.artofsolving.jodconverter.document.DocumentFamily;
+import org.artofsolving.jodconverter.document.DocumentFormat;
+import org.artofsolving.jodconverter.document.DocumentFormatRegistry;
+import org.artofsolving.jodconverter.office.OfficeContext;
+import org.artofsolving.jodconverter.office.OfficeException;
+import org.artofsolving.jodconverter.office.OfficeTask;
+import org.artofsolving.jodconverter.office.OfficeUtils;
+
+import com.sun.star.frame.XComponentLoader;
+import com.sun.star.frame.XStorable;
+import com.sun.star.io.IOException;
+import com.sun.star.lang.IllegalArgumentException;
+import com.sun.star.lang.XComponent;
+import com.sun.star.task.ErrorCodeIOException;
+import com.sun.star.util.CloseVetoException;
+import com.sun.star.util.XCloseable;
+
+/**
+ * An office task which loads a document once and exports it to several files, in the format of each file's
+ * extension, such as the PDF image and the HTML preview. Loading and laying out the document is most of the cost
+ * of a conversion, and it is paid once for all the outputs. It works like the JODConverter conversion task,
+ * which only has one output.
+ *
+ * @author mark
+ */
+public class MultiExportTask implements OfficeTask {
+
+    private File inputFile;
+    private List<File> outputFiles;
+    private DocumentFormatRegistry formatRegistry;
+
+    public MultiExportTask(File inputFile, List<File> outputFiles, DocumentFormatRegistry formatRegistry) {
+        this.inputFile = inputFile;
+        this.outputFiles = outputFiles;
+        this.formatRegistry = formatRegistry;
+    }
+
+    @Override
+    public void execute(OfficeContext context) throws OfficeException {
+        XComponent document = null;
+        try {
+            document = loadDocument(context);
+            DocumentFamily family = getFamily();
+            for (File outputFile : outputFiles) {
+                storeDocument(document, family, outputFile);
+            }
+        } catch (OfficeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new OfficeException("conversion failed", e);
+        } finally {
+            if (document != null) {
+                XCloseable closeable = OfficeUtils.cast(XCloseable.class, document);
+                if (closeable != null) {
+                    try {
+                        closeable.close(true);
+                    } catch (CloseVetoException e) {
+                        // the document is busy, and goes away with the process
+                    }
+                } else {
+                    document.dispose();
+                }
+            }
+        }
+    }
+
+    private XComponent loadDocument(OfficeContext context) throws OfficeException {
+        if (!inputFile.exists()) {
+            throw new OfficeException("input document not found");
+        }
+        XComponentLoader loader = OfficeUtils.cast(XComponentLoader.class,
+                context.getService(OfficeUtils.SERVICE_DESKTOP));
+        Map<String, Object> loadProperties = new HashMap<>();
+        loadProperties.put("Hidden", true);
+        loadProperties.put("ReadOnly", true);
+        // same as the default load properties of the JODConverter document converter
+        loadProperties.put("UpdateDocMode", (short) 1);
+        DocumentFormat inputFormat = formatRegistry.getFormatByExtension(getExtension(inputFile));
+        if (inputFormat != null && inputFormat.getLoadProperties() != null) {
+            loadProperties.putAll(inputFormat.getLoadProperties());
+        }
+        XComponent document;
+        try {
+            document = loader.loadComponentFromURL(OfficeUtils.toUrl(inputFile), "_blank", 0,
+                    OfficeUtils.toUnoProperties(loadProperties));
+        } catch (IllegalArgumentException e) {
+            throw new OfficeException("could not load document: " + inputFile.getName(), e);
+        } catch (ErrorCodeIOException e) {
+            throw new OfficeException("could not load document: " + inputFile.getName()
+                    + "; errorCode: " + e.ErrCode, e);
+        } catch (IOException e) {
+            throw new OfficeException("could not load document: " + inputFile.getName(), e);
+        }
+        if (document == null) {
+            throw new OfficeException("could not load document: " + inputFile.getName());
+        }
+        return document;
+    }
+
+    private void storeDocument(XComponent document, DocumentFamily family, File outputFile)
+            throws OfficeException {
+        DocumentFormat outputFormat = formatRegistry.getFormatByExtension(getExtension(outputFile));
+        Map<String, ?> storeProperties = outputFormat != null ? outputFormat.getStoreProperties(family) : null;
+        if (storeProperties == null) {
+            throw new OfficeException("unsupported conversion to " + outputFile.getName());
+        }
+        try {
+            OfficeUtils.cast(XStorable.class, document).storeToURL(OfficeUtils.toUrl(outputFile),
+                    OfficeUtils.toUnoProperties(storeProperties));
+        } catch (ErrorCodeIOException e) {
+            throw new OfficeException("could not store document: " + outputFile.getName()
+                    + "; errorCode: " + e.ErrCode, e);
+        } catch (IOException e) {
+            throw new OfficeException("could not store document: " + outputFile.getName(), e);
+        }
+    }
+
+    private DocumentFamily getFamily() throws OfficeException {
+        DocumentFormat inputFormat = formatRegistry.getFormatByExtension(getExtension(inputFile));
+        if (inputFormat == null || inputFormat.getInputFamily() == null) {
+            throw new OfficeException("unknown input format: " + inputFile.getName());
+        }
+        return inputFormat.getInputFamily();
+    }
+
+    private static String getExtension(File file) {
+        return FilenameUtils.getExtension(file.getName()).toLowerCase();
+    }
+}
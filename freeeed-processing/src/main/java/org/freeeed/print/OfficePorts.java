@@ -0,0 +1,129 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.print;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The ports of the office processes of a task. The tasks of a node look for free ports from the same base port, and
+ * each port taken is held by a lock on a file of its own in a directory of the node, until the task closes it or
+ * ends, so that two tasks starting at once do not take the same port.
+ *
+ * @author mark
+ */
+class OfficePorts implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OfficePorts.class);
+    /**
+     * Ports past the base port that are tried before giving up
+     */
+    private static final int MAX_PORTS = 1000;
+    private final List<FileLock> locks = new ArrayList<>();
+    private final int[] ports;
+
+    /**
+     * Take free ports.
+     *
+     * @param lockDir directory of the port locks, shared by the tasks of the node.
+     * @param basePort first port to try.
+     * @param count number of ports to take.
+     * @throws IOException if there are not so many free ports.
+     */
+    OfficePorts(File lockDir, int basePort, int count) throws IOException {
+        lockDir.mkdirs();
+        ports = new int[count];
+        int taken = 0;
+        for (int port = basePort; taken < count && port < basePort + MAX_PORTS; ++port) {
+            FileLock lock = lock(new File(lockDir, "port-" + port + ".lock"));
+            if (lock == null) {
+                continue;
+            }
+            if (isFree(port)) {
+                locks.add(lock);
+                ports[taken++] = port;
+            } else {
+                // taken by a program which does not lock it, such as an office process left behind
+                release(lock);
+            }
+        }
+        if (taken < count) {
+            close();
+            throw new IOException("No " + count + " free ports from " + basePort);
+        }
+    }
+
+    /**
+     * @return the ports, as many as asked for.
+     */
+    int[] getPorts() {
+        return ports;
+    }
+
+    private static FileLock lock(File lockFile) throws IOException {
+        FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+        FileLock lock = null;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by this JVM
+        }
+        if (lock == null) {
+            channel.close();
+        }
+        return lock;
+    }
+
+    private static boolean isFree(int port) {
+        try (ServerSocket socket = new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"))) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void release(FileLock lock) {
+        try {
+            lock.channel().close();
+        } catch (IOException e) {
+            logger.warn("Could not release port lock", e);
+        }
+    }
+
+    /**
+     * Give the ports back to the node.
+     */
+    @Override
+    public void close() {
+        for (FileLock lock : locks) {
+            release(lock);
+        }
+        locks.clear();
+    }
+}
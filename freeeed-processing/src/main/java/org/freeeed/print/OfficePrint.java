@@ -16,8 +16,18 @@
 */
 package org.freeeed.print;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
@@ -47,6 +57,7 @@ public class OfficePrint implements ComponentLifecycle {
     
     private static OfficePrint instance;
     private OfficeManager officeManager;
+    private OfficePorts officePorts;
 
     public static synchronized OfficePrint getInstance() {
         if (instance == null) {
@@ -55,66 +66,136 @@ public class OfficePrint implements ComponentLifecycle {
         return instance;
     }
     
-    public void createPdf(String officeDocFile, String outputPdf, String originalFileName) {
+    public boolean createPdf(String officeDocFile, String outputPdf, String originalFileName) {
+        return createPdf(officeDocFile, outputPdf, originalFileName, null);
+    }
+
+    /**
+     * Create the PDF image of a document.
+     *
+     * @param officeDocFile document to image.
+     * @param outputPdf resulting PDF file.
+     * @param originalFileName original name of the document, used when the file itself has no extension.
+     * @param emailData the already parsed email, if the document is an email, otherwise null.
+     * @return true if the document is imaged, false if the image is the placeholder for documents which cannot be.
+     */
+    public boolean createPdf(String officeDocFile, String outputPdf, String originalFileName,
+            EmailDataProvider emailData) {
         String extension = Util.getExtension(officeDocFile);
         if (extension == null || extension.isEmpty()) {
             extension = Util.getExtension(originalFileName);
         }
 
+        ConversionSupervisor supervisor = ConversionSupervisor.getInstance();
         try {
-            if ("html".equalsIgnoreCase(extension) || "htm".equalsIgnoreCase(extension)) {
+            if (supervisor.takeTimedOut(officeDocFile)) {
+                logger.warn("Not imaging {}, its conversion for the HTML preview timed out", officeDocFile);
+            } else if ("html".equalsIgnoreCase(extension) || "htm".equalsIgnoreCase(extension)) {
                 try {
-                    Html2Pdf.html2pdf(officeDocFile, outputPdf);
+                    renderHtml(new BufferedReader(new InputStreamReader(new FileInputStream(officeDocFile))),
+                            outputPdf);
+                } catch (TimeoutException e) {
+                    throw e;
                 } catch (Exception e) {
                     logger.warn("htmltopdf imaging not installed, trying OpenOffice imaging instead", e);
                     ooConvert(officeDocFile, outputPdf);
                 }
 
-                return;
+                return true;
             } else if ("pdf".equalsIgnoreCase(extension)) {
                 Files.copy(new File(officeDocFile), new File(outputPdf));
 
-                return;
+                return true;
             } else if ("eml".equalsIgnoreCase(extension)) {
-                EmlParser emlParser = new EmlParser(new File(officeDocFile));
+                EmailDataProvider emlParser = emailData != null ? emailData : new EmlParser(new File(officeDocFile));
                 convertToPDFUsingHtml(officeDocFile, outputPdf, emlParser);
 
-                return;
+                return true;
             } else if ("nsfe".equalsIgnoreCase(extension)) {
-                NSFXDataParser emlParser = new NSFXDataParser(new File(officeDocFile));
+                EmailDataProvider emlParser = emailData != null ? emailData
+                        : new NSFXDataParser(new File(officeDocFile));
                 convertToPDFUsingHtml(officeDocFile, outputPdf, emlParser);
 
-                return;
+                return true;
             } else {
                 ooConvert(officeDocFile, outputPdf);
-                return;
+                return true;
             }
         } catch (Exception e) {
             logger.error("Problem creating PDF file for: {}", officeDocFile, e);
+            supervisor.addRetry(originalFileName != null ? originalFileName : officeDocFile, e);
         }
 
-        try {
-            IOUtils.copy(getClass().getClassLoader().getResourceAsStream(ParameterProcessing.NO_PDF_IMAGE_FILE),
-                    new FileOutputStream(outputPdf));
+        try (InputStream placeholder = getClass().getClassLoader().getResourceAsStream(
+                ParameterProcessing.NO_PDF_IMAGE_FILE);
+                OutputStream out = new FileOutputStream(outputPdf)) {
+            IOUtils.copy(placeholder, out);
         } catch (IOException e) {
             logger.error("Problem with default imaging", e);
         }
+        return false;
     }
 
-    private void convertToPDFUsingHtml(String officeDocFile, String outputPdf, EmailDataProvider emlParser) {
+    private void convertToPDFUsingHtml(String officeDocFile, String outputPdf, EmailDataProvider emlParser)
+            throws TimeoutException {
         try {
-            String emlHtmlContent = EmailUtil.createHtmlFromEmlFile(officeDocFile, emlParser);
-            Html2Pdf.htmlContent2Pdf(emlHtmlContent, outputPdf);
+            renderHtml(EmailUtil.createHtmlReaderFromEmlFile(officeDocFile, emlParser), outputPdf);
+        } catch (TimeoutException e) {
+            // the office would only spend another budget on it
+            throw e;
         } catch (Exception e) {
             logger.error("Cannot convert eml file: {}", e.getMessage());
             ooConvert(officeDocFile, outputPdf);
         }
     }
 
-    public void ooConvert(String officeDocFile, String output) {
+    /**
+     * Render HTML to PDF in this JVM, within the budget of the supervisor. The rendering goes to a file of its own,
+     * which becomes the output when it is complete, since a rendering over budget may not stop right away.
+     *
+     * @param html HTML to render.
+     * @param outputPdf resulting PDF file.
+     * @throws TimeoutException if the rendering is over budget.
+     */
+    private void renderHtml(final Reader html, String outputPdf) throws Exception {
+        final File rendering = new File(outputPdf + ".rendering");
+        try {
+            ConversionSupervisor.getInstance().runHtmlConversion(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Html2Pdf.htmlStream2Pdf(html, rendering.getPath());
+                    return null;
+                }
+            });
+            Files.move(rendering, new File(outputPdf));
+        } finally {
+            rendering.delete();
+        }
+    }
+
+    /**
+     * Convert a document with an idle office process of the pool. It is safe to call from several threads, but the
+     * tasks convert one document at a time, so the pool is there for its restarts of a process which hangs or
+     * crashes, and has one process by default. With several outputs, such as the PDF image and the HTML preview, the document is
+     * loaded once and exported to all of them.
+     *
+     * @param officeDocFile document to convert.
+     * @param outputs converted files, each in the format of its extension.
+     * @throws OfficeException if the conversion fails or times out.
+     */
+    public void ooConvert(String officeDocFile, String... outputs) {
         if (officeManager != null) {
             OfficeDocumentConverter converter = new OfficeDocumentConverter(officeManager);
-            converter.convert(new File(officeDocFile), new File(output));
+            if (outputs.length == 1) {
+                converter.convert(new File(officeDocFile), new File(outputs[0]));
+            } else {
+                List<File> outputFiles = new ArrayList<>(outputs.length);
+                for (String output : outputs) {
+                    outputFiles.add(new File(output));
+                }
+                officeManager.execute(new MultiExportTask(new File(officeDocFile), outputFiles,
+                        converter.getFormatRegistry()));
+            }
         } else {            
             throw new RuntimeException("Open office is not installed");
         }
@@ -140,11 +221,28 @@ public class OfficePrint implements ComponentLifecycle {
             
             logger.info("Will use as open office home: " + defaultOfficeHome);
             
+            // a pool of office processes, one per port, each conversion goes to an idle one; the ports are free ones
+            // taken for this task, so that the tasks of a node do not share or fight over processes
+            Settings settings = Settings.getSettings();
+            officePorts = new OfficePorts(new File(settings.getOfficePortsDir()), settings.getOfficeBasePort(),
+                    settings.getOfficeProcesses());
+            int[] portNumbers = officePorts.getPorts();
+            long taskTimeout = settings.getOfficeTimeout();
+            logger.info("Office processes on ports {} to {}", portNumbers[0], portNumbers[portNumbers.length - 1]);
+
             DefaultOfficeManagerConfiguration configuration = new DefaultOfficeManagerConfiguration();
             configuration.setOfficeHome(defaultOfficeHome);
+            configuration.setPortNumbers(portNumbers);
+            // a process is restarted after so many conversions, and when a conversion hangs or crashes it
+            configuration.setMaxTasksPerProcess(settings.getOfficeMaxTasks());
+            configuration.setTaskExecutionTimeout(taskTimeout);
+            // a conversion waits for an idle process at most as long as the processes ahead of it may take
+            configuration.setTaskQueueTimeout(taskTimeout * portNumbers.length);
             
-            officeManager =configuration.buildOfficeManager();
+            officeManager = configuration.buildOfficeManager();
             officeManager.start();
+        } catch (IOException e) {
+            logger.error("No ports for the office processes", e);
         } catch (NullPointerException | IllegalArgumentException | IllegalStateException | OfficeException e) {
             logger.error("Open office not installed.");
             logger.error("Problem connecting to Open office", e.getMessage());
@@ -156,5 +254,8 @@ public class OfficePrint implements ComponentLifecycle {
         if (officeManager != null) {
             officeManager.stop();
         }
+        if (officePorts != null) {
+            officePorts.close();
+        }
     }
 }
@@ -30,6 +30,7 @@ import java.util.regex.Pattern;
 
 import org.freeeed.ec2.S3Agent;
 import org.freeeed.main.ParameterProcessing;
+import org.freeeed.main.PstFolderSplitter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,6 +61,8 @@ public class Project extends Properties {
     private int mapItemStart = 1;
     private int mapItemEnd = 0;
     private int mapItemCurrent = 0;
+    private Set<String> pstFolders;
+    private boolean otherPstFolders;
 
     private Project() {
         // singleton
@@ -124,6 +127,32 @@ public class Project extends Properties {
         this.mapItemCurrent = mapItemCurrent;
     }
 
+    /**
+     * Process only some of the folders of the PST files, for a job input which is a split of a PST.
+     *
+     * @param pstFolders the folders, or null for all of them.
+     * @param otherPstFolders if true, all the folders but those.
+     */
+    public void setPstFolders(Set<String> pstFolders, boolean otherPstFolders) {
+        this.pstFolders = pstFolders;
+        this.otherPstFolders = otherPstFolders;
+    }
+
+    /**
+     * @param folder name of a PST folder.
+     * @return true if the folder is processed by this mapper.
+     */
+    public boolean isPstFolderIncluded(String folder) {
+        return pstFolders == null || pstFolders.contains(folder) != otherPstFolders;
+    }
+
+    /**
+     * @return true if this mapper processes only some folders of the PST files
+     */
+    public boolean isPstSplit() {
+        return pstFolders != null;
+    }
+
     public enum DATA {
 
         LOCAL, URI, PROBLEM
@@ -611,7 +640,7 @@ public class Project extends Properties {
         clone.setEnvironment(ENV_HADOOP);
         clone.setFileSystem(FS_S3);
         List<String> zipFiles = project.getInventory();
-        String[] s3inputs = new String[zipFiles.size()];
+        List<String> s3inputs = new ArrayList<>(zipFiles.size());
         for (int i = 0; i < zipFiles.size(); ++i) {
             String input = zipFiles.get(i);
             // if the file exists, create the corresponding s3 path
@@ -619,12 +648,13 @@ public class Project extends Properties {
             if (new File(input).exists()) {
                 String key = S3Agent.pathToKey(input);
                 String s3key = "s3://" + Settings.getSettings().getProjectBucket() + "/" + key;
-                s3inputs[i] = s3key;
+                // a package with a large PST is processed by several mappers
+                s3inputs.addAll(PstFolderSplitter.getInputs(input, s3key));
             } else {
-                s3inputs[i] = input;
+                s3inputs.add(input);
             }
         }
-        clone.setInputs(s3inputs);
+        clone.setInputs(s3inputs.toArray(new String[s3inputs.size()]));
         //remove the project input paths property as it is not needed on real processing
         clone.remove(ParameterProcessing.PROJECT_FILE_PATH);
         return clone;
@@ -744,6 +774,46 @@ public class Project extends Properties {
         return 10;
     }
 
+    /**
+     * PDFs with at least this many characters of text per page already have a text layer, and are not OCRed.
+     *
+     * @return characters per page, 100 by default.
+     */
+    public int getOcrMinTextPerPage() {
+        return getIntProperty(ParameterProcessing.OCR_MIN_TEXT_PER_PAGE, 100);
+    }
+
+    public void setOcrMinTextPerPage(int ocrMinTextPerPage) {
+        setProperty(ParameterProcessing.OCR_MIN_TEXT_PER_PAGE, Integer.toString(ocrMinTextPerPage));
+    }
+
+    /**
+     * Images narrower or lower than this, such as icons and rules, are not OCRed.
+     *
+     * @return size in pixels, 50 by default.
+     */
+    public int getOcrMinImageSize() {
+        return getIntProperty(ParameterProcessing.OCR_MIN_IMAGE_SIZE, 50);
+    }
+
+    public void setOcrMinImageSize(int ocrMinImageSize) {
+        setProperty(ParameterProcessing.OCR_MIN_IMAGE_SIZE, Integer.toString(ocrMinImageSize));
+    }
+
+    /**
+     * Set the recursive extraction mode. In this mode email attachments and objects embedded in documents are
+     * emitted as child documents of their container.
+     *
+     * @param extractEmbedded
+     */
+    public void setExtractEmbedded(boolean extractEmbedded) {
+        setProperty(ParameterProcessing.EXTRACT_EMBEDDED, Boolean.toString(extractEmbedded));
+    }
+
+    public boolean isExtractEmbedded() {
+        return isPropertyTrue(ParameterProcessing.EXTRACT_EMBEDDED);
+    }
+
     public List<String> getCustodianPatterns() {
         List<String> result = new ArrayList<String>();
         
@@ -758,6 +828,152 @@ public class Project extends Properties {
         return result;
     }
     
+    /**
+     * Pre-parse filter: documents last modified before this date (yyyy-MM-dd) are filtered.
+     *
+     * @return the date, or null if not set.
+     */
+    public String getFilterDateFrom() {
+        return getProperty(ParameterProcessing.FILTER_DATE_FROM);
+    }
+
+    /**
+     * Pre-parse filter: documents last modified after this date (yyyy-MM-dd) are filtered.
+     *
+     * @return the date, or null if not set.
+     */
+    public String getFilterDateTo() {
+        return getProperty(ParameterProcessing.FILTER_DATE_TO);
+    }
+
+    /**
+     * Pre-parse filter: documents smaller than this number of bytes are filtered.
+     *
+     * @return minimum size, 0 if not set.
+     */
+    public long getFilterMinSize() {
+        return getLongProperty(ParameterProcessing.FILTER_MIN_SIZE);
+    }
+
+    /**
+     * Pre-parse filter: documents larger than this number of bytes are filtered.
+     *
+     * @return maximum size, 0 if not set.
+     */
+    public long getFilterMaxSize() {
+        return getLongProperty(ParameterProcessing.FILTER_MAX_SIZE);
+    }
+
+    /**
+     * Pre-parse filter: file extensions to filter, such as "exe,dll".
+     *
+     * @return list of extensions, possibly empty.
+     */
+    public List<String> getFilterExcludeExtensions() {
+        return getListProperty(ParameterProcessing.FILTER_EXCLUDE_EXTENSIONS);
+    }
+
+    /**
+     * Pre-parse filter: detected media types to filter, such as "image/*,application/x-font-ttf".
+     *
+     * @return list of media types, possibly empty.
+     */
+    public List<String> getFilterExcludeTypes() {
+        return getListProperty(ParameterProcessing.FILTER_EXCLUDE_TYPES);
+    }
+
+    /**
+     * Pre-parse filter: regular expressions for the original paths to filter, given as filter_exclude_path1,
+     * filter_exclude_path2, and so on.
+     *
+     * @return list of patterns, possibly empty.
+     */
+    public List<String> getFilterExcludePaths() {
+        List<String> result = new ArrayList<String>();
+        String pattern = null;
+        int count = 1;
+        String key = ParameterProcessing.FILTER_EXCLUDE_PATH + count;
+        while ((pattern = getProperty(key)) != null) {
+            result.add(pattern);
+            key = ParameterProcessing.FILTER_EXCLUDE_PATH + (++count);
+        }
+        return result;
+    }
+
+    /**
+     * Filtered documents are dropped, unless this is true. Then they are still delivered, but with metadata only,
+     * without parsing, OCR, culling or imaging.
+     *
+     * @return true if filtered documents should be delivered with metadata only.
+     */
+    public boolean isFilterMetadataOnly() {
+        return isPropertyTrue(ParameterProcessing.FILTER_METADATA_ONLY);
+    }
+
+    /**
+     * De-NISTing: drop the files found in the known file list of the settings.
+     *
+     * @return true if known files should be dropped.
+     */
+    public boolean isDenist() {
+        return isPropertyTrue(ParameterProcessing.DENIST);
+    }
+
+    public void setDenist(boolean b) {
+        setProperty(ParameterProcessing.DENIST, Boolean.toString(b));
+    }
+
+    /**
+     * Imaging after de-duplication: the PDF images are made by the reducer, once for every unique document,
+     * instead of by the mapper for every document.
+     *
+     * @return true if the images are made after de-duplication.
+     */
+    public boolean isImageAfterDedup() {
+        return isPropertyTrue(ParameterProcessing.IMAGE_AFTER_DEDUP);
+    }
+
+    public void setImageAfterDedup(boolean b) {
+        setProperty(ParameterProcessing.IMAGE_AFTER_DEDUP, Boolean.toString(b));
+    }
+
+    private int getIntProperty(String key, int defaultValue) {
+        String value = getProperty(key);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Wrong number for {}: {}", key, value);
+            }
+        }
+        return defaultValue;
+    }
+
+    private long getLongProperty(String key) {
+        String value = getProperty(key);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Wrong number for {}: {}", key, value);
+            }
+        }
+        return 0;
+    }
+
+    private List<String> getListProperty(String key) {
+        List<String> result = new ArrayList<String>();
+        String value = getProperty(key);
+        if (value != null) {
+            for (String item : value.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    result.add(item.trim());
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * Remove all settings from project.
      */
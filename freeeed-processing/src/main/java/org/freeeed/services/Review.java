@@ -54,6 +54,9 @@ public class Review {
         if (Stats.getInstance().getStatsFile().exists()) {
             Files.move(Stats.getInstance().getStatsFile(), new File(outputFolder.getPath() + "/report.txt"));
         }
+        if (Stats.getInstance().getRetryFile().exists()) {
+            Files.move(Stats.getInstance().getRetryFile(), new File(outputFolder.getPath() + "/retry.txt"));
+        }
         return true;
     }
 }
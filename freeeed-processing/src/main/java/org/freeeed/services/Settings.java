@@ -69,6 +69,22 @@ public class Settings extends Properties {
         }
     }
 
+    /**
+     * @return the value, or null if the setting is not there or empty, unlike getProperty
+     */
+    private String getOptionalProperty(String key) {
+        String value = super.getProperty(key);
+        return value != null && value.trim().length() > 0 ? value : null;
+    }
+
+    /**
+     * The output directory of a Hadoop task is in its attempt directory, which goes away with the attempt, so
+     * caches that outlive a run are kept under the home directory.
+     */
+    private static String getNodeCacheDir(String name) {
+        return System.getProperty("user.home") + File.separator + ".freeeed" + File.separator + name;
+    }
+
     static public void setSettings(Settings aSettings) {
         settings = aSettings;
     }
@@ -564,4 +580,315 @@ public class Settings extends Properties {
     public String getHTMLDir() {
         return getOutputDir() + ParameterProcessing.HTML_OUTPUT_DIR;
     }
+
+    /**
+     * @return path of the sorted known file hash list, built by KnownFileHashBuilder, or null
+     */
+    public String getKnownFileHashes() {
+        return getProperty(ParameterProcessing.KNOWN_FILE_HASHES);
+    }
+
+    public void setKnownFileHashes(String knownFileHashes) {
+        setProperty(ParameterProcessing.KNOWN_FILE_HASHES, knownFileHashes);
+    }
+
+    /**
+     * @return number of tesseract processes to run in parallel, the number of cores by default
+     */
+    public int getOcrThreads() {
+        String ocrThreads = getOptionalProperty(ParameterProcessing.OCR_THREADS);
+        if (ocrThreads != null) {
+            try {
+                return Math.max(Integer.parseInt(ocrThreads.trim()), 1);
+            } catch (NumberFormatException e) {
+                logger.warn("OCR threads", e);
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public void setOcrThreads(int ocrThreads) {
+        setProperty(ParameterProcessing.OCR_THREADS, Integer.toString(ocrThreads));
+    }
+
+    /**
+     * @return time in milliseconds after which a hung tesseract process is killed, from "ocr_timeout" in seconds,
+     * two minutes by default
+     */
+    public long getOcrTimeout() {
+        String ocrTimeout = getOptionalProperty(ParameterProcessing.OCR_TIMEOUT);
+        if (ocrTimeout != null) {
+            try {
+                return Long.parseLong(ocrTimeout.trim()) * 1000;
+            } catch (NumberFormatException e) {
+                logger.warn("OCR timeout", e);
+            }
+        }
+        return 120 * 1000;
+    }
+
+    /**
+     * @return maximum number of images recognized in one tesseract run, 1 to run tesseract for every image
+     */
+    public int getOcrBatchSize() {
+        String ocrBatchSize = getOptionalProperty(ParameterProcessing.OCR_BATCH_SIZE);
+        if (ocrBatchSize != null) {
+            try {
+                return Math.max(Integer.parseInt(ocrBatchSize.trim()), 1);
+            } catch (NumberFormatException e) {
+                logger.warn("OCR batch size", e);
+            }
+        }
+        return 8;
+    }
+
+    /**
+     * @return directory of the OCR cache, shared by the tasks of the node and kept between runs, under the home
+     * directory of the user running them by default
+     */
+    public String getOcrCacheDir() {
+        String ocrCacheDir = getOptionalProperty(ParameterProcessing.OCR_CACHE_DIR);
+        return ocrCacheDir != null ? ocrCacheDir : getNodeCacheDir("ocr_cache");
+    }
+
+    /**
+     * @return bound on the OCR cache size in bytes, from "ocr_cache_size" in megabytes, 0 if there is no cache
+     */
+    public long getOcrCacheSize() {
+        String ocrCacheSize = getOptionalProperty(ParameterProcessing.OCR_CACHE_SIZE);
+        if (ocrCacheSize != null) {
+            try {
+                return Math.max(Long.parseLong(ocrCacheSize.trim()), 0) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                logger.warn("OCR cache size", e);
+            }
+        }
+        return 512L * 1024 * 1024;
+    }
+
+    /**
+     * @return number of office processes started by each task for document conversion, one by default, since a
+     * task converts one document at a time and the node runs several tasks
+     */
+    public int getOfficeProcesses() {
+        String officeProcesses = getOptionalProperty(ParameterProcessing.OFFICE_PROCESSES);
+        if (officeProcesses != null) {
+            try {
+                return Math.max(Integer.parseInt(officeProcesses.trim()), 1);
+            } catch (NumberFormatException e) {
+                logger.warn("Office processes", e);
+            }
+        }
+        return 1;
+    }
+
+    public void setOfficeProcesses(int officeProcesses) {
+        setProperty(ParameterProcessing.OFFICE_PROCESSES, Integer.toString(officeProcesses));
+    }
+
+    /**
+     * @return port from which the office processes of a task look for free ports, "office_base_port", 2002 by
+     * default
+     */
+    public int getOfficeBasePort() {
+        String officeBasePort = getOptionalProperty(ParameterProcessing.OFFICE_BASE_PORT);
+        if (officeBasePort != null) {
+            try {
+                return Integer.parseInt(officeBasePort.trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Office base port", e);
+            }
+        }
+        return 2002;
+    }
+
+    /**
+     * @return directory of the locks by which the tasks of the node share out the ports of their office processes
+     */
+    public String getOfficePortsDir() {
+        return getNodeCacheDir("office_ports");
+    }
+
+    /**
+     * @return number of conversions after which an office process is restarted, to release the memory it leaks
+     */
+    public int getOfficeMaxTasks() {
+        String officeMaxTasks = getOptionalProperty(ParameterProcessing.OFFICE_MAX_TASKS);
+        if (officeMaxTasks != null) {
+            try {
+                return Math.max(Integer.parseInt(officeMaxTasks.trim()), 1);
+            } catch (NumberFormatException e) {
+                logger.warn("Office max tasks", e);
+            }
+        }
+        return 200;
+    }
+
+    /**
+     * @return time in milliseconds after which a conversion is abandoned and its office process restarted, from
+     * "office_timeout" in seconds, two minutes by default
+     */
+    public long getOfficeTimeout() {
+        String officeTimeout = getOptionalProperty(ParameterProcessing.OFFICE_TIMEOUT);
+        if (officeTimeout != null) {
+            try {
+                return Long.parseLong(officeTimeout.trim()) * 1000;
+            } catch (NumberFormatException e) {
+                logger.warn("Office timeout", e);
+            }
+        }
+        return 120 * 1000;
+    }
+
+    /**
+     * @return time in milliseconds after which the rendering of an email or an HTML document to PDF is abandoned,
+     * from "html_timeout" in seconds, one minute by default
+     */
+    public long getHtmlTimeout() {
+        String htmlTimeout = getOptionalProperty(ParameterProcessing.HTML_TIMEOUT);
+        if (htmlTimeout != null) {
+            try {
+                return Long.parseLong(htmlTimeout.trim()) * 1000;
+            } catch (NumberFormatException e) {
+                logger.warn("HTML timeout", e);
+            }
+        }
+        return 60 * 1000;
+    }
+
+    /**
+     * @return time in milliseconds after which the extraction of a PST file is killed, from "pst_timeout" in
+     * minutes, 0 for no limit, which is the default since large PST files take hours
+     */
+    public long getPstTimeout() {
+        String pstTimeout = getOptionalProperty(ParameterProcessing.PST_TIMEOUT);
+        if (pstTimeout != null) {
+            try {
+                return Math.max(Long.parseLong(pstTimeout.trim()), 0) * 60 * 1000;
+            } catch (NumberFormatException e) {
+                logger.warn("PST timeout", e);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return bound in bytes on the emails readpst may extract ahead of the processing of a PST folder, from
+     * "pst_scratch_size" in megabytes, 0 for no bound, 2 GB by default
+     */
+    public long getPstScratchSize() {
+        String pstScratchSize = getOptionalProperty(ParameterProcessing.PST_SCRATCH_SIZE);
+        if (pstScratchSize != null) {
+            try {
+                return Math.max(Long.parseLong(pstScratchSize.trim()), 0) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                logger.warn("PST scratch size", e);
+            }
+        }
+        return 2048L * 1024 * 1024;
+    }
+
+    /**
+     * @return size in bytes above which a PST file is split across mappers by its folders, from "pst_split_size"
+     * in megabytes, 0 not to split, 4 GB by default
+     */
+    public long getPstSplitSize() {
+        String pstSplitSize = getOptionalProperty(ParameterProcessing.PST_SPLIT_SIZE);
+        if (pstSplitSize != null) {
+            try {
+                return Math.max(Long.parseLong(pstSplitSize.trim()), 0) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                logger.warn("PST split size", e);
+            }
+        }
+        return 4096L * 1024 * 1024;
+    }
+
+    /**
+     * @return most parts a PST file is split into, from "pst_max_splits", 4 by default, since each part downloads
+     * the whole PST and runs readpst over all of it
+     */
+    public int getPstMaxSplits() {
+        String pstMaxSplits = getOptionalProperty(ParameterProcessing.PST_MAX_SPLITS);
+        if (pstMaxSplits != null) {
+            try {
+                return Math.max(Integer.parseInt(pstMaxSplits.trim()), 1);
+            } catch (NumberFormatException e) {
+                logger.warn("PST max splits", e);
+            }
+        }
+        return 4;
+    }
+
+    /**
+     * @return time in milliseconds after which the external processing of an NSF file is given up, from
+     * "nsf_timeout" in minutes, 0 for no limit, a day by default
+     */
+    public long getNsfTimeout() {
+        String nsfTimeout = getOptionalProperty(ParameterProcessing.NSF_TIMEOUT);
+        if (nsfTimeout != null) {
+            try {
+                return Math.max(Long.parseLong(nsfTimeout.trim()), 0) * 60 * 1000;
+            } catch (NumberFormatException e) {
+                logger.warn("NSF timeout", e);
+            }
+        }
+        return 24 * 60 * 60 * 1000L;
+    }
+
+    /**
+     * @return number of NSF files sent to the external processing machine at the same time, from
+     * "nsf_concurrency", 4 by default
+     */
+    public int getNsfConcurrency() {
+        String nsfConcurrency = getOptionalProperty(ParameterProcessing.NSF_CONCURRENCY);
+        if (nsfConcurrency != null) {
+            try {
+                return Math.max(Integer.parseInt(nsfConcurrency.trim()), 1);
+            } catch (NumberFormatException e) {
+                logger.warn("NSF concurrency", e);
+            }
+        }
+        return 4;
+    }
+
+    /**
+     * @return size in bytes of the chunks an NSF file is uploaded in, from "nsf_chunk_size" in megabytes, 8 MB by
+     * default
+     */
+    public int getNsfChunkSize() {
+        String nsfChunkSize = getOptionalProperty(ParameterProcessing.NSF_CHUNK_SIZE);
+        if (nsfChunkSize != null) {
+            try {
+                return Math.min(Math.max(Integer.parseInt(nsfChunkSize.trim()), 1), 1024) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                logger.warn("NSF chunk size", e);
+            }
+        }
+        return 8 * 1024 * 1024;
+    }
+
+    /**
+     * @return directory of the cache of parsed text, PDF images and HTML previews, kept between runs
+     */
+    public String getDerivativeCacheDir() {
+        String derivativeCacheDir = getOptionalProperty(ParameterProcessing.DERIVATIVE_CACHE_DIR);
+        return derivativeCacheDir != null ? derivativeCacheDir : getNodeCacheDir("derivative_cache");
+    }
+
+    /**
+     * @return bound on the derivative cache size in bytes, from "derivative_cache_size" in megabytes, 0 if there
+     * is no cache
+     */
+    public long getDerivativeCacheSize() {
+        String derivativeCacheSize = getOptionalProperty(ParameterProcessing.DERIVATIVE_CACHE_SIZE);
+        if (derivativeCacheSize != null) {
+            try {
+                return Math.max(Long.parseLong(derivativeCacheSize.trim()), 0) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                logger.warn("Derivative cache size", e);
+            }
+        }
+        return 4096L * 1024 * 1024;
+    }
 }
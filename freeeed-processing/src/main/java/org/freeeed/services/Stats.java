@@ -20,8 +20,15 @@ import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.freeeed.main.ParameterProcessing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
 
 /**
  *
@@ -29,12 +36,16 @@ import org.freeeed.main.ParameterProcessing;
  */
 public class Stats {
     // TODO do stats in a better way
+    private static final Logger logger = LoggerFactory.getLogger(Stats.class);
     private static String statsFileName = "logs/stats.txt";
+    private static String retryFileName = "logs/retry.txt";
     private static Stats instance = new Stats();
     private static SimpleDateFormat sdf = new SimpleDateFormat("yy-MM-dd HH:mm:ss   ");
     private Date jobStarted = new Date();
     private Date jobFinished = new Date();
     private int itemCount = 0;
+    private Map<String, Integer> filteredCounts = new TreeMap<>();
+    private int retryCount = 0;
     private StringBuilder messageBuf;
     private String zipFileName;
 
@@ -59,6 +70,7 @@ public class Stats {
         String mes = sdf.format(jobStarted)
                 + "Project " + projectName + " started" + ParameterProcessing.NL;
         messageBuf.append(mes);
+        getRetryFile().delete();
     }
 
     public Date getJobFinished() {
@@ -75,6 +87,14 @@ public class Stats {
                 + getJobDuration() + " sec" + ParameterProcessing.NL);
         messageBuf.append(sdf.format(jobFinished) + "item count: "
                 + getItemCount() + ParameterProcessing.NL);
+        for (Map.Entry<String, Integer> filtered : filteredCounts.entrySet()) {
+            messageBuf.append(sdf.format(jobFinished) + "filtered by " + filtered.getKey() + ": "
+                    + filtered.getValue() + ParameterProcessing.NL);
+        }
+        if (retryCount > 0) {
+            messageBuf.append(sdf.format(jobFinished) + "documents to retry: "
+                    + retryCount + ParameterProcessing.NL);
+        }
         try {
             Util.writeTextFile(statsFileName, messageBuf.toString());
         } catch (IOException e) {
@@ -86,6 +106,8 @@ public class Stats {
 
     private void reset() {
         itemCount = 0;
+        filteredCounts.clear();
+        retryCount = 0;
     }
 
     public int getJobDuration() {
@@ -100,6 +122,47 @@ public class Stats {
         return itemCount;
     }
 
+    /**
+     * Count a document removed before parsing.
+     *
+     * @param criterion the criterion which removed it, such as "date" or "size".
+     */
+    public synchronized void increaseFilteredCount(String criterion) {
+        Integer count = filteredCounts.get(criterion);
+        filteredCounts.put(criterion, count == null ? 1 : count + 1);
+    }
+
+    public synchronized Map<String, Integer> getFilteredCounts() {
+        return new TreeMap<>(filteredCounts);
+    }
+
+    /**
+     * Add a document to the retry list, because its conversion was abandoned or failed, and a placeholder took
+     * its place in the output.
+     *
+     * @param document the document.
+     * @param reason why it has to be retried, such as a timeout.
+     */
+    public synchronized void addRetry(String document, String reason) {
+        ++retryCount;
+        try {
+            File retryFile = getRetryFile();
+            retryFile.getParentFile().mkdirs();
+            Files.append(sdf.format(new Date()) + document + "\t" + reason + ParameterProcessing.NL, retryFile,
+                    Charsets.UTF_8);
+        } catch (IOException e) {
+            logger.warn("Could not add {} to the retry list", document, e);
+        }
+    }
+
+    public synchronized int getRetryCount() {
+        return retryCount;
+    }
+
+    public File getRetryFile() {
+        return new File(retryFileName);
+    }
+
     public File getStatsFile() {
         return new File(statsFileName);
     }
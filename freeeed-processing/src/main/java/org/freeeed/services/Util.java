@@ -100,11 +100,6 @@ public class Util {
         return builder.toString();
     }
 
-    public static boolean isSystemFile(Metadata metadata) {
-        return "application/octet-stream".equalsIgnoreCase(
-                metadata.get("Content-Type"));
-    }
-
     public static int countLines(String filename) throws IOException {
         LineNumberReader reader = new LineNumberReader(new FileReader(filename));
         int cnt = 0;
@@ -0,0 +1,193 @@
+/*
+ *
+ * Copyright SHMsoft, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent key-value cache in a local directory, which can be shared by all the tasks of a node and kept
+ * between runs. Every entry is a gzipped file named by its key, in a sub-directory named by the first two
+ * characters of the key, so that no directory gets too large. Entries are written to a temporary file and renamed,
+ * so that a reader in another process never sees a partial entry.
+ *
+ * The cache is bounded in size. A hit touches the entry, and when the cache grows past its bound, the least
+ * recently used entries are deleted. Each process only knows about the writes of the others from the last time it
+ * looked at the directory, so the bound is approximate.
+ *
+ * @author mark
+ */
+public class DiskCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiskCache.class);
+    private static final String EXTENSION = ".gz";
+    private static final String TMP_EXTENSION = ".tmp";
+    // evict down to this fraction of the bound, so that eviction does not run on every write
+    private static final double EVICTION_TARGET = 0.9;
+    private File dir;
+    private long maxSize;
+    private AtomicLong size = new AtomicLong();
+
+    /**
+     * @param dir cache directory, created if needed.
+     * @param maxSize bound on the total size of the entries, in bytes.
+     */
+    public DiskCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        dir.mkdirs();
+        size.set(computeSize(listEntries()));
+        logger.info("Cache {}: {} bytes of {}", dir.getPath(), size.get(), maxSize);
+    }
+
+    /**
+     * @param key entry key, such as a hex hash.
+     * @return the cached value, or null if there is none.
+     */
+    public byte[] get(String key) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try (InputStream is = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] value = IOUtils.toByteArray(is);
+            file.setLastModified(System.currentTimeMillis());
+            return value;
+        } catch (IOException e) {
+            // evicted by another process while being read, or a broken entry
+            logger.debug("Could not read cache entry {}", file.getPath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Store a value, replacing any previous one.
+     *
+     * @param key entry key, such as a hex hash.
+     * @param value bytes to cache.
+     */
+    public void put(String key, byte[] value) {
+        File file = getFile(key);
+        File shard = file.getParentFile();
+        shard.mkdirs();
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile(key, TMP_EXTENSION, shard);
+            try (OutputStream os = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                os.write(value);
+            }
+            long entrySize = tmpFile.length();
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            tmpFile = null;
+            if (size.addAndGet(entrySize) > maxSize) {
+                evict();
+            }
+        } catch (IOException e) {
+            logger.warn("Could not write cache entry {}", file.getPath(), e);
+        } finally {
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used entries, until the cache is well under its bound.
+     */
+    private synchronized void evict() {
+        List<File> entries = listEntries();
+        long currentSize = computeSize(entries);
+        long target = (long) (maxSize * EVICTION_TARGET);
+        if (currentSize > target) {
+            final long[] lastModified = new long[entries.size()];
+            Integer[] order = new Integer[entries.size()];
+            for (int i = 0; i < order.length; ++i) {
+                order[i] = i;
+                lastModified[i] = entries.get(i).lastModified();
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i1, Integer i2) {
+                    long m1 = lastModified[i1];
+                    long m2 = lastModified[i2];
+                    return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+                }
+            });
+            int evicted = 0;
+            for (int i = 0; i < order.length && currentSize > target; ++i) {
+                File entry = entries.get(order[i]);
+                long entrySize = entry.length();
+                if (entry.delete()) {
+                    currentSize -= entrySize;
+                    ++evicted;
+                }
+            }
+            logger.debug("Cache {}: evicted {} entries", dir.getPath(), evicted);
+        }
+        size.set(currentSize);
+    }
+
+    private List<File> listEntries() {
+        List<File> entries = new ArrayList<>();
+        File[] shards = dir.listFiles();
+        if (shards != null) {
+            for (File shard : shards) {
+                File[] files = shard.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.getName().endsWith(EXTENSION)) {
+                            entries.add(file);
+                        }
+                    }
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static long computeSize(List<File> entries) {
+        long total = 0;
+        for (File entry : entries) {
+            total += entry.length();
+        }
+        return total;
+    }
+
+    private File getFile(String key) {
+        String shard = key.length() > 2 ? key.substring(0, 2) : "_";
+        return new File(new File(dir, shard), key + EXTENSION);
+    }
+}
@@ -0,0 +1,162 @@
+package org.freeeed.lotus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.freeeed.main.ParameterProcessing;
+import org.freeeed.services.Settings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the client against a stub of the external processing machine, which returns the uploaded file as the result.
+ *
+ * @author mark
+ */
+public class ExternalProcessingClientTest {
+
+    private HttpServer server;
+    private StubMachine machine;
+    private File dir;
+    private File nsfFile;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        Settings.getSettings().setProperty(ParameterProcessing.NSF_CHUNK_SIZE, "1");
+        dir = new File("tmp/nsf-client-test");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+        content = new byte[5 * 1024 * 1024 / 2];
+        new Random(1).nextBytes(content);
+        nsfFile = new File(dir, "mail.nsf");
+        FileUtils.writeByteArrayToFile(nsfFile, content);
+        machine = new StubMachine();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", machine);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        Settings.getSettings().remove(ParameterProcessing.NSF_CHUNK_SIZE);
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testChunks() throws Exception {
+        machine.failChunk = true;
+        assertTrue(submit().get(60, TimeUnit.SECONDS));
+        assertArrayEquals(content, FileUtils.readFileToByteArray(new File(dir, "output/result.zip")));
+        // the second chunk fails halfway, and the upload goes on from there, which needs one chunk more
+        assertEquals(3, machine.chunks.get());
+        assertEquals(0, machine.wholeUploads.get());
+        assertTrue(machine.checks.get() >= 2);
+    }
+
+    @Test
+    public void testWholeFile() throws Exception {
+        machine.takesChunks = false;
+        assertTrue(submit().get(60, TimeUnit.SECONDS));
+        assertEquals(1, machine.wholeUploads.get());
+        // the multipart request holds the file
+        assertTrue(new File(dir, "output/result.zip").length() > content.length);
+    }
+
+    private Future<Boolean> submit() {
+        return ExternalProcessingClient.getInstance().submit("http://localhost:" + server.getAddress().getPort(),
+                nsfFile, new File(dir, "output"));
+    }
+
+    private static class StubMachine implements HttpHandler {
+
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private final AtomicInteger chunks = new AtomicInteger();
+        private final AtomicInteger wholeUploads = new AtomicInteger();
+        private final AtomicInteger checks = new AtomicInteger();
+        private volatile boolean takesChunks = true;
+        private volatile boolean failChunk;
+
+        @Override
+        public synchronized void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            String query = exchange.getRequestURI().getQuery();
+            byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+            if (path.endsWith("/request-processing.html")) {
+                respond(exchange, "OK", "task1");
+            } else if (path.endsWith("/submit-chunk.html")) {
+                if (!takesChunks) {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+                chunks.incrementAndGet();
+                long offset = Long.parseLong(getParameter(query, "offset"));
+                if (failChunk && offset > 0) {
+                    // the chunk is lost, but part of it arrived
+                    failChunk = false;
+                    received.write(body, 0, body.length / 2);
+                    exchange.sendResponseHeaders(500, -1);
+                    exchange.close();
+                    return;
+                }
+                if (offset == received.size()) {
+                    received.write(body);
+                }
+                respond(exchange, "OK", Integer.toString(received.size()));
+            } else if (path.endsWith("/upload-status.html")) {
+                respond(exchange, "OK", Integer.toString(received.size()));
+            } else if (path.endsWith("/submit-processing.html")) {
+                wholeUploads.incrementAndGet();
+                received.write(body);
+                respond(exchange, "OK", "");
+            } else if (path.endsWith("/check-processing.html")) {
+                assertEquals("30", getParameter(query, "wait"));
+                respond(exchange, checks.incrementAndGet() < 2 ? "IN_PROGRESS" : "OK", "result.zip");
+            } else if (path.endsWith("/result.html")) {
+                assertEquals("result.zip", getParameter(query, "file"));
+                send(exchange, received.toByteArray());
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+            }
+        }
+
+        private static String getParameter(String query, String name) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith(name + "=")) {
+                    return parameter.substring(name.length() + 1);
+                }
+            }
+            return null;
+        }
+
+        private static void respond(HttpExchange exchange, String status, String message) throws IOException {
+            send(exchange, ("{\"status\":\"" + status + "\",\"message\":\"" + message + "\"}").getBytes("UTF-8"));
+        }
+
+        private static void send(HttpExchange exchange, byte[] bytes) throws IOException {
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        }
+    }
+}
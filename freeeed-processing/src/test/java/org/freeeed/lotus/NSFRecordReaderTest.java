@@ -0,0 +1,152 @@
+package org.freeeed.lotus;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.freeeed.services.Util;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.google.common.io.Files;
+
+/**
+ *
+ * @author mark
+ */
+public class NSFRecordReaderTest {
+
+    private File outputDir;
+
+    @Before
+    public void setUp() {
+        outputDir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Util.deleteDirectory(outputDir);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File segment = writeEmails(3);
+        try (NSFRecordReader reader = new NSFRecordReader(segment)) {
+            for (int i = 1; i <= 3; ++i) {
+                byte[] record = reader.next();
+                assertNotNull(record);
+                // a record is what the NSF email parser reads from a file
+                File scratchFile = new File(outputDir, FileStorage.RECORD_FILE);
+                Files.write(record, scratchFile);
+                LotusEmail email = new FileStorage().readEmail(scratchFile);
+                assertEquals("Subject " + i + " \u00e9t\u00e9", email.getSubject());
+            }
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testTruncatedTail() throws IOException {
+        File segment = writeEmails(2);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        try (NSFRecordReader reader = new NSFRecordReader(segment)) {
+            assertNotNull(reader.next());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testWriteFailure() throws IOException {
+        FileStorage fileStorage = new FileStorage(outputDir.getPath(), "mailbox.nsf") {
+            private boolean failed;
+
+            @Override
+            OutputStream openStream(File file) throws IOException {
+                return new FilterOutputStream(super.openStream(file)) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        // the large email fails half way, once
+                        if (!failed && len > 64 * 1024) {
+                            failed = true;
+                            out.write(b, off, len / 2);
+                            throw new IOException("Disk full");
+                        }
+                        out.write(b, off, len);
+                    }
+                };
+            }
+        };
+        StringBuilder large = new StringBuilder();
+        while (large.length() <= 64 * 1024) {
+            large.append("Content of a large email ");
+        }
+        fileStorage.storeEmail(email("Subject 1", "Content of email 1"));
+        fileStorage.storeEmail(email("Subject 2", large.toString()));
+        fileStorage.storeEmail(email("Subject 3", "Content of email 3"));
+        fileStorage.close();
+
+        File mailboxDir = new File(outputDir, "mailbox");
+        assertEquals(Arrays.asList("Subject 1"),
+                readSubjects(new File(mailboxDir, "emails-1" + NSFRecordReader.SEGMENT_EXT)));
+        assertEquals(Arrays.asList("Subject 3"),
+                readSubjects(new File(mailboxDir, "emails-2" + NSFRecordReader.SEGMENT_EXT)));
+    }
+
+    @Test
+    public void testLegacyFile() throws IOException {
+        // older versions stored each email in a file of its own, in the platform charset
+        Assume.assumeTrue(Charset.defaultCharset().newEncoder().canEncode("\u00e9t\u00e9"));
+        File legacyFile = new File(outputDir, "1.nsfe");
+        Files.write("{\"subject\": \"Subject \u00e9t\u00e9\"}", legacyFile, Charset.defaultCharset());
+        assertEquals("Subject \u00e9t\u00e9", new FileStorage().readEmail(legacyFile).getSubject());
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotASegment() throws IOException {
+        File file = new File(outputDir, "emails.txt");
+        Files.write("{\"subject\": \"email\"}", file, Charset.forName("UTF-8"));
+        new NSFRecordReader(file).close();
+    }
+
+    private File writeEmails(int count) {
+        FileStorage fileStorage = new FileStorage(outputDir.getPath(), "mailbox.nsf");
+        for (int i = 1; i <= count; ++i) {
+            fileStorage.storeEmail(email("Subject " + i + " \u00e9t\u00e9", "Content of email " + i));
+        }
+        fileStorage.close();
+        File segment = new File(new File(outputDir, "mailbox"), "emails-1" + NSFRecordReader.SEGMENT_EXT);
+        assertTrue(segment.exists());
+        return segment;
+    }
+
+    private LotusEmail email(String subject, String content) {
+        LotusEmail email = new LotusEmail();
+        email.setSubject(subject);
+        email.setContent(content);
+        return email;
+    }
+
+    private List<String> readSubjects(File segment) throws IOException {
+        List<String> subjects = new ArrayList<>();
+        File scratchFile = new File(outputDir, FileStorage.RECORD_FILE);
+        try (NSFRecordReader reader = new NSFRecordReader(segment)) {
+            byte[] record;
+            while ((record = reader.next()) != null) {
+                Files.write(record, scratchFile);
+                subjects.add(new FileStorage().readEmail(scratchFile).getSubject());
+            }
+        }
+        return subjects;
+    }
+}
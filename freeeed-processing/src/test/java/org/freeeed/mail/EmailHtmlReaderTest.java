@@ -0,0 +1,44 @@
+package org.freeeed.mail;
+
+import java.io.IOException;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mark
+ */
+public class EmailHtmlReaderTest {
+
+    private static final String TEMPLATE = "<html><body><b>Subject: </b>Hello<p>@BODY@</p>@ATTACH@</body></html>";
+
+    @Test
+    public void testBody() throws IOException {
+        assertEquals("<html><body><b>Subject: </b>Hello<p> <![CDATA[first]]><br/><![CDATA[]]><br/>"
+                + "<![CDATA[second]]><br/></p> a.txt<br/></body></html>",
+                read(new EmailHtmlReader(TEMPLATE, "first\n\nsecond\n\n", "a.txt<br/>", true, 0)));
+        assertEquals("<html><body><b>Subject: </b>Hello<p> <br/></p> </body></html>",
+                read(new EmailHtmlReader(TEMPLATE, null, "", false, 0)));
+        assertTrue(EmailHtmlReader.hasAttachments(TEMPLATE));
+    }
+
+    @Test
+    public void testParagraphs() throws IOException {
+        assertEquals("<html><body><b>Subject: </b>Hello<p> 1<br/>2<br/></p><p>3<br/>4<br/></p><p>5<br/></p> "
+                + "</body></html>",
+                read(new EmailHtmlReader(TEMPLATE, "1\n2\n3\n4\n5", "", false, 2)));
+        // no empty paragraph at the end
+        assertEquals("<html><body><b>Subject: </b>Hello<p> 1<br/>2<br/></p> </body></html>",
+                read(new EmailHtmlReader(TEMPLATE, "1\n2\n", "", false, 2)));
+    }
+
+    private static String read(EmailHtmlReader reader) throws IOException {
+        try {
+            return IOUtils.toString(reader);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.freeeed.mail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.google.common.io.Files;
+
+/**
+ *
+ * @author mark
+ */
+public class EmlParserTest {
+
+    private static final String HEADERS = "From: \"Alice A\" <alice@example.com>\n"
+            + "To: bob@example.com\n"
+            + "Bcc: \"Eve E\" <eve@example.com>, dan@example.com\n"
+            + "Subject: Numbers\n"
+            + "MIME-Version: 1.0\n";
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testHtmlOnly() throws IOException {
+        EmlParser parser = parse(HEADERS
+                + "Content-Type: text/html; charset=UTF-8\n\n"
+                + "<html><body><p>Html <b>body</b></p></body></html>\n");
+        assertTrue(parser.getContent().contains("Html body"));
+        assertFalse(parser.getContent().contains("<"));
+        assertTrue(parser.getBodyText().contains("Html body"));
+        assertTrue(parser.getAttachmentNames().isEmpty());
+        assertEquals(Arrays.asList("Eve E <eve@example.com>", "dan@example.com"), parser.getBCCDisplayNames());
+    }
+
+    @Test
+    public void testAlternative() throws IOException {
+        EmlParser parser = parse(HEADERS
+                + "Content-Type: multipart/alternative; boundary=\"alt\"\n\n"
+                + "--alt\nContent-Type: text/plain; charset=UTF-8\n\nPlain body\n"
+                + "--alt\nContent-Type: text/html; charset=UTF-8\n\n<html><body><p>Html body</p></body></html>\n"
+                + "--alt--\n");
+        assertEquals("Plain body", parser.getContent().trim());
+        // the message text has both alternatives, as Tika gave it
+        assertTrue(parser.getBodyText().contains("Plain body"));
+        assertTrue(parser.getBodyText().contains("Html body"));
+        assertTrue(parser.getAttachmentNames().isEmpty());
+        assertTrue(parser.getAttachmentsContent().isEmpty());
+    }
+
+    @Test
+    public void testNestedMixed() throws IOException {
+        EmlParser parser = parse(HEADERS
+                + "Content-Type: multipart/mixed; boundary=\"outer\"\n\n"
+                + "--outer\nContent-Type: multipart/mixed; boundary=\"inner\"\n\n"
+                + "--inner\nContent-Type: multipart/alternative; boundary=\"alt\"\n\n"
+                + "--alt\nContent-Type: text/plain\n\nPlain body\n"
+                + "--alt\nContent-Type: text/html\n\n<p>Html body</p>\n"
+                + "--alt--\n"
+                + "--inner\nContent-Type: application/octet-stream\n"
+                + "Content-Disposition: attachment; filename=\"inner.bin\"\n\nbinary\n"
+                + "--inner--\n"
+                + "--outer\nContent-Type: text/plain\n"
+                + "Content-Disposition: attachment; filename=\"notes.txt\"\n\nattached notes\n"
+                + "--outer--\n");
+        assertEquals("Plain body", parser.getContent().trim());
+        assertEquals(Arrays.asList("inner.bin", "notes.txt"), parser.getAttachmentNames());
+        assertEquals(2, parser.getAttachments().size());
+        assertTrue(parser.getAttachmentsContent().get("notes.txt").contains("attached notes"));
+        assertFalse(parser.getBodyText().contains("attached notes"));
+    }
+
+    private EmlParser parse(String message) throws IOException {
+        File file = new File(dir, "message.eml");
+        FileUtils.writeStringToFile(file, message, "UTF-8");
+        return new EmlParser(file);
+    }
+}
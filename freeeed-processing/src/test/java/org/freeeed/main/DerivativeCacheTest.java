@@ -0,0 +1,99 @@
+package org.freeeed.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.freeeed.html.HtmlBundle;
+import org.freeeed.services.Settings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.google.common.io.Files;
+
+/**
+ *
+ * @author mark
+ */
+public class DerivativeCacheTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+        Settings.getSettings().setProperty(ParameterProcessing.DERIVATIVE_CACHE_DIR,
+                new File(dir, "cache").getPath());
+        DerivativeCache.getInstance().init();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Settings.getSettings().remove(ParameterProcessing.DERIVATIVE_CACHE_DIR);
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * The same content under another name has the same key, other content or another stage do not.
+     */
+    @Test
+    public void testKey() throws IOException {
+        DerivativeCache cache = DerivativeCache.getInstance();
+        assertTrue(cache.isEnabled());
+        DiscoveryFile first = createFile("a.txt", "some text");
+        DiscoveryFile second = createFile("b.txt", "some text");
+        DiscoveryFile other = createFile("c.txt", "other text");
+        assertEquals(cache.getKey(first, DerivativeCache.METADATA), cache.getKey(second, DerivativeCache.METADATA));
+        assertFalse(cache.getKey(first, DerivativeCache.METADATA).equals(cache.getKey(other, DerivativeCache.METADATA)));
+        assertFalse(cache.getKey(first, DerivativeCache.METADATA).equals(cache.getKey(first, DerivativeCache.PDF)));
+    }
+
+    @Test
+    public void testMetadata() {
+        DerivativeCache cache = DerivativeCache.getInstance();
+        DocumentMetadata parsed = new DocumentMetadata();
+        parsed.setOriginalPath("first/a.txt");
+        parsed.setDocumentText("some text");
+        parsed.add("Author", "one");
+        parsed.add("Author", "two");
+        cache.putMetadata("abcdef", parsed,
+                Collections.singleton(DocumentMetadataKeys.DOCUMENT_ORIGINAL_PATH));
+
+        DocumentMetadata metadata = new DocumentMetadata();
+        metadata.setOriginalPath("second/b.txt");
+        assertTrue(cache.getMetadata("abcdef", metadata));
+        assertEquals("second/b.txt", metadata.getOriginalPath());
+        assertEquals("some text", metadata.get(DocumentMetadataKeys.DOCUMENT_TEXT));
+        assertArrayEquals(new String[] {"one", "two"}, metadata.getValues("Author"));
+        assertFalse(cache.getMetadata("012345", metadata));
+    }
+
+    /**
+     * The preview files are named after the document, which is renamed on the way back.
+     */
+    @Test
+    public void testHtml() {
+        DerivativeCache cache = DerivativeCache.getInstance();
+        HtmlBundle bundle = new HtmlBundle();
+        bundle.setHtml("<img SRC=\"tmp1.doc_html_1.png\">".getBytes());
+        bundle.addAsset("tmp1.doc_html_1.png", "png".getBytes());
+        cache.putHtml("abcdef", bundle, "tmp1.doc");
+
+        HtmlBundle cached = cache.getHtml("abcdef", "tmp2.doc");
+        assertNotNull(cached);
+        assertEquals("<img SRC=\"tmp2.doc_html_1.png\">", new String(cached.getHtml()));
+        assertArrayEquals("png".getBytes(), cached.getAssets().get("tmp2.doc_html_1.png"));
+        assertNull(cache.getHtml("012345", "tmp2.doc"));
+    }
+
+    private DiscoveryFile createFile(String name, String content) throws IOException {
+        File file = new File(dir, name);
+        Files.write(content, file, UTF8);
+        return new DiscoveryFile(file.getPath(), name);
+    }
+}
@@ -0,0 +1,167 @@
+package org.freeeed.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Map;
+
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.freeeed.services.Project;
+import org.freeeed.services.Stats;
+import org.freeeed.services.Util;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import com.google.common.io.Files;
+
+/**
+ *
+ * @author mark
+ */
+public class DocumentFilterTest {
+
+    private File dir;
+    private Project project;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+        project = Project.setEmptyProject().setEnvironment(Project.ENV_LOCAL);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Util.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testDate() throws Exception {
+        project.setProperty(ParameterProcessing.FILTER_DATE_FROM, "2013-01-01");
+        project.setProperty(ParameterProcessing.FILTER_DATE_TO, "2013-01-31");
+        DocumentFilter filter = new DocumentFilter(project);
+        assertEquals(DocumentFilter.DATE, filter.getFilteringCriterion(document("a.txt", 1, "2012-12-31 23:59"), null));
+        assertNull(filter.getFilteringCriterion(document("a.txt", 1, "2013-01-01 00:00"), null));
+        // the end date is inclusive
+        assertNull(filter.getFilteringCriterion(document("a.txt", 1, "2013-01-31 23:59"), null));
+        assertEquals(DocumentFilter.DATE, filter.getFilteringCriterion(document("a.txt", 1, "2013-02-01 00:00"), null));
+        // documents without a file system date, such as emails, are not filtered by date
+        DiscoveryFile email = document("1.eml", 1, null);
+        assertNull(filter.getFilteringCriterion(email, null));
+        email.setLastModified(-1);
+        assertNull(filter.getFilteringCriterion(email, null));
+    }
+
+    @Test
+    public void testWrongDate() throws Exception {
+        project.setProperty(ParameterProcessing.FILTER_DATE_FROM, "01/01/2013");
+        assertNull(new DocumentFilter(project).getFilteringCriterion(document("a.txt", 1, "2012-12-31 12:00"), null));
+    }
+
+    @Test
+    public void testSize() throws Exception {
+        project.setProperty(ParameterProcessing.FILTER_MIN_SIZE, "10");
+        project.setProperty(ParameterProcessing.FILTER_MAX_SIZE, "100");
+        DocumentFilter filter = new DocumentFilter(project);
+        assertEquals(DocumentFilter.SIZE, filter.getFilteringCriterion(document("small.txt", 5, null), null));
+        assertNull(filter.getFilteringCriterion(document("medium.txt", 10, null), null));
+        assertNull(filter.getFilteringCriterion(document("medium.txt", 100, null), null));
+        assertEquals(DocumentFilter.SIZE, filter.getFilteringCriterion(document("large.txt", 101, null), null));
+        // no maximum
+        project.remove(ParameterProcessing.FILTER_MAX_SIZE);
+        assertNull(new DocumentFilter(project).getFilteringCriterion(document("large.txt", 1000, null), null));
+    }
+
+    @Test
+    public void testExtension() throws Exception {
+        project.setProperty(ParameterProcessing.FILTER_EXCLUDE_EXTENSIONS, "exe, DLL");
+        DocumentFilter filter = new DocumentFilter(project);
+        assertEquals(DocumentFilter.EXTENSION, filter.getFilteringCriterion(document("tool.EXE", 1, null), null));
+        assertEquals(DocumentFilter.EXTENSION, filter.getFilteringCriterion(document("lib.dll", 1, null), null));
+        assertNull(filter.getFilteringCriterion(document("notes.txt", 1, null), null));
+        assertNull(filter.getFilteringCriterion(document("README", 1, null), null));
+    }
+
+    @Test
+    public void testType() throws Exception {
+        project.setProperty(ParameterProcessing.FILTER_EXCLUDE_TYPES, "image/*,application/x-font-ttf");
+        DocumentFilter filter = new DocumentFilter(project);
+        assertEquals(DocumentFilter.TYPE, filter.getFilteringCriterion(typed("image/png"), null));
+        assertEquals(DocumentFilter.TYPE, filter.getFilteringCriterion(typed("Image/JPEG"), null));
+        assertEquals(DocumentFilter.TYPE, filter.getFilteringCriterion(typed("application/x-font-ttf"), null));
+        assertNull(filter.getFilteringCriterion(typed("application/x-font-otf"), null));
+        assertNull(filter.getFilteringCriterion(typed("text/plain"), null));
+        // "image/*" is not a prefix of other types
+        assertNull(filter.getFilteringCriterion(typed("imagex/png"), null));
+        assertNull(filter.getFilteringCriterion(typed(null), null));
+    }
+
+    @Test
+    public void testPath() throws Exception {
+        project.setProperty(ParameterProcessing.FILTER_EXCLUDE_PATH + 1, "/Temporary Internet Files/");
+        project.setProperty(ParameterProcessing.FILTER_EXCLUDE_PATH + 2, "\\.bak$");
+        DocumentFilter filter = new DocumentFilter(project);
+        DiscoveryFile discoveryFile = document("a.txt", 1, null);
+        assertEquals(DocumentFilter.PATH,
+                filter.getFilteringCriterion(discoveryFile, "bob/Temporary Internet Files/a.txt"));
+        assertEquals(DocumentFilter.PATH, filter.getFilteringCriterion(discoveryFile, "bob/docs/a.txt.bak"));
+        assertNull(filter.getFilteringCriterion(discoveryFile, "bob/docs/a.bak.txt"));
+        assertNull(filter.getFilteringCriterion(discoveryFile, null));
+    }
+
+    @Test
+    public void testCounts() throws Exception {
+        project.setProperty(ParameterProcessing.FILTER_EXCLUDE_EXTENSIONS, "exe");
+        project.setProperty(ParameterProcessing.FILTER_MAX_SIZE, "100");
+        Mapper.Context context = mock(Mapper.Context.class);
+        Counter extensionCounter = mock(Counter.class);
+        Counter sizeCounter = mock(Counter.class);
+        when(context.getCounter("Filtered", DocumentFilter.EXTENSION)).thenReturn(extensionCounter);
+        when(context.getCounter("Filtered", DocumentFilter.SIZE)).thenReturn(sizeCounter);
+        FileProcessor fileProcessor = new FileProcessor(context, null) {
+            @Override
+            public void process(boolean hasAttachments, MD5Hash hash) {
+            }
+
+            @Override
+            String getOriginalDocumentPath(DiscoveryFile discoveryFile) {
+                return discoveryFile.getRealFileName();
+            }
+        };
+        Map<String, Integer> before = Stats.getInstance().getFilteredCounts();
+        fileProcessor.processFileEntry(document("tool.exe", 1, null));
+        fileProcessor.processFileEntry(document("setup.exe", 1, null));
+        fileProcessor.processFileEntry(document("large.txt", 200, null));
+        Map<String, Integer> after = Stats.getInstance().getFilteredCounts();
+        assertEquals(2, count(after, DocumentFilter.EXTENSION) - count(before, DocumentFilter.EXTENSION));
+        assertEquals(1, count(after, DocumentFilter.SIZE) - count(before, DocumentFilter.SIZE));
+        verify(extensionCounter, times(2)).increment(1);
+        verify(sizeCounter).increment(1);
+    }
+
+    private static int count(Map<String, Integer> counts, String criterion) {
+        Integer count = counts.get(criterion);
+        return count != null ? count : 0;
+    }
+
+    private DiscoveryFile document(String name, int size, String lastModified) throws IOException, ParseException {
+        File file = new File(dir, name);
+        Files.write(new byte[size], file);
+        DiscoveryFile discoveryFile = new DiscoveryFile(file.getPath(), name);
+        if (lastModified != null) {
+            discoveryFile.setLastModified(new SimpleDateFormat("yyyy-MM-dd HH:mm").parse(lastModified).getTime());
+        }
+        return discoveryFile;
+    }
+
+    private DiscoveryFile typed(String mediaType) throws IOException, ParseException {
+        DiscoveryFile discoveryFile = document("file", 1, null);
+        discoveryFile.setMediaType(mediaType);
+        return discoveryFile;
+    }
+}
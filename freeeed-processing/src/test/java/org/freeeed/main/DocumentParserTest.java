@@ -1,10 +1,14 @@
 package org.freeeed.main;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
 
 import org.junit.Test;
 
@@ -44,6 +48,25 @@ public class DocumentParserTest {
         assertTrue(body.contains("Please send me the names of the 10 counterparties that we are evaluating.  Thanks!"));
     }
 
+    @Test
+    public void testParseHtmlEml() throws IOException {
+        File eml = new File("tmp/document-parser-test/html.eml");
+        FileUtils.writeStringToFile(eml, "From: alice@example.com\nTo: bob@example.com\n"
+                + "Bcc: \"Eve E\" <eve@example.com>\nSubject: Html\nMIME-Version: 1.0\n"
+                + "Content-Type: multipart/alternative; boundary=\"alt\"\n\n"
+                + "--alt\nContent-Type: text/html\n\n<html><body><p>Html <b>body</b></p></body></html>\n"
+                + "--alt--\n");
+        try {
+            DocumentMetadata metadata = new DocumentMetadata();
+            DocumentParser.getInstance().parse(new DiscoveryFile(eml.getPath(), "html.eml"), metadata);
+            assertTrue(metadata.getDocumentText().contains("Html body"));
+            assertFalse(metadata.getDocumentText().contains("<b>"));
+            assertEquals("Eve E <eve@example.com>", metadata.get("Message-Bcc"));
+        } finally {
+            FileUtils.deleteDirectory(eml.getParentFile());
+        }
+    }
+
     @Test
     public void testParseWord() {
         DocumentMetadata metadata = new DocumentMetadata();
@@ -0,0 +1,119 @@
+package org.freeeed.main;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.freeeed.services.Util;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ *
+ * @author mark
+ */
+public class DocumentTypeDetectorTest {
+
+    private final DocumentTypeDetector detector = DocumentTypeDetector.getInstance();
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Util.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testSignatures() {
+        assertEquals(DocumentTypeDetector.PST, detect(new byte[]{'!', 'B', 'D', 'N', 0x10, 0x20}, "mail.pst"));
+        assertEquals(DocumentTypeDetector.NSF, detect(new byte[]{0x1A, 0x00, 0x00, 0x04, 0x00, 0x00, 0x42}, null));
+        assertEquals(DocumentTypeDetector.NSF_RECORDS, detect(new byte[]{'N', 'S', 'F', 'S', 1, 0, 0}, null));
+        assertEquals(DocumentTypeDetector.MBOX, detect(("From - Sat Feb  2 10:00:00 2002\n"
+                + "X-Mozilla-Status: 0001\n").getBytes(Charsets.ISO_8859_1), "Inbox"));
+        assertEquals(DocumentTypeDetector.ZIP, detect(new byte[]{'P', 'K', 0x03, 0x04, 0x14, 0x00}, null));
+        assertEquals(DocumentTypeDetector.BZIP2, detect(new byte[]{'B', 'Z', 'h', '1', 0x31, 0x41}, "docs.tbz"));
+        assertEquals(DocumentTypeDetector.GZIP, detect(new byte[]{0x1F, (byte) 0x8B, 0x08, 0x00}, "docs.tgz"));
+    }
+
+    @Test
+    public void testMisleadingExtension() {
+        // the signature wins over the name
+        assertEquals(DocumentTypeDetector.PST, detect(new byte[]{'!', 'B', 'D', 'N', 0x10, 0x20}, "notes.txt"));
+        assertEquals(DocumentTypeDetector.ZIP, detect(new byte[]{'P', 'K', 0x03, 0x04, 0x14, 0x00}, "letter.txt"));
+        assertEquals("application/pdf", detect("%PDF-1.4\n".getBytes(Charsets.ISO_8859_1), "letter.doc"));
+        // an email saved on its own is not a mailbox, even if it starts with a From_ line
+        assertFalse(DocumentTypeDetector.MBOX.equals(detect(("From - Sat Feb  2 10:00:00 2002\n"
+                + "Subject: hello\n").getBytes(Charsets.ISO_8859_1), "saved.eml")));
+        // a memo which starts with "From " is not a mailbox
+        assertFalse(DocumentTypeDetector.MBOX.equals(detect("From the desk of the CEO\n\nHello\n"
+                .getBytes(Charsets.ISO_8859_1), "memo")));
+        // but a Notes database is known by its name too
+        assertEquals(DocumentTypeDetector.NSF, detect("not really".getBytes(Charsets.ISO_8859_1), "mail.nsf"));
+    }
+
+    @Test
+    public void testShortAndEmpty() throws IOException {
+        // shorter than the signatures
+        assertFalse(DocumentTypeDetector.PST.equals(detect(new byte[]{'!', 'B'}, null)));
+        assertFalse(DocumentTypeDetector.NSF.equals(detect(new byte[]{0x1A, 0x00, 0x00}, null)));
+        assertFalse(DocumentTypeDetector.BZIP2.equals(detect(new byte[]{'B', 'Z', 'h'}, null)));
+        File empty = new File(dir, "empty");
+        Files.touch(empty);
+        assertEquals(DocumentTypeDetector.OCTET_STREAM, detector.detect(empty, null));
+        assertEquals("text/plain", detector.detect(empty, "empty.txt"));
+        // a file is read as far as it goes
+        File shortFile = new File(dir, "short");
+        Files.write(new byte[]{'!', 'B', 'D', 'N'}, shortFile);
+        assertEquals(DocumentTypeDetector.PST, detector.detect(shortFile, null));
+    }
+
+    @Test
+    public void testIsBinary() {
+        assertTrue(detector.isBinary(DocumentTypeDetector.OCTET_STREAM));
+        assertTrue(detector.isBinary("application/x-msdownload"));
+        assertTrue(detector.isBinary("application/x-sharedlib"));
+        assertFalse(detector.isBinary("text/plain"));
+        assertFalse(detector.isBinary("application/pdf"));
+        assertFalse(detector.isBinary(null));
+        byte[] executable = {0x7F, 'E', 'L', 'F', 2, 1, 1, 0};
+        assertTrue(detector.isBinary(detect(executable, "tool")));
+    }
+
+    @Test
+    public void testIsSpecific() {
+        assertTrue(detector.isSpecific("application/pdf"));
+        assertTrue(detector.isSpecific("text/plain"));
+        // the parser has to look into containers and mailboxes itself
+        assertFalse(detector.isSpecific(DocumentTypeDetector.ZIP));
+        assertFalse(detector.isSpecific("application/x-tika-msoffice"));
+        assertFalse(detector.isSpecific(DocumentTypeDetector.PST));
+        assertFalse(detector.isSpecific(DocumentTypeDetector.NSF));
+        assertFalse(detector.isSpecific(DocumentTypeDetector.MBOX));
+        assertFalse(detector.isSpecific(DocumentTypeDetector.NSF_RECORDS));
+        assertFalse(detector.isSpecific(DocumentTypeDetector.OCTET_STREAM));
+        assertFalse(detector.isSpecific(null));
+    }
+
+    @Test
+    public void testIsArchive() {
+        assertTrue(detector.isArchive(DocumentTypeDetector.TAR));
+        assertTrue(detector.isArchive(DocumentTypeDetector.GZIP));
+        assertTrue(detector.isArchive(DocumentTypeDetector.BZIP2));
+        assertTrue(detector.isArchive(DocumentTypeDetector.SEVEN_Z));
+        // zip archives are opened by the zip processor
+        assertFalse(detector.isArchive(DocumentTypeDetector.ZIP));
+        assertFalse(detector.isArchive("application/pdf"));
+    }
+
+    private String detect(byte[] header, String fileName) {
+        return detector.detect(header, header.length, fileName);
+    }
+}
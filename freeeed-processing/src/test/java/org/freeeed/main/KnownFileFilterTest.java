@@ -0,0 +1,85 @@
+package org.freeeed.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.apache.hadoop.io.MD5Hash;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.google.common.io.Files;
+
+/**
+ *
+ * @author mark
+ */
+public class KnownFileFilterTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        KnownFileFilter.getInstance().destroy();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Build from NSRL-format input, in runs of two hashes to go through the merge, and look the hashes up.
+     */
+    @Test
+    public void testBuildAndLookup() throws IOException {
+        String known = MD5Hash.digest("known file").toString().toUpperCase();
+        String[] others = {"00000000000000000000000000000001", "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF",
+            "7FFFFFFFFFFFFFFF8000000000000000", "80000000000000000000000000000000"};
+        StringBuilder nsrl = new StringBuilder();
+        nsrl.append("\"SHA-1\",\"MD5\",\"CRC32\",\"FileName\",\"FileSize\",\"ProductCode\",\"OpSystemCode\","
+                + "\"SpecialCode\"\n");
+        for (String other : others) {
+            nsrl.append("\"0000000000000000000000000000000000000000\",\"").append(other)
+                    .append("\",\"00000000\",\"a, b.dll\",1024,1,\"WIN\",\"\"\n");
+        }
+        // duplicates are dropped
+        nsrl.append("\"0000000000000000000000000000000000000000\",\"").append(known)
+                .append("\",\"00000000\",\"known.dll\",10,1,\"WIN\",\"\"\n");
+        nsrl.append("\"0000000000000000000000000000000000000000\",\"").append(known)
+                .append("\",\"00000000\",\"known.dll\",10,1,\"WIN\",\"\"\n");
+        File input = new File(dir, "NSRLFile.txt");
+        Files.write(nsrl.toString(), input, Charset.forName("UTF-8"));
+        File output = new File(dir, "known-hashes.bin");
+
+        long count = new KnownFileHashBuilder(2).build(input, output, true);
+        assertEquals(5, count);
+        assertEquals(5 * KnownFileHashBuilder.RECORD_SIZE, output.length());
+        assertTrue(new File(output.getPath() + KnownFileHashBuilder.BLOOM_EXTENSION).exists());
+
+        KnownFileFilter filter = KnownFileFilter.getInstance();
+        filter.open(output);
+        assertTrue(filter.isEnabled());
+        assertTrue(filter.contains(MD5Hash.digest("known file").getDigest()));
+        for (String other : others) {
+            assertTrue(filter.contains(new MD5Hash(other.toLowerCase()).getDigest()));
+        }
+        assertFalse(filter.contains(MD5Hash.digest("unknown file").getDigest()));
+        assertFalse(filter.contains(0, 0));
+
+        File knownFile = new File(dir, "known.dll");
+        Files.write("known file", knownFile, Charset.forName("UTF-8"));
+        assertTrue(filter.isKnown(new DiscoveryFile(knownFile.getPath(), "known.dll")));
+        File unknownFile = new File(dir, "unknown.dll");
+        Files.write("unknown file", unknownFile, Charset.forName("UTF-8"));
+        DiscoveryFile discoveryFile = new DiscoveryFile(unknownFile.getPath(), "unknown.dll");
+        assertFalse(filter.isKnown(discoveryFile));
+        assertEquals(MD5Hash.digest("unknown file"), discoveryFile.getFileHash());
+    }
+}
@@ -0,0 +1,85 @@
+package org.freeeed.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.freeeed.services.Project;
+import org.freeeed.services.Settings;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author mark
+ */
+public class MboxProcessorTest {
+
+    @Test
+    public void testProcess() throws IOException, InterruptedException {
+        Project.getProject().
+                setEnvironment(Project.ENV_LOCAL).
+                setCurrentCustodian("bob_smith").
+                setTextInMetadata(true);
+        String eml = FileUtils.readFileToString(new File("test-data/02-loose-files/docs/eml/1.eml"));
+        File mbox = new File("tmp/mbox-test/inbox.mbox");
+        FileUtils.writeStringToFile(mbox, "From rhonda@enron.com Fri Feb  1 15:35:00 2002\n" + eml + "\n"
+                + "From someone@example.com Sat Feb  2 10:00:00 2002\n"
+                + "From: someone@example.com\nSubject: second\n\nHello\n>From the mailbox\n\n"
+                // lines which start with "From " but do not start a message, left unquoted by the sender
+                + "From the desk of the CEO\n\n"
+                + "From someone@example.com Sun Feb  3 09:00:00 2002\nwas quoted without its header\n\n");
+        try {
+            Mapper.Context context = mock(Mapper.Context.class);
+            ArgumentCaptor<Text> arg1 = ArgumentCaptor.forClass(Text.class);
+            ArgumentCaptor<MapWritable> arg2 = ArgumentCaptor.forClass(MapWritable.class);
+            doNothing().when(context).write(arg1.capture(), arg2.capture());
+            assertTrue(MboxProcessor.isMbox(mbox.getPath()));
+            new MboxProcessor(mbox.getPath(), "inbox.mbox", context, null).process(false, null);
+            List<MapWritable> maps = arg2.getAllValues();
+            assertEquals(2, maps.size());
+            Map<String, String> first = TestUtil.flatten(maps.get(0));
+            assertEquals("\"Denton  Rhonda L.\" <Rhonda.Denton@ENRON.com>", first.get("Message-From"));
+            assertTrue(first.get("text").contains("Here are the reports we prepared."));
+            Map<String, String> second = TestUtil.flatten(maps.get(1));
+            assertEquals("someone@example.com", second.get("Message-From"));
+            assertTrue(second.get("text").contains("From the mailbox"));
+            assertFalse(second.get("text").contains(">From"));
+            assertTrue(second.get("text").contains("From the desk of the CEO"));
+            assertTrue(second.get("text").contains("was quoted without its header"));
+            assertFalse(new File(Settings.getSettings().getTmpDir(), "mbox-message.eml").exists());
+        } finally {
+            FileUtils.deleteDirectory(mbox.getParentFile());
+        }
+    }
+
+    @Test
+    public void testIsMbox() throws IOException {
+        File dir = new File("tmp/mbox-test");
+        try {
+            // Thunderbird has no sender on the From_ line, Google Takeout has a time zone
+            assertTrue(isMbox(dir, "Inbox", "From - Sat Feb  2 10:00:00 2002\nX-Mozilla-Status: 0001\n"));
+            assertTrue(isMbox(dir, "all.mbox",
+                    "From 1234@xxx Sat Feb 02 10:00:00 +0000 2002\r\nX-GM-THRID: 1234\r\n"));
+            assertFalse(isMbox(dir, "memo.txt", "From the desk of the CEO\n\nPlease read the following.\n"));
+            assertFalse(isMbox(dir, "schedule.txt", "From Mon Feb  4 to Fri Feb  8 10:00 2002 we are closed\n"
+                    + "Contact: reception\n"));
+            assertFalse(isMbox(dir, "notes", "From someone@example.com Sat Feb  2 10:00:00 2002\nHello\n"));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private boolean isMbox(File dir, String name, String content) throws IOException {
+        File file = new File(dir, name);
+        FileUtils.writeStringToFile(file, content);
+        return MboxProcessor.isMbox(file.getPath());
+    }
+}
@@ -0,0 +1,74 @@
+package org.freeeed.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.freeeed.lotus.FileStorage;
+import org.freeeed.lotus.LotusEmail;
+import org.freeeed.lotus.NSFRecordReader;
+import org.freeeed.services.Project;
+import org.freeeed.services.Settings;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author mark
+ */
+public class NSFRecordProcessorTest {
+
+    @Test
+    public void testProcess() throws IOException, InterruptedException {
+        Project.getProject().
+                setEnvironment(Project.ENV_LOCAL).
+                setCurrentCustodian("bob_smith").
+                setTextInMetadata(true);
+        File dir = new File("tmp/nsf-record-test");
+        FileUtils.deleteDirectory(dir);
+        try {
+            FileStorage fileStorage = new FileStorage(dir.getPath(), "mailbox.nsf");
+            for (int i = 1; i <= 2; ++i) {
+                LotusEmail email = new LotusEmail();
+                email.setSubject("Subject " + i);
+                email.setContent("Content of email " + i);
+                // as the Notes extraction fills them
+                email.setFrom(Arrays.asList("someone@example.com"));
+                email.setTo(Arrays.asList("bob.smith@example.com"));
+                email.setCc(Collections.<String>emptyList());
+                email.setBcc(Collections.<String>emptyList());
+                email.setAttachments(Collections.<String>emptyList());
+                email.setDate(new Date());
+                fileStorage.storeEmail(email);
+            }
+            fileStorage.close();
+            File segment = new File(new File(dir, "mailbox"), "emails-1" + NSFRecordReader.SEGMENT_EXT);
+            assertTrue(NSFRecordProcessor.isSegment(segment.getPath()));
+
+            Mapper.Context context = mock(Mapper.Context.class);
+            ArgumentCaptor<Text> arg1 = ArgumentCaptor.forClass(Text.class);
+            ArgumentCaptor<MapWritable> arg2 = ArgumentCaptor.forClass(MapWritable.class);
+            doNothing().when(context).write(arg1.capture(), arg2.capture());
+            new NSFRecordProcessor(segment.getPath(), "mailbox/emails-1.nsfs", context, null).process(false, null);
+            List<MapWritable> maps = arg2.getAllValues();
+            assertEquals(2, maps.size());
+            for (int i = 1; i <= 2; ++i) {
+                Map<String, String> email = TestUtil.flatten(maps.get(i - 1));
+                assertTrue(email.get("text").contains("Content of email " + i));
+            }
+            assertFalse(new File(Settings.getSettings().getTmpDir(), FileStorage.RECORD_FILE).exists());
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
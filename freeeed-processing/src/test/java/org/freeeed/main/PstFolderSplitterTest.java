@@ -0,0 +1,71 @@
+package org.freeeed.main;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mark
+ */
+public class PstFolderSplitterTest {
+
+    @Test
+    public void testCountItems() {
+        String listing = "Folder \"Inbox\"\n"
+                + "Email\tFrom: a@b.com\tSubject: one\n"
+                + "Email\tFrom: a@b.com\tSubject: two\n"
+                + "Folder \"Sent/Old\"\n"
+                + "Email\tFrom: b@c.com\tSubject: three\n"
+                + "Folder \"Empty\"\n";
+        java.util.Map<String, Integer> counts = PstFolderSplitter.countItems(listing);
+        assertEquals(3, counts.size());
+        assertEquals(Integer.valueOf(2), counts.get("Inbox"));
+        // known by the directory name readpst gives it
+        assertEquals(Integer.valueOf(1), counts.get("Sent_Old"));
+        assertEquals(Integer.valueOf(0), counts.get("Empty"));
+    }
+
+    @Test
+    public void testSplit() {
+        java.util.Map<String, Integer> counts = new LinkedHashMap<>();
+        counts.put("a", 10);
+        counts.put("b", 6);
+        counts.put("c", 5);
+        counts.put("d", 1);
+        List<Set<String>> splits = PstFolderSplitter.split(counts, 2);
+        assertEquals(2, splits.size());
+        assertEquals(new HashSet<>(Arrays.asList("a", "d")), splits.get(0));
+        assertEquals(new HashSet<>(Arrays.asList("b", "c")), splits.get(1));
+        // no more splits than folders
+        assertEquals(4, PstFolderSplitter.split(counts, 10).size());
+    }
+
+    @Test
+    public void testInputs() throws Exception {
+        File packageFile = File.createTempFile("freeeed", ".zip");
+        packageFile.deleteOnExit();
+        assertEquals(Arrays.asList("input.zip"), PstFolderSplitter.getInputs(packageFile.getPath(), "input.zip"));
+        List<Set<String>> splits = Arrays.<Set<String>>asList(new HashSet<>(Arrays.asList("Inbox")),
+                new HashSet<>(Arrays.asList("Sent Items", "a;b")));
+        PstFolderSplitter.writeSplits(packageFile.getPath(), splits);
+        File splitsFile = new File(packageFile.getPath() + ".pst_splits");
+        splitsFile.deleteOnExit();
+        List<String> inputs = PstFolderSplitter.getInputs(packageFile.getPath(), "input.zip");
+        assertEquals(2, inputs.size());
+        String[] other = inputs.get(0).split(";");
+        assertEquals(PstFolderSplitter.OTHER_FOLDERS, other[1]);
+        assertEquals(splits.get(1), PstFolderSplitter.decode(other[2]));
+        String[] folders = inputs.get(1).split(";");
+        assertEquals(3, folders.length);
+        assertEquals(PstFolderSplitter.FOLDERS, folders[1]);
+        assertEquals(splits.get(1), PstFolderSplitter.decode(folders[2]));
+        splitsFile.delete();
+    }
+}
@@ -91,6 +91,38 @@ public class PstProcessorTest {
         assertTrue("results == 874", results == 874);
     }
 
+    @Test
+    public void testDoneFolder() {
+        assertEquals("Inbox", PstProcessor.getDoneFolder("\t\"Inbox\" - 120 items done, 0 items skipped."));
+        assertEquals("Sent Items", PstProcessor.getDoneFolder("\"Sent Items\" - 0 items done, 1 items skipped."));
+        assertNull(PstProcessor.getDoneFolder("Processing Folder \"Inbox\""));
+        assertEquals("a_b", PstProcessor.toDirName("a/b"));
+    }
+
+    @Test
+    public void testFindFolders() throws Exception {
+        File outputDir = new File("tmp/pst-folders");
+        FileUtils.deleteDirectory(outputDir);
+        try {
+            File inbox = new File(outputDir, "Top/Inbox");
+            File projects = new File(inbox, "Projects");
+            FileUtils.writeStringToFile(new File(projects, "1"), "project email");
+            FileUtils.writeStringToFile(new File(inbox, "2"), "inbox email");
+            // a folder is found once its subfolders are done and gone
+            assertEquals(1, PstProcessor.findFolders(outputDir, "Projects").size());
+            assertTrue(PstProcessor.findFolders(outputDir, "Inbox").isEmpty());
+            assertEquals(24, PstProcessor.getScratchSize(outputDir));
+            FileUtils.deleteDirectory(projects);
+            assertEquals(inbox, PstProcessor.findFolders(outputDir, "Inbox").get(0));
+            // two done folders of the same name cannot be told apart
+            new File(outputDir, "Archive/Inbox").mkdirs();
+            assertEquals(2, PstProcessor.findFolders(outputDir, "Inbox").size());
+            assertTrue(PstProcessor.findFolders(outputDir, "Top").isEmpty());
+        } finally {
+            FileUtils.deleteDirectory(outputDir);
+        }
+    }
+
     /**
      * Test of actionPerformed method, of class PstProcessor.
      */
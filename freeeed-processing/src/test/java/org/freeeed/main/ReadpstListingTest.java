@@ -0,0 +1,63 @@
+package org.freeeed.main;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mark
+ */
+public class ReadpstListingTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = new File("tmp/readpst-listing");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testOrder() throws IOException {
+        File sub = new File(dir, "sub");
+        sub.mkdir();
+        // the directory is listed in no particular order
+        File[] files = {
+            create("10"), create("2-b.doc"), create("2"), sub, create("1"), create("2-a.xls"), create("10-x.pdf"),
+            create("3.eml"), create("3-y.txt"), create("notes"), create("99999999999")
+        };
+        ReadpstListing listing = new ReadpstListing(files);
+        String[] expected = {"1", "2", "2-a.xls", "2-b.doc", "3-y.txt", "3.eml", "10", "10-x.pdf", "99999999999",
+            "notes", "sub"};
+        int[] attachments = {0, 2, 0, 0, 0, 0, 1, 0, 0, 0, 0};
+        File[] ordered = listing.getFiles();
+        assertEquals(expected.length, ordered.length);
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(expected[i], ordered[i].getName());
+            assertEquals(expected[i], attachments[i], listing.getAttachmentCount(i));
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        assertEquals(0, new ReadpstListing(new File[0]).getFiles().length);
+    }
+
+    private File create(String name) throws IOException {
+        File file = new File(dir, name);
+        FileUtils.touch(file);
+        return file;
+    }
+}
@@ -0,0 +1,148 @@
+package org.freeeed.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.freeeed.services.Project;
+import org.freeeed.services.Settings;
+import org.freeeed.services.Util;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import com.google.common.io.Files;
+
+/**
+ * Imaging after de-duplication: the master is imaged, its duplicates link to the image of the master, and the
+ * attachments which follow them in the group are imaged on their own.
+ */
+public class ReduceTest {
+
+    private File cacheDir;
+
+    @Before
+    public void setUp() {
+        cacheDir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Util.deleteDirectory(cacheDir);
+    }
+
+    @Test
+    public void testImageAfterDedup() throws IOException, InterruptedException {
+        ArgumentCaptor<Text> rows = ArgumentCaptor.forClass(Text.class);
+        Reduce reduce = reduce(rows, Arrays.asList("hash\t#", "hash\t#", "hash\tattached"), Arrays.asList(
+                document("a/master.pdf", "master", false),
+                document("b/duplicate.pdf", "master", false),
+                document("a/master.pdf/attached.pdf", "attached", true)));
+
+        List<Text> written = rows.getAllValues();
+        assertEquals(4, written.size());
+        int pdfLink = Arrays.asList(written.get(0).toString().split("\t")).indexOf(DocumentMetadataKeys.LINK_PDF);
+        assertTrue(pdfLink >= 0);
+        assertEquals("pdf/00001_master.pdf.pdf", written.get(1).toString().split("\t")[pdfLink]);
+        assertEquals("pdf/00001_master.pdf.pdf", written.get(2).toString().split("\t")[pdfLink]);
+        assertEquals("pdf/00003_attached.pdf.pdf", written.get(3).toString().split("\t")[pdfLink]);
+        verify(reduce.zipFileWriter).addBinaryFile(eq("pdf/00001_master.pdf.pdf"), any(byte[].class), anyInt());
+        verify(reduce.zipFileWriter, never()).addBinaryFile(eq("pdf/00002_duplicate.pdf.pdf"),
+                any(byte[].class), anyInt());
+        verify(reduce.zipFileWriter).addBinaryFile(eq("pdf/00003_attached.pdf.pdf"), any(byte[].class), anyInt());
+    }
+
+    @Test
+    public void testImageFromCache() throws IOException, InterruptedException {
+        // the image of the master as a run before made it
+        Settings.setSettings(Settings.loadFromString(ParameterProcessing.DERIVATIVE_CACHE_DIR + "=" + cacheDir));
+        DerivativeCache derivativeCache = DerivativeCache.getInstance();
+        derivativeCache.init();
+        DiscoveryFile discoveryFile = new DiscoveryFile("master.pdf", "master.pdf");
+        discoveryFile.setFileHash(MD5Hash.digest("master".getBytes()));
+        File cachedImage = new File(cacheDir, "image.pdf");
+        Files.write("cached image".getBytes(), cachedImage);
+        derivativeCache.putFile(derivativeCache.getKey(discoveryFile, DerivativeCache.PDF), cachedImage);
+
+        ArgumentCaptor<Text> rows = ArgumentCaptor.forClass(Text.class);
+        Reduce reduce = reduce(rows, Arrays.asList("hash\t#"),
+                Arrays.asList(document("a/master.pdf", "master", false)));
+
+        ArgumentCaptor<byte[]> image = ArgumentCaptor.forClass(byte[].class);
+        verify(reduce.zipFileWriter).addBinaryFile(eq("pdf/00001_master.pdf.pdf"), image.capture(), anyInt());
+        assertEquals("cached image", new String(image.getValue()));
+    }
+
+    /**
+     * Reduce a group, as Hadoop does it, with the key of the group moving along with its values.
+     */
+    @SuppressWarnings("unchecked")
+    private Reduce reduce(ArgumentCaptor<Text> rows, final List<String> keys, final List<MapWritable> values)
+            throws IOException, InterruptedException {
+        Project project = Project.setEmptyProject().setEnvironment(Project.ENV_LOCAL);
+        project.setCreatePDF(true);
+        project.setImageAfterDedup(true);
+        project.setFieldSeparator("tab");
+        project.setMetadataCollect("standard");
+        Configuration configuration = new Configuration();
+        configuration.set(ParameterProcessing.PROJECT, project.toString());
+        configuration.set(ParameterProcessing.SETTINGS_STR, ParameterProcessing.DERIVATIVE_CACHE_DIR + "=" + cacheDir);
+
+        Reducer.Context context = mock(Reducer.Context.class);
+        when(context.getConfiguration()).thenReturn(configuration);
+        doNothing().when(context).write(any(), rows.capture());
+        Reduce reduce = new Reduce();
+        reduce.zipFileWriter = mock(ZipFileWriter.class);
+        reduce.setup(context);
+
+        final Text key = new Text();
+        key.set(keys.get(0));
+        reduce.reduce(key, new Iterable<MapWritable>() {
+            @Override
+            public Iterator<MapWritable> iterator() {
+                return new Iterator<MapWritable>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < values.size();
+                    }
+
+                    @Override
+                    public MapWritable next() {
+                        key.set(keys.get(next));
+                        return values.get(next++);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        }, context);
+        return reduce;
+    }
+
+    private MapWritable document(String path, String content, boolean attachment) {
+        MapWritable map = new MapWritable();
+        map.put(new Text(DocumentMetadataKeys.DOCUMENT_ORIGINAL_PATH), new Text(path));
+        map.put(new Text(DocumentMetadataKeys.DOCUMENT_TEXT), new Text(content));
+        if (attachment) {
+            map.put(new Text("has_parent"), new Text("true"));
+        }
+        map.put(new Text(ParameterProcessing.NATIVE), new BytesWritable(content.getBytes()));
+        return map;
+    }
+}
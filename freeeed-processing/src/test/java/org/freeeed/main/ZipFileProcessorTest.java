@@ -2,17 +2,37 @@ package org.freeeed.main;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
+import org.apache.commons.compress.archivers.sevenz.SevenZOutputFile;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
 import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
 import org.freeeed.services.Project;
 import org.freeeed.services.Stats;
 import org.freeeed.util.CsvMetadataParser;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Mockito.*;
 
 import com.google.common.io.Files;
 import org.slf4j.Logger;
@@ -94,4 +114,89 @@ public class ZipFileProcessorTest {
             fail("Unexpected exception");
         }
     }
+
+    @Test
+    public void testTarAndSevenZ() throws Exception {
+        Project.getProject().
+                setEnvironment(Project.ENV_LOCAL).
+                setCurrentCustodian("ivan").
+                setTextInMetadata(true);
+        File dir = new File("tmp/archive-test");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+        try {
+            File tgz = new File(dir, "docs.tgz");
+            try (OutputStream os = new GZIPOutputStream(new FileOutputStream(tgz))) {
+                TarArchiveOutputStream tos = new TarArchiveOutputStream(os);
+                putTarEntry(tos, "a.txt", "first text".getBytes("UTF-8"));
+                // a zip inside the tar, opened in turn
+                ByteArrayOutputStream nested = new ByteArrayOutputStream();
+                try (ZipOutputStream zos = new ZipOutputStream(nested)) {
+                    zos.putNextEntry(new ZipEntry("c.txt"));
+                    zos.write("third text".getBytes("UTF-8"));
+                    zos.closeEntry();
+                }
+                putTarEntry(tos, "nested.zip", nested.toByteArray());
+                tos.finish();
+            }
+            File tar = new File(dir, "inner.tar");
+            try (OutputStream os = new FileOutputStream(tar)) {
+                writeTar(os, "b.txt", "second text");
+            }
+            File sevenZ = new File(dir, "more.7z");
+            SevenZOutputFile sevenZOutput = new SevenZOutputFile(sevenZ);
+            try {
+                // a tar inside the 7z, opened in turn
+                SevenZArchiveEntry entry = sevenZOutput.createArchiveEntry(tar, "inner.tar");
+                sevenZOutput.putArchiveEntry(entry);
+                sevenZOutput.write(FileUtils.readFileToByteArray(tar));
+                sevenZOutput.closeArchiveEntry();
+            } finally {
+                sevenZOutput.close();
+            }
+            // bzip2 with a block size other than 9, under the name .tbz
+            File tbz = new File(dir, "small.tbz");
+            try (OutputStream os = new BZip2CompressorOutputStream(new FileOutputStream(tbz), 1)) {
+                writeTar(os, "d.txt", "fourth text");
+            }
+            File zip = new File(dir, "package.zip");
+            try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip))) {
+                for (File file : new File[]{tgz, sevenZ, tbz}) {
+                    zos.putNextEntry(new ZipEntry(file.getName()));
+                    zos.write(FileUtils.readFileToByteArray(file));
+                    zos.closeEntry();
+                }
+            }
+            Mapper.Context context = mock(Mapper.Context.class);
+            ArgumentCaptor<Text> arg1 = ArgumentCaptor.forClass(Text.class);
+            ArgumentCaptor<MapWritable> arg2 = ArgumentCaptor.forClass(MapWritable.class);
+            doNothing().when(context).write(arg1.capture(), arg2.capture());
+            new ZipFileProcessor(zip.getPath(), context, null).process(false, null);
+            Set<String> texts = new HashSet<>();
+            for (MapWritable map : arg2.getAllValues()) {
+                texts.add(TestUtil.flatten(map).get("text").trim());
+            }
+            assertEquals(4, arg2.getAllValues().size());
+            assertTrue(texts.contains("first text"));
+            assertTrue(texts.contains("second text"));
+            assertTrue(texts.contains("third text"));
+            assertTrue(texts.contains("fourth text"));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private static void writeTar(OutputStream os, String name, String text) throws IOException {
+        TarArchiveOutputStream tos = new TarArchiveOutputStream(os);
+        putTarEntry(tos, name, text.getBytes("UTF-8"));
+        tos.finish();
+    }
+
+    private static void putTarEntry(TarArchiveOutputStream tos, String name, byte[] bytes) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(bytes.length);
+        tos.putArchiveEntry(entry);
+        tos.write(bytes);
+        tos.closeArchiveEntry();
+    }
 }
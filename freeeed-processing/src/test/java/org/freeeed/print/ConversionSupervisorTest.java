@@ -0,0 +1,108 @@
+package org.freeeed.print;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.artofsolving.jodconverter.office.OfficeException;
+import org.freeeed.main.ParameterProcessing;
+import org.freeeed.services.Settings;
+import org.freeeed.services.Stats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ *
+ * @author mark
+ */
+public class ConversionSupervisorTest {
+
+    @Before
+    public void setUp() {
+        Settings.getSettings().setProperty(ParameterProcessing.HTML_TIMEOUT, "1");
+    }
+
+    @After
+    public void tearDown() {
+        Settings.getSettings().remove(ParameterProcessing.HTML_TIMEOUT);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        try {
+            ConversionSupervisor.getInstance().runHtmlConversion(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    // a rendering which never ends, until interrupted
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Thread.yield();
+                    }
+                    stopped.countDown();
+                    return null;
+                }
+            });
+            fail("The conversion should time out");
+        } catch (TimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start < 10000);
+        }
+        assertTrue(stopped.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        try {
+            ConversionSupervisor.getInstance().runHtmlConversion(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    throw new IOException("broken");
+                }
+            });
+            fail("The failure of the conversion should be thrown");
+        } catch (IOException e) {
+            assertEquals("broken", e.getMessage());
+            assertFalse(ConversionSupervisor.isTimeout(e));
+        }
+        // how the office pool reports a conversion over its budget
+        assertTrue(ConversionSupervisor.isTimeout(new OfficeException("task did not complete within timeout",
+                new TimeoutException())));
+    }
+
+    @Test
+    public void testTimedOut() {
+        ConversionSupervisor supervisor = ConversionSupervisor.getInstance();
+        supervisor.setTimedOut("/tmp/document.doc");
+        assertTrue(supervisor.takeTimedOut("/tmp/document.doc"));
+        assertFalse(supervisor.takeTimedOut("/tmp/document.doc"));
+    }
+
+    @Test
+    public void testRetry() throws IOException {
+        ConversionSupervisor supervisor = ConversionSupervisor.getInstance();
+        File retryFile = Stats.getInstance().getRetryFile();
+        retryFile.delete();
+        try {
+            // the converter only sees the temporary file of an attachment
+            supervisor.setDocument("input/mail.pst/message.eml/report.doc");
+            supervisor.addRetry("/tmp/attach-1", new TimeoutException());
+            supervisor.setDocument(null);
+            supervisor.addRetry("/tmp/file.doc", new IOException("broken"));
+            List<String> retries = Files.readLines(retryFile, Charsets.UTF_8);
+            assertEquals(2, retries.size());
+            assertTrue(retries.get(0).endsWith("input/mail.pst/message.eml/report.doc\ttimed out"));
+            assertTrue(retries.get(1).endsWith("/tmp/file.doc\tbroken"));
+        } finally {
+            retryFile.delete();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.freeeed.print;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+import org.freeeed.services.Util;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.google.common.io.Files;
+
+/**
+ *
+ * @author mark
+ */
+public class OfficePortsTest {
+
+    private File lockDir;
+
+    @Before
+    public void setUp() {
+        lockDir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Util.deleteDirectory(lockDir);
+    }
+
+    @Test
+    public void testTasksOfNode() throws IOException {
+        // a port in use by another program is skipped
+        try (ServerSocket busy = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+            int basePort = busy.getLocalPort();
+            OfficePorts first = new OfficePorts(lockDir, basePort, 2);
+            assertArrayEquals(new int[]{basePort + 1, basePort + 2}, first.getPorts());
+            // a task starting while the first one runs gets other ports
+            OfficePorts second = new OfficePorts(lockDir, basePort, 1);
+            assertArrayEquals(new int[]{basePort + 3}, second.getPorts());
+            // the ports of a task which ends go to the next one
+            first.close();
+            OfficePorts third = new OfficePorts(lockDir, basePort, 1);
+            assertArrayEquals(new int[]{basePort + 1}, third.getPorts());
+            second.close();
+            third.close();
+        }
+    }
+}
@@ -18,6 +18,8 @@ package org.freeeed.services;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+
 import org.junit.Test;
 
 /**
@@ -67,6 +69,47 @@ public class SettingsTest {
         assertTrue(settings.getSecurityGroup().isEmpty());
     }
 
+    @Test
+    public void testCacheDirs() {
+        Settings settings = Settings.loadFromString("ocr_cache_size=abc");
+        // kept between runs, wherever a task runs
+        assertTrue(new File(settings.getOcrCacheDir()).isAbsolute());
+        assertTrue(new File(settings.getDerivativeCacheDir()).isAbsolute());
+        assertEquals(512L * 1024 * 1024, settings.getOcrCacheSize());
+        settings = Settings.loadFromString("ocr_cache_dir=/data/ocr_cache\nocr_cache_size=16");
+        assertEquals("/data/ocr_cache", settings.getOcrCacheDir());
+        assertEquals(16L * 1024 * 1024, settings.getOcrCacheSize());
+    }
+
+    @Test
+    public void testOfficePorts() {
+        Settings settings = Settings.loadFromString("office_base_port=3000");
+        assertEquals(1, settings.getOfficeProcesses());
+        assertEquals(3000, settings.getOfficeBasePort());
+        settings = Settings.loadFromString("office_base_port=abc\noffice_processes=2");
+        assertEquals(2, settings.getOfficeProcesses());
+        assertEquals(2002, settings.getOfficeBasePort());
+        assertTrue(new File(settings.getOfficePortsDir()).isAbsolute());
+    }
+
+    @Test
+    public void testPstSplits() {
+        Settings settings = Settings.loadFromString("pst_max_splits=abc");
+        assertEquals(4096L * 1024 * 1024, settings.getPstSplitSize());
+        assertEquals(4, settings.getPstMaxSplits());
+        settings = Settings.loadFromString("pst_split_size=100\npst_max_splits=0");
+        assertEquals(100L * 1024 * 1024, settings.getPstSplitSize());
+        assertEquals(1, settings.getPstMaxSplits());
+    }
+
+    @Test
+    public void testNsfTimeout() {
+        Settings settings = Settings.loadFromString("nsf_timeout=abc");
+        assertEquals(24 * 60 * 60 * 1000L, settings.getNsfTimeout());
+        settings = Settings.loadFromString("nsf_timeout=90");
+        assertEquals(90 * 60 * 1000L, settings.getNsfTimeout());
+    }
+
     @Test
     public void testSettingsPresent() {
         try {
@@ -0,0 +1,70 @@
+package org.freeeed.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.google.common.io.Files;
+
+/**
+ *
+ * @author mark
+ */
+public class DiskCacheTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testGetPut() {
+        DiskCache cache = new DiskCache(dir, 1024 * 1024);
+        assertNull(cache.get("abcdef"));
+        cache.put("abcdef", "logo text".getBytes());
+        assertArrayEquals("logo text".getBytes(), cache.get("abcdef"));
+        cache.put("abcdef", "new text".getBytes());
+        assertArrayEquals("new text".getBytes(), cache.get("abcdef"));
+        // entries are kept between runs
+        assertArrayEquals("new text".getBytes(), new DiskCache(dir, 1024 * 1024).get("abcdef"));
+    }
+
+    /**
+     * Random bytes do not compress, so each entry takes a little over 1000 bytes, and only a few fit.
+     */
+    @Test
+    public void testEviction() {
+        DiskCache cache = new DiskCache(dir, 5000);
+        Random random = new Random(1);
+        long past = System.currentTimeMillis() - 1000000;
+        for (int i = 0; i < 10; ++i) {
+            byte[] value = new byte[1000];
+            random.nextBytes(value);
+            cache.put("key" + i, value);
+            // later entries are more recently used, except the first one, which is kept in use
+            new File(new File(dir, "ke"), "key" + i + ".gz").setLastModified(past + i * 10000);
+            new File(new File(dir, "ke"), "key0.gz").setLastModified(past + 100000);
+        }
+        assertNotNull(cache.get("key0"));
+        assertNotNull(cache.get("key9"));
+        assertNull(cache.get("key1"));
+        long size = 0;
+        for (File file : new File(dir, "ke").listFiles()) {
+            size += file.length();
+        }
+        assertTrue(size <= 5000);
+    }
+}